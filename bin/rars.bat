@@ -0,0 +1,14 @@
+@echo off
+rem Run Rars.jar with a class data sharing archive, rars.jsa, kept beside it.  The first
+rem run writes the archive, later runs load their classes from it and start faster.
+rem Delete rars.jsa after updating Rars.jar or Java.  Arguments are passed to Rars.
+setlocal
+set "jar=%~dp0Rars.jar"
+set "jsa=%~dp0rars.jsa"
+set "log=-Xlog:disable -Xlog:all=warning:stderr"
+if exist "%jsa%" (
+    java %log% -XX:SharedArchiveFile="%jsa%" -jar "%jar%" %*
+) else (
+    java %log% -XX:ArchiveClassesAtExit="%jsa%" -jar "%jar%" %*
+)
+exit /b %ERRORLEVEL%
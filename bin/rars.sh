@@ -0,0 +1,19 @@
+#!/bin/sh
+# Run Rars.jar with a class data sharing archive, rars.jsa, kept beside it.  The first
+# run (or the first after Rars.jar changes) writes the archive, later runs load their
+# classes from it and start faster.  Arguments are passed to Rars unchanged.
+# JVM warnings, such as classes left out of the archive, go to stderr, not the program's output.
+dir=$(dirname "$0")
+log="-Xlog:disable -Xlog:all=warning:stderr"
+jar="$dir/Rars.jar"
+jsa="$dir/rars.jsa"
+if [ -f "$jsa" ] && [ "$jsa" -nt "$jar" ]; then
+    exec java $log -XX:SharedArchiveFile="$jsa" -jar "$jar" "$@"
+fi
+# Write to a private name and rename, so that runs started together do not share a file.
+java $log -XX:ArchiveClassesAtExit="$jsa.$$" -jar "$jar" "$@"
+status=$?
+if [ -f "$jsa.$$" ]; then
+    mv -f "$jsa.$$" "$jsa"
+fi
+exit $status
@@ -0,0 +1,491 @@
+package rars;
+
+import rars.mips.hardware.*;
+import rars.mips.instructions.syscalls.*;
+import rars.simulator.*;
+import rars.util.*;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.net.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/*
+Copyright (c) 2018,  Yueyan Zhao
+
+Permission is hereby granted, free of charge, to any person obtaining 
+a copy of this software and associated documentation files (the 
+"Software"), to deal in the Software without restriction, including 
+without limitation the rights to use, copy, modify, merge, publish, 
+distribute, sublicense, and/or sell copies of the Software, and to 
+permit persons to whom the Software is furnished to do so, subject 
+to the following conditions:
+
+The above copyright notice and this permission notice shall be 
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, 
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF 
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. 
+IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR 
+ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF 
+CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION 
+WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+(MIT license, http://www.opensource.org/licenses/mit-license.html)
+ */
+
+/**
+ * Runs many command-line simulations concurrently inside one JVM, for batch work such
+ * as grading where starting a JVM per program would dominate the running time.
+ * <p>
+ * Each worker thread owns a Sandbox, which is reset and reused for each program it runs,
+ * so that programs are isolated from each other while instruction set loading and JIT
+ * compilation of the simulator happen once per worker.  Each run is carried out exactly
+ * as a single command-line run with the same arguments would be.
+ * <p>
+ * The list of programs is either a directory, in which case every .asm file in it is
+ * run with options "nc" and input taken from the same-named .in file if there is one,
+ * or a manifest file.  Each non-blank manifest line not starting with # holds the
+ * command-line arguments for one run (options, file names, step limit, "pa" program
+ * arguments), optionally followed by "&lt; file" to name its standard input.  Paths
+ * are relative to the current directory.
+ * <p>
+ * All results go to one file.  Each run contributes a header line
+ * <tt>=== name exit=code instructions=count ms=time</tt> followed by everything the
+ * run wrote to standard output and error.
+ */
+
+public class BatchRunner {
+    private static final String INPUT_REDIRECT = "<";
+    private static final String INPUT_EXTENSION = ".in";
+
+    private final List<Job> jobs;
+    private final File results;
+    private final int threads;
+    private final PrintStream out;
+
+    /**
+     * Prepare a batch run.
+     *
+     * @param list    manifest file or directory of .asm files
+     * @param results file the results are written to
+     * @param threads number of programs simulated at once
+     * @param out     stream for messages about the batch itself
+     * @throws IOException if the manifest cannot be read
+     */
+    public BatchRunner(File list, File results, int threads, PrintStream out) throws IOException {
+        this.jobs = (list.isDirectory()) ? jobsForDirectory(list) : jobsForManifest(list);
+        this.results = results;
+        this.threads = threads;
+        this.out = out;
+    }
+
+    /**
+     * Run every program, then write the results file.
+     *
+     * @return 0 if every program ran and exited with code 0, 1 otherwise
+     */
+    public int run() {
+        final List<Sandbox> created = Collections.synchronizedList(new ArrayList<Sandbox>());
+        final ThreadLocal<Sandbox> sandboxes = new ThreadLocal<Sandbox>() {
+            protected Sandbox initialValue() {
+                Sandbox sandbox = new Sandbox();
+                created.add(sandbox);
+                return sandbox;
+            }
+        };
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<byte[]>> outcomes = new ArrayList<Future<byte[]>>();
+        try {
+            for (final Job job : jobs) {
+                outcomes.add(pool.submit(new Callable<byte[]>() {
+                    public byte[] call() {
+                        return job.run(sandboxes.get());
+                    }
+                }));
+            }
+            int failures = 0;
+            OutputStream writer = new BufferedOutputStream(new FileOutputStream(results));
+            try {
+                for (int i = 0; i < outcomes.size(); i++) {
+                    writer.write(outcomes.get(i).get());
+                    if (jobs.get(i).exitCode != 0) {
+                        failures++;
+                    }
+                }
+            } finally {
+                writer.close();
+            }
+            out.println(jobs.size() + " programs run, " + failures + " with nonzero exit code; results in " + results);
+            return (failures == 0) ? 0 : 1;
+        } catch (Exception e) {
+            out.println("Batch run failed: " + e);
+            return 1;
+        } finally {
+            pool.shutdown();
+            try {
+                pool.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+            }
+            Sandbox.closeAll(created);
+        }
+    }
+
+    private static List<Job> jobsForDirectory(File directory) {
+        File[] files = directory.listFiles();
+        Arrays.sort(files);
+        List<Job> jobs = new ArrayList<Job>();
+        for (File file : files) {
+            String name = file.getPath();
+            if (file.isFile() && name.toLowerCase().endsWith(".asm")) {
+                File input = new File(name.substring(0, name.length() - 4) + INPUT_EXTENSION);
+                jobs.add(new Job(file.getName(), new String[]{"nc", name}, (input.isFile()) ? input : null));
+            }
+        }
+        return jobs;
+    }
+
+    private static List<Job> jobsForManifest(File manifest) throws IOException {
+        List<Job> jobs = new ArrayList<Job>();
+        BufferedReader reader = new BufferedReader(new FileReader(manifest));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                List<String> args = new ArrayList<String>(Arrays.asList(line.split("\\s+")));
+                File input = null;
+                int redirect = args.indexOf(INPUT_REDIRECT);
+                if (redirect >= 0 && redirect == args.size() - 2) {
+                    input = new File(args.get(redirect + 1));
+                    args = args.subList(0, redirect);
+                }
+                jobs.add(new Job(nameOf(args), args.toArray(new String[args.size()]), input));
+            }
+        } finally {
+            reader.close();
+        }
+        return jobs;
+    }
+
+    // The first argument naming a source file, for labelling the results.
+    private static String nameOf(List<String> args) {
+        for (String arg : args) {
+            if (arg.toLowerCase().endsWith(".asm") || arg.toLowerCase().endsWith(".s")) {
+                return new File(arg).getName();
+            }
+        }
+        return args.toString();
+    }
+
+    // One program to run, and what became of it.
+    private static class Job {
+        private final String name;
+        private final String[] args;
+        private final File input;
+        private int exitCode;
+
+        Job(String name, String[] args, File input) {
+            this.name = name;
+            this.args = args;
+            this.input = input;
+        }
+
+        // Simulate in the given sandbox; returns the results entry.  Program output is
+        // kept as the bytes written, whatever their encoding.
+        byte[] run(Sandbox sandbox) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            long instructions = 0;
+            long start = System.currentTimeMillis();
+            InputStream in = null;
+            try {
+                in = (input == null) ? new ByteArrayInputStream(new byte[0]) : new FileInputStream(input);
+                Sandbox.Result result = sandbox.run(args, in, output);
+                exitCode = result.getExitCode();
+                instructions = result.getInstructionCount();
+            } catch (Exception e) {
+                new PrintStream(output, true).println("Batch run error: " + e);
+                exitCode = 1;
+            } finally {
+                try {
+                    if (in != null) {
+                        in.close();
+                    }
+                } catch (IOException e) {
+                }
+            }
+            long elapsed = System.currentTimeMillis() - start;
+            ByteArrayOutputStream entry = new ByteArrayOutputStream();
+            PrintStream header = new PrintStream(entry);
+            header.println("=== " + name + " exit=" + exitCode + " instructions=" + instructions + " ms=" + elapsed);
+            header.flush();
+            entry.write(output.toByteArray(), 0, output.size());
+            return entry.toByteArray();
+        }
+    }
+
+    /**
+     * A private copy of the simulator for running command-line simulations one after
+     * another, isolated from the rest of the JVM.  Used by batch and server runs only.
+     * <p>
+     * The simulator keeps its state in static fields (Globals, Memory, RegisterFile, ...),
+     * so a sandbox is a copy of the simulator classes loaded through a class loader of its
+     * own.  Separate sandboxes share nothing and can run concurrently.  A sandbox stays
+     * warm between runs: instruction set, syscall tables and JIT-compiled simulator code
+     * are reused, and only the simulated state is reset.  This isolates whole runs; it is
+     * not a machine abstraction, and the rest of the simulator knows nothing of it.
+     * <p>
+     * While a sandbox runs, System.in, System.out and System.err are routed to the input
+     * and output given for the run, for the running thread and threads it starts.  Other
+     * threads keep the original streams.  Program source files, input and output of a run
+     * are in UTF-8 whatever the platform's default character set.
+     */
+    static class Sandbox {
+        private static final String CHARSET = "UTF-8";
+        private static boolean streamsRouted = false;
+        private static InheritableThreadLocal<InputStream> threadInput = new InheritableThreadLocal<InputStream>();
+        private static InheritableThreadLocal<OutputStream> threadOutput = new InheritableThreadLocal<OutputStream>();
+
+        private final URLClassLoader loader;
+        private Method launch; // launch() of this sandbox's copy of this class
+        private volatile Method halt; // halt() of the same copy
+
+        Sandbox() {
+            // The parent is the loader of the Java platform's own classes (the extension
+            // loader before Java 9), so that the simulator classes are loaded again.
+            loader = new URLClassLoader(classPath(), ClassLoader.getSystemClassLoader().getParent());
+        }
+
+        /**
+         * Reset the sandbox, then carry out one command-line run (as MarsLaunch would for
+         * the same arguments) without exiting the JVM.  Runs in one sandbox are serialized.
+         *
+         * @param args   command-line arguments, options and file names as for MarsLaunch
+         * @param input  the program's standard input
+         * @param output receives everything written to standard output and standard error
+         * @return exit code and instruction count of the run
+         * @throws Exception if the run could not be carried out; exceptions the simulator
+         *                   throws are passed on as they are
+         */
+        synchronized Result run(String[] args, InputStream input, OutputStream output) throws Exception {
+            routeStandardStreams();
+            InputStream previousInput = threadInput.get();
+            OutputStream previousOutput = threadOutput.get();
+            threadInput.set(input);
+            threadOutput.set(output);
+            try {
+                if (launch == null) {
+                    launch = copyMethod("launch", String[].class);
+                }
+                long[] result = (long[]) launch.invoke(null, (Object) args);
+                return new Result((int) result[0], result[1]);
+            } catch (InvocationTargetException e) {
+                Throwable cause = e.getCause();
+                throw (cause instanceof Exception) ? (Exception) cause : e;
+            } finally {
+                threadInput.set(previousInput);
+                threadOutput.set(previousOutput);
+            }
+        }
+
+        /**
+         * Stop the program that run() is simulating, if any, as if STOP had been pressed:
+         * run() returns once the instruction under way completes, or at once from a
+         * sleep syscall.  May be called from any thread.
+         *
+         * @throws Exception if the sandbox's copy of the simulator cannot be reached
+         */
+        void stop() throws Exception {
+            if (halt == null) {
+                halt = copyMethod("halt");
+            }
+            halt.invoke(null);
+        }
+
+        // The named static method of the sandbox's copy of this class.
+        private Method copyMethod(String name, Class<?>... parameterTypes) throws Exception {
+            Method method = loader.loadClass(Sandbox.class.getName()).getDeclaredMethod(name, parameterTypes);
+            method.setAccessible(true);
+            return method;
+        }
+
+        /**
+         * Release the class loader, where the Java version allows (URLClassLoader is
+         * Closeable from Java 7).  The sandbox cannot be used afterwards.
+         *
+         * @throws IOException if the class loader cannot close its class path
+         */
+        void close() throws IOException {
+            if (loader instanceof Closeable) {
+                ((Closeable) loader).close();
+            }
+        }
+
+        /**
+         * Close each of the given sandboxes, ignoring failures.  For pools whose worker
+         * threads each create a sandbox: call once the pool's tasks have finished.
+         *
+         * @param sandboxes the sandboxes
+         */
+        static void closeAll(List<Sandbox> sandboxes) {
+            synchronized (sandboxes) {
+                for (Sandbox sandbox : sandboxes) {
+                    try {
+                        sandbox.close();
+                    } catch (IOException e) {
+                    }
+                }
+                sandboxes.clear();
+            }
+        }
+
+        // Invoked by run() on the sandbox's own copy of this class: reset the simulator
+        // and run MarsLaunch on the arguments.  Returns {exit code, instruction count}.
+        private static long[] launch(String[] args) {
+            Charset charset = SystemIO.getCharset();
+            try {
+                reset();
+                SystemIO.setCharset(Charset.forName(CHARSET));
+                new MarsLaunch(args, false);
+                return new long[]{Globals.exitCode, Simulator.getInstance().getInstructionCount()};
+            } finally {
+                SystemIO.setCharset(charset);
+            }
+        }
+
+        // Invoked by stop() on the sandbox's own copy of this class.
+        private static void halt() {
+            Simulator.getInstance().interruptExecution();
+        }
+
+        // Put the simulated state back as a freshly started JVM would have it.  Memory
+        // itself is cleared when a program is assembled.
+        private static void reset() {
+            Globals.initialize(false);
+            Globals.exitCode = 0;
+            Globals.debug = false;
+            Globals.program = null;
+            Globals.getSettings().reset(false);
+            Globals.memory.deleteObservers();
+            Globals.memory.clear();
+            RegisterFile.resetRegisters();
+            Coprocessor0.resetRegisters();
+            Coprocessor1.resetRegisters();
+            DelayedBranch.clear();
+            Simulator.externalInterruptingDevice = Simulator.NO_DEVICE;
+            Simulator.getInstance().resetInstructionCount();
+            BlockCompiler.setDifferentialChecking(false);
+            RandomStreams.reset();
+            SystemIO.resetFiles();
+            SystemIO.resetInput();
+        }
+
+        // Where this JVM loaded the simulator classes and their resources from.
+        private static URL[] classPath() {
+            String[] entries = System.getProperty("java.class.path").split(File.pathSeparator);
+            URL[] urls = new URL[entries.length];
+            for (int i = 0; i < entries.length; i++) {
+                try {
+                    urls[i] = new File(entries[i]).toURI().toURL();
+                } catch (MalformedURLException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return urls;
+        }
+
+        private static synchronized void routeStandardStreams() throws UnsupportedEncodingException {
+            if (!streamsRouted) {
+                System.setIn(new RoutedInputStream(System.in));
+                System.setOut(new PrintStream(new RoutedOutputStream(System.out), true, CHARSET));
+                System.setErr(new PrintStream(new RoutedOutputStream(System.err), true, CHARSET));
+                streamsRouted = true;
+            }
+        }
+
+        /**
+         * Outcome of one run.
+         */
+        static class Result {
+            private final int exitCode;
+            private final long instructionCount;
+
+            Result(int exitCode, long instructionCount) {
+                this.exitCode = exitCode;
+                this.instructionCount = instructionCount;
+            }
+
+            /**
+             * @return the exit code the command-line run would have ended the JVM with
+             */
+            int getExitCode() {
+                return exitCode;
+            }
+
+            /**
+             * @return number of instructions executed
+             */
+            long getInstructionCount() {
+                return instructionCount;
+            }
+        }
+
+        // System.in once routed: the current thread's program input, if it has one.
+        private static class RoutedInputStream extends InputStream {
+            private final InputStream fallback;
+
+            RoutedInputStream(InputStream fallback) {
+                this.fallback = fallback;
+            }
+
+            private InputStream target() {
+                InputStream in = threadInput.get();
+                return (in == null) ? fallback : in;
+            }
+
+            public int read() throws IOException {
+                return target().read();
+            }
+
+            public int read(byte[] b, int off, int len) throws IOException {
+                return target().read(b, off, len);
+            }
+
+            public int available() throws IOException {
+                return target().available();
+            }
+        }
+
+        // System.out and System.err once routed: the current thread's program output, if
+        // it has one.
+        private static class RoutedOutputStream extends OutputStream {
+            private final OutputStream fallback;
+
+            RoutedOutputStream(OutputStream fallback) {
+                this.fallback = fallback;
+            }
+
+            private OutputStream target() {
+                OutputStream o = threadOutput.get();
+                return (o == null) ? fallback : o;
+            }
+
+            public void write(int b) throws IOException {
+                target().write(b);
+            }
+
+            public void write(byte[] b, int off, int len) throws IOException {
+                target().write(b, off, len);
+            }
+
+            public void flush() throws IOException {
+                target().flush();
+            }
+        }
+    }
+}
@@ -106,6 +106,9 @@ public class Globals {
     static VenusUI gui = null;
     // List these first because they are referenced by methods called at initialization.
     private static String configPropertiesFile = "Config";
+    // Properties files already read, by name.  They are resources and do not change while
+    // running, and Settings alone looks up dozens of entries at startup.
+    private static final HashMap propertiesFiles = new HashMap();
     /**
      * List of accepted file extensions for MIPS assembly source files.
      */
@@ -217,7 +220,7 @@ public class Globals {
     // Default value is returned if property file or name not found.
     private static int getIntegerProperty(String propertiesFile, String propertyName, int defaultValue) {
         int limit = defaultValue;  // just in case no entry is found
-        Properties properties = PropertiesFile.loadPropertiesFromFile(propertiesFile);
+        Properties properties = getProperties(propertiesFile);
         try {
             limit = Integer.parseInt(properties.getProperty(propertyName, Integer.toString(defaultValue)));
         } catch (NumberFormatException nfe) {
@@ -270,7 +273,19 @@ public class Globals {
      * @return String containing associated value; null if property not found
      */
     public static String getPropertyEntry(String propertiesFile, String propertyName) {
-        return PropertiesFile.loadPropertiesFromFile(propertiesFile).getProperty(propertyName);
+        return getProperties(propertiesFile).getProperty(propertyName);
+    }
+
+    // Read the given properties file the first time it is asked for.
+    private static Properties getProperties(String propertiesFile) {
+        synchronized (propertiesFiles) {
+            Properties properties = (Properties) propertiesFiles.get(propertiesFile);
+            if (properties == null) {
+                properties = PropertiesFile.loadPropertiesFromFile(propertiesFile);
+                propertiesFiles.put(propertiesFile, properties);
+            }
+            return properties;
+        }
     }
 
     /**
@@ -280,7 +295,7 @@ public class Globals {
      */
     public ArrayList getSyscallOverrides() {
         ArrayList overrides = new ArrayList();
-        Properties properties = PropertiesFile.loadPropertiesFromFile(syscallPropertiesFile);
+        Properties properties = getProperties(syscallPropertiesFile);
         Enumeration keys = properties.keys();
         while (keys.hasMoreElements()) {
             String key = (String) keys.nextElement();
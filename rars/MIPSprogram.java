@@ -3,8 +3,10 @@ package rars;
 import rars.assembler.*;
 import rars.simulator.*;
 import rars.mips.hardware.*;
+import rars.util.*;
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.io.*;
 import javax.swing.*;
 
@@ -60,6 +62,9 @@ public class MIPSprogram {
     private MacroPool macroPool;
     private ArrayList<SourceLine> sourceLineList;
     private Tokenizer tokenizer;
+    // Programs returned by the last prepareFilesForAssembly(), by file name; see readAndTokenize()
+    private static final HashMap lastPrepared = new HashMap();
+    private static ExecutorService tokenizers; // daemon threads, one per processor; created on first use
 
     /**
      * Produces list of source statements that comprise the program.
@@ -229,7 +234,7 @@ public class MIPSprogram {
         String line;
         int lengthSoFar = 0;
         try {
-            inputFile = new BufferedReader(new FileReader(file));
+            inputFile = new BufferedReader(new InputStreamReader(new FileInputStream(file), SystemIO.getCharset()));
             line = inputFile.readLine();
             while (line != null) {
                 sourceList.add(line);
@@ -279,11 +284,40 @@ public class MIPSprogram {
             filenames.add(0, exceptionHandler);
             leadFilePosition = 1;
         }
-        for (int i = 0; i < filenames.size(); i++) {
-            String filename = (String) filenames.get(i);
-            MIPSprogram preparee = (filename.equals(leadFilename)) ? this : new MIPSprogram();
-            preparee.readSource(filename);
-            preparee.tokenize();
+        MIPSprogram[] preparees = new MIPSprogram[filenames.size()];
+        MIPSprogram[] previous = new MIPSprogram[preparees.length];
+        HashSet reused = new HashSet();
+        int leadCount = 0;
+        for (int i = 0; i < preparees.length; i++) {
+            preparees[i] = (filenames.get(i).equals(leadFilename)) ? this : new MIPSprogram();
+            if (preparees[i] == this) {
+                leadCount++;
+            } else {
+                // a program kept from the last call may stand in for one file only
+                synchronized (lastPrepared) {
+                    previous[i] = (MIPSprogram) lastPrepared.get(filenames.get(i));
+                }
+                if (previous[i] != null && !reused.add(previous[i])) {
+                    previous[i] = null;
+                }
+            }
+        }
+        // Listing the lead file twice gives "this" two jobs, which must not overlap.
+        if (preparees.length == 1 || leadCount > 1) {
+            for (int i = 0; i < preparees.length; i++) {
+                preparees[i] = readAndTokenize(preparees[i], (String) filenames.get(i), previous[i]);
+            }
+        } else {
+            readAndTokenizeInParallel(preparees, filenames, previous);
+        }
+        synchronized (lastPrepared) {
+            lastPrepared.clear();
+            for (int i = 0; i < preparees.length; i++) {
+                lastPrepared.put(filenames.get(i), preparees[i]);
+            }
+        }
+        for (int i = 0; i < preparees.length; i++) {
+            MIPSprogram preparee = preparees[i];
             // I want "this" MIPSprogram to be the first in the list...except for exception handler
             if (preparee == this && MIPSprogramsToAssemble.size() > 0) {
                 MIPSprogramsToAssemble.add(leadFilePosition, preparee);
@@ -294,6 +328,102 @@ public class MIPSprogram {
         return MIPSprogramsToAssemble;
     }
 
+    // Read the file into the given program and tokenize it -- unless the program prepared
+    // from that file by the last call has the same source, included files and all.  Then
+    // that program is returned instead, with its token lists, so that reassembling after
+    // editing one file of a project only tokenizes that file again.
+    private static MIPSprogram readAndTokenize(MIPSprogram preparee, String filename, MIPSprogram previous) throws ProcessingException {
+        preparee.readSource(filename);
+        if (previous != null && previous.hasSameSource(preparee.getSourceList())) {
+            return previous;
+        }
+        preparee.tokenize();
+        return preparee;
+    }
+
+    // Whether this tokenized program was made from the given source, and the files it
+    // includes are unchanged since.
+    private boolean hasSameSource(ArrayList source) {
+        if (tokenizer == null || tokenList == null || !source.equals(sourceList)) {
+            return false;
+        }
+        Iterator included = tokenizer.getIncludedSources().entrySet().iterator();
+        while (included.hasNext()) {
+            Map.Entry entry = (Map.Entry) included.next();
+            MIPSprogram current = new MIPSprogram();
+            try {
+                current.readSource((String) entry.getKey());
+            } catch (ProcessingException e) {
+                return false;
+            }
+            if (!current.getSourceList().equals(entry.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Files are read and tokenized independently (each includes what it needs), so do
+    // them all at once on a shared pool of daemon threads.  Once every file is done, throw
+    // the exception of the first file in list order that failed, as a sequential loop would.
+    private static void readAndTokenizeInParallel(final MIPSprogram[] preparees, ArrayList filenames,
+                                                  MIPSprogram[] previous) throws ProcessingException {
+        final Throwable[] failures = new Throwable[preparees.length];
+        Future[] tasks = new Future[preparees.length];
+        ExecutorService pool = getTokenizers();
+        for (int i = 0; i < preparees.length; i++) {
+            final int index = i;
+            final MIPSprogram preparee = preparees[i];
+            final String filename = (String) filenames.get(i);
+            final MIPSprogram previousPreparee = previous[i];
+            tasks[i] = pool.submit(new Runnable() {
+                public void run() {
+                    try {
+                        preparees[index] = readAndTokenize(preparee, filename, previousPreparee);
+                    } catch (Throwable e) {
+                        failures[index] = e;
+                    }
+                }
+            });
+        }
+        boolean interrupted = false;
+        for (int i = 0; i < tasks.length; i++) {
+            try {
+                tasks[i].get();
+            } catch (InterruptedException e) {
+                interrupted = true;
+                i--; // still wait for it
+            } catch (ExecutionException e) {
+            } // will not occur, run() catches everything
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        for (int i = 0; i < failures.length; i++) {
+            if (failures[i] instanceof ProcessingException) {
+                throw (ProcessingException) failures[i];
+            } else if (failures[i] instanceof RuntimeException) {
+                throw (RuntimeException) failures[i];
+            } else if (failures[i] instanceof Error) {
+                throw (Error) failures[i];
+            }
+        }
+    }
+
+    private static synchronized ExecutorService getTokenizers() {
+        if (tokenizers == null) {
+            tokenizers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                    new ThreadFactory() {
+                        public Thread newThread(Runnable task) {
+                            Thread thread = new Thread(task, "Tokenizer");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+        return tokenizers;
+    }
+
     /**
      * Assembles the MIPS source program. All files comprising the program must have
      * already been tokenized.  Assembler warnings are not considered errors.
@@ -1,6 +1,7 @@
 package rars;
 
 import rars.venus.*;
+import rars.assembler.*;
 import rars.util.*;
 import rars.mips.dump.*;
 import rars.mips.hardware.*;
@@ -62,6 +63,11 @@ public class MarsLaunch {
      * ae<n>  -- terminate MARS with integer exit code <n> if an assemble error occurs.<br>
      * ascii  -- display memory or register contents interpreted as ASCII
      * b  -- brief - do not display register/memory address along with contents<br>
+     * batch  -- run many programs concurrently; must be the first argument.  Has 2 or 3<br>
+     * arguments, <tt>batch &lt;list&gt; &lt;results&gt; [&lt;threads&gt;]</tt>, where &lt;list&gt; is a<br>
+     * directory of .asm files or a manifest of command lines.  See BatchRunner.<br>
+     * ckpt  -- take a checkpoint of the machine every so many instructions, for rewind.  Option has<br>
+     * 1 argument, <tt>ckpt &lt;n&gt;</tt>.  See CheckpointHistory.<br>
      * d  -- print debugging statements<br>
      * da  -- both a and d<br>
      * db  -- MIPS delayed branching is enabled.<br>
@@ -73,17 +79,48 @@ public class MarsLaunch {
      * are <tt>Binary</tt>, <tt>HexText</tt>, <tt>BinaryText</tt>.<br>
      * h  -- display help.  Use by itself and with no filename</br>
      * hex  -- display memory or register contents in hexadecimal (default)<br>
+     * hot<n>  -- display the <n> most frequently executed instructions (default 10) with their<br>
+     * labels and source lines, and execution totals per instruction and per format.<br>
      * ic  -- display count of MIPS basic instructions 'executed'");
+     * jitcheck  -- compile code as soon as it runs and check each compiled block against the interpreter.<br>
      * mc  -- set memory configuration.  Option has 1 argument, e.g.<br>
      * <tt>mc &lt;config$gt;</tt>, where &lt;config$gt; is <tt>Default</tt><br>
      * for the MARS default 32-bit address space, <tt>CompactDataAtZero</tt> for<br>
      * a 32KB address space with data segment at address 0, or <tt>CompactTextAtZero</tt><br>
-     * for a 32KB address space with text segment at address 0.<br>
+     * for a 32KB address space with text segment at address 0, or <tt>DefaultFlat</tt><br>
+     * for the default address space stored in flat off-heap buffers.<br>
      * me  -- display MARS messages to standard err instead of standard out. Can separate via redirection.</br>
      * nc  -- do not display copyright notice (for cleaner redirected/piped output).</br>
      * np  -- No Pseudo-instructions allowed ("ne" will work also).<br>
+     * njit  -- do not compile frequently executed code to JVM classes during simulation.<br>
+     * npd  -- No Pre-Decoding - fetch and dispatch each statement individually during simulation.<br>
      * p  -- Project mode - assemble all files in the same directory as given file.<br>
+     * record  -- log the result of every syscall that reads input, the time or a random seed to a file.<br>
+     * Option has 1 argument, <tt>record &lt;file&gt;</tt>.  See SyscallLog.<br>
+     * replay  -- take syscall results from a log written by record instead of from their sources, so<br>
+     * the recorded run is repeated exactly and no input is read.  Option has 1 argument, <tt>replay &lt;file&gt;</tt>.<br>
+     * rewind  -- once the program stops, go back to its state after a number of instructions, so<br>
+     * that the register and memory contents displayed are those of then.  Option has 1 argument,<br>
+     * <tt>rewind &lt;k&gt;</tt>.  Takes checkpoints, every million instructions unless ckpt is given.<br>
+     * rewindbp  -- like rewind, but go back to the last time execution reached an address.  Option<br>
+     * has 1 argument, <tt>rewindbp &lt;address&gt;</tt>, where &lt;address&gt; is a number or label.<br>
+     * trace  -- write a binary trace of every instruction executed to a file.  Option has 1 argument,<br>
+     * <tt>trace &lt;file&gt;</tt>.  <tt>tracez &lt;file&gt;</tt> writes it compressed.  See TraceRecorder.<br>
+     * tracedump  -- display a trace as text; must be the first argument.  Has 1 to 3 arguments,<br>
+     * <tt>tracedump &lt;file&gt; [&lt;first&gt; [&lt;count&gt;]]</tt>, to display records from index &lt;first&gt; on.<br>
+     * traceslice  -- copy part of a trace to a new file; must be the first argument.  Has 4 arguments,<br>
+     * <tt>traceslice &lt;file&gt; &lt;newfile&gt; &lt;first&gt; &lt;count&gt;</tt>.<br>
+     * prof  -- sample the running program.  Option has 2 arguments, <tt>prof &lt;n&gt; &lt;file&gt;</tt>:<br>
+     * every &lt;n&gt; instructions the function being executed and its callers are recorded.  At<br>
+     * the end of the run a table of samples per function is displayed and the samples are<br>
+     * written to &lt;file&gt; as collapsed stacks for flame graph tools.  See SamplingProfiler.<br>
      * se<n>  -- terminate MARS with integer exit code <n> if a simulation (run) error occurs.<br>
+     * serve  -- run as a server; must be the first argument.  Has 1 or 2 arguments,<br>
+     * <tt>serve &lt;port&gt; [&lt;threads&gt;]</tt>.  Programs and options arrive as JSON requests<br>
+     * on the localhost port.  See SimulationServer.<br>
+     * startup  -- time starting up: report how long the JVM took to reach Rars, then time setting up<br>
+     * the simulator and assembling a program; must be the first argument.  Has 0 or 1 arguments,<br>
+     * <tt>startup [&lt;file&gt;]</tt>; without a file a one-instruction program is assembled.<br>
      * sm  -- Start execution at Main - Execution will start at program statement globally labeled main.<br>
      * smc  -- Self Modifying Code - Program can write and branch to either text or data segment<br>
      * we  -- assembler Warnings will be considered Errors<br>
@@ -112,13 +149,26 @@ public class MarsLaunch {
     private boolean warningsAreErrors; // Whether assembler warnings should be considered errors.
     private boolean startAtMain; // Whether to start execution at statement labeled 'main'
     private boolean countInstructions; // Whether to count and report number of instructions executed
+    private int hotSpotCount; // Number of most executed instructions to report, 0 for no report
+    private int sampleInterval; // Instructions between profiler samples, 0 for no profiling
+    private String collapsedStacksFile; // File to write profiler samples to
+    private String traceFile; // File to write an execution trace to, null for no trace
+    private boolean compressTrace; // Whether to deflate the execution trace
+    private String syscallLogFile; // File to record syscall results to or replay them from, null for neither
+    private boolean replaySyscalls; // Whether syscallLogFile is to be replayed rather than recorded
+    private long checkpointInterval; // Instructions between checkpoints, 0 for none
+    private long rewindTarget; // Instruction count to go back to once the program stops, -1 for none
+    private String rewindAddress; // Address or label to go back to the last execution of, null for none
     private boolean selfModifyingCode; // Whether to allow self-modifying code (e.g. write to text segment)
+    private boolean preDecodedExecution; // Whether to simulate from pre-decoded text segment records
+    private boolean compileHotBlocks; // Whether to compile frequently executed blocks to JVM classes
+    private boolean checkCompiledBlocks; // Whether to check compiled blocks against the interpreter
     private ArrayList registerDisplayList;
     private ArrayList memoryDisplayList;
     private ArrayList filenameList;
     private MIPSprogram code;
     private int maxSteps;
-    private int instructionCount;
+    private long instructionCount;
     private PrintStream out; // stream for display of command line output
     private ArrayList dumpTriples = null; // each element holds 3 arguments for dump option
     private ArrayList programArgumentList; // optional program args for MIPS program (becomes argc, argv)
@@ -126,6 +176,37 @@ public class MarsLaunch {
     private int simulateErrorExitCode;// MARS command exit code to return if simulation error occurs
 
     public MarsLaunch(String[] args) {
+        this(args, true);
+    }
+
+    /**
+     * Launch the IDE or carry out a command-line run.
+     *
+     * @param args         command-line arguments, as described above
+     * @param exitWhenDone whether a command-line run ends by exiting the JVM with the
+     *                     run's exit code.  If false the constructor returns and the exit
+     *                     code is left in Globals.exitCode (see BatchRunner).
+     */
+    public MarsLaunch(String[] args, boolean exitWhenDone) {
+        int exitCode = -1;
+        if (args.length > 0 && args[0].toLowerCase().equals("batch")) {
+            exitCode = runBatch(args);
+        } else if (args.length > 0 && args[0].toLowerCase().equals("serve")) {
+            exitCode = runServer(args);
+        } else if (args.length > 0 && args[0].toLowerCase().equals("tracedump")) {
+            exitCode = runTraceDump(args);
+        } else if (args.length > 0 && args[0].toLowerCase().equals("traceslice")) {
+            exitCode = runTraceSlice(args);
+        } else if (args.length > 0 && args[0].toLowerCase().equals("startup")) {
+            exitCode = runStartup(args);
+        }
+        if (exitCode >= 0) {
+            if (exitWhenDone) {
+                System.exit(exitCode);
+            }
+            Globals.exitCode = exitCode;
+            return;
+        }
         boolean gui = (args.length == 0);
         Globals.initialize(gui);
         if (gui) {
@@ -142,7 +223,17 @@ public class MarsLaunch {
             warningsAreErrors = false;
             startAtMain = false;
             countInstructions = false;
+            hotSpotCount = 0;
+            sampleInterval = 0;
+            traceFile = null;
+            syscallLogFile = null;
+            checkpointInterval = 0;
+            rewindTarget = -1;
+            rewindAddress = null;
             selfModifyingCode = false;
+            preDecodedExecution = true;
+            compileHotBlocks = true;
+            checkCompiledBlocks = false;
             instructionCount = 0;
             assembleErrorExitCode = 0;
             simulateErrorExitCode = 0;
@@ -162,7 +253,221 @@ public class MarsLaunch {
                 }
                 dumpSegments();
             }
-            System.exit(Globals.exitCode);
+            if (exitWhenDone) {
+                System.exit(Globals.exitCode);
+            }
+        }
+    }
+
+    /////////////////////////////////////////////////////////////
+    // Carry out "batch <list> <results> [<threads>]": simulate every program named by
+    // the list concurrently.  See BatchRunner.  Returns the exit code.
+
+    private int runBatch(String[] args) {
+        out = System.out;
+        if (args.length < 3 || args.length > 4) {
+            out.println("Usage:  Mars batch <manifest file or directory> <results file> [<threads>]");
+            return 1;
+        }
+        int threads = Runtime.getRuntime().availableProcessors();
+        if (args.length == 4) {
+            try {
+                threads = Integer.parseInt(args[3]);
+            } catch (NumberFormatException nfe) {
+                threads = 0;
+            }
+            if (threads < 1) {
+                out.println("Invalid thread count " + args[3]);
+                return 1;
+            }
+        }
+        try {
+            return new BatchRunner(new File(args[1]), new File(args[2]), threads, out).run();
+        } catch (IOException e) {
+            out.println("Cannot read batch list " + args[1] + ": " + e);
+            return 1;
+        }
+    }
+
+    /////////////////////////////////////////////////////////////
+    // Carry out "tracedump <file> [<first> [<count>]]": display the records of an
+    // execution trace, or count of them starting at index first, one per line.
+
+    private int runTraceDump(String[] args) {
+        out = System.out;
+        long[] range = (args.length >= 2 && args.length <= 4) ? parseTraceRange(args, 2) : null;
+        if (range == null) {
+            out.println("Usage:  Mars tracedump <trace file> [<first> [<count>]]");
+            return 1;
+        }
+        try {
+            TraceReader reader = new TraceReader(new File(args[1]));
+            try {
+                warnIfTruncated(reader, args[1]);
+                TraceReader.Record record = new TraceReader.Record();
+                PrintStream text = new PrintStream(new BufferedOutputStream(out, 1 << 16), false);
+                for (long i = range[0]; i - range[0] < range[1] && reader.read(i, record); i++) {
+                    text.println(record);
+                }
+                text.flush();
+            } finally {
+                reader.close();
+            }
+            return 0;
+        } catch (IOException e) {
+            out.println("Cannot read trace " + args[1] + ": " + e.getMessage());
+            return 1;
+        }
+    }
+
+    /////////////////////////////////////////////////////////////
+    // Carry out "startup [<file>]": report the time the JVM took to get here, then time
+    // Globals.initialize and the assembly of a program.  Run it as a fresh process, with
+    // and without a class data sharing archive, to measure what startup costs.
+
+    private int runStartup(String[] args) {
+        out = System.out;
+        if (args.length > 2) {
+            out.println("Usage:  Mars startup [<file>]");
+            return 1;
+        }
+        long jvm = java.lang.management.ManagementFactory.getRuntimeMXBean().getUptime();
+        System.setProperty("java.awt.headless", "true");
+        long start = System.nanoTime();
+        Globals.initialize(false);
+        long initialized = System.nanoTime();
+        File file = null;
+        boolean temporary = (args.length == 1);
+        try {
+            if (temporary) {
+                file = File.createTempFile("rars", ".asm");
+                Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+                try {
+                    writer.write("nop\n");
+                } finally {
+                    writer.close();
+                }
+            } else {
+                file = new File(args[1]);
+            }
+            MemoryConfigurations.setCurrentConfiguration(MemoryConfigurations.getDefaultConfiguration());
+            MIPSprogram program = new MIPSprogram();
+            ArrayList files = new ArrayList();
+            files.add(file.getAbsolutePath());
+            program.assemble(program.prepareFilesForAssembly(files, file.getAbsolutePath(), null), true, false);
+        } catch (IOException e) {
+            out.println("Cannot write a program to assemble: " + e.getMessage());
+            return 1;
+        } catch (ProcessingException e) {
+            out.println(e.errors().generateErrorAndWarningReport());
+            return 1;
+        } finally {
+            if (temporary && file != null) {
+                file.delete();
+            }
+        }
+        long assembled = System.nanoTime();
+        out.println("JVM start to Rars:   " + jvm + " ms");
+        out.println("Globals.initialize:  " + (initialized - start) / 1000000 + " ms");
+        out.println("assembly:            " + (assembled - initialized) / 1000000 + " ms");
+        out.println("total:               " + (jvm + (assembled - start) / 1000000) + " ms");
+        return 0;
+    }
+
+    /////////////////////////////////////////////////////////////
+    // Carry out "traceslice <file> <newfile> <first> <count>": copy count records of an
+    // execution trace, starting at index first, to a new trace file.
+
+    private int runTraceSlice(String[] args) {
+        out = System.out;
+        long[] range = (args.length == 5) ? parseTraceRange(args, 3) : null;
+        if (range == null) {
+            out.println("Usage:  Mars traceslice <trace file> <new trace file> <first> <count>");
+            return 1;
+        }
+        try {
+            TraceReader reader = new TraceReader(new File(args[1]));
+            try {
+                warnIfTruncated(reader, args[1]);
+                TraceRecorder writer = new TraceRecorder(new File(args[2]), reader.isCompressed());
+                try {
+                    TraceReader.Record record = new TraceReader.Record();
+                    for (long i = range[0]; i - range[0] < range[1] && reader.read(i, record); i++) {
+                        writer.append(record);
+                    }
+                } finally {
+                    writer.close();
+                }
+            } finally {
+                reader.close();
+            }
+            return 0;
+        } catch (IOException e) {
+            out.println("Cannot slice trace " + args[1] + ": " + e.getMessage());
+            return 1;
+        }
+    }
+
+    // A recording that was cut short ends part way through a chunk, whose records are lost.
+    private void warnIfTruncated(TraceReader reader, String name) {
+        if (reader.isTruncated()) {
+            System.err.println("Trace " + name + " is truncated; reading its first "
+                    + reader.getRecordCount() + " records");
+        }
+    }
+
+    // Parse the optional <first> and <count> arguments starting at args[from].
+    // Returns {first, count}, the count defaulting to all, or null if they are invalid.
+    private long[] parseTraceRange(String[] args, int from) {
+        long[] range = {0, Long.MAX_VALUE};
+        try {
+            for (int i = 0; i < 2 && from + i < args.length; i++) {
+                range[i] = Long.decode(args[from + i]).longValue();
+            }
+        } catch (NumberFormatException nfe) {
+            return null;
+        }
+        return (range[0] < 0 || range[1] < 0) ? null : range;
+    }
+
+    /////////////////////////////////////////////////////////////
+    // Carry out "serve <port> [<threads>]": assemble and simulate programs sent as JSON
+    // requests to a localhost port until killed.  See SimulationServer.
+
+    private int runServer(String[] args) {
+        out = System.out;
+        if (args.length < 2 || args.length > 3) {
+            out.println("Usage:  Mars serve <port> [<threads>]");
+            return 1;
+        }
+        int port, threads;
+        try {
+            port = Integer.parseInt(args[1]);
+        } catch (NumberFormatException nfe) {
+            port = -1;
+        }
+        if (port < 0 || port > 65535) {
+            out.println("Invalid port " + args[1]);
+            return 1;
+        }
+        threads = Runtime.getRuntime().availableProcessors();
+        if (args.length == 3) {
+            try {
+                threads = Integer.parseInt(args[2]);
+            } catch (NumberFormatException nfe) {
+                threads = 0;
+            }
+            if (threads < 1) {
+                out.println("Invalid thread count " + args[2]);
+                return 1;
+            }
+        }
+        try {
+            new SimulationServer(port, threads, out).serve();
+            return 0;
+        } catch (IOException e) {
+            out.println("Cannot listen on port " + args[1] + ": " + e);
+            return 1;
         }
     }
 
@@ -303,6 +608,77 @@ public class MarsLaunch {
                 }
                 continue;
             }
+            if (args[i].toLowerCase().equals("prof")) {
+                if (args.length <= (i + 2)) {
+                    out.println("Prof command line argument requires a sampling interval and file name.");
+                    argsOK = false;
+                } else {
+                    try {
+                        sampleInterval = Integer.decode(args[++i]).intValue();
+                    } catch (NumberFormatException nfe) {
+                        sampleInterval = 0;
+                    }
+                    collapsedStacksFile = args[++i];
+                    if (sampleInterval <= 0) {
+                        out.println("Invalid sampling interval: " + args[i - 1]);
+                        argsOK = false;
+                    }
+                }
+                continue;
+            }
+            if (args[i].toLowerCase().equals("trace") || args[i].toLowerCase().equals("tracez")) {
+                if (args.length <= (i + 1)) {
+                    out.println("Trace command line argument requires a file name.");
+                    argsOK = false;
+                } else {
+                    compressTrace = args[i].toLowerCase().equals("tracez");
+                    traceFile = args[++i];
+                }
+                continue;
+            }
+            if (args[i].toLowerCase().equals("ckpt") || args[i].toLowerCase().equals("rewind")) {
+                if (args.length <= (i + 1)) {
+                    out.println("Ckpt and rewind command line arguments require an instruction count.");
+                    argsOK = false;
+                } else {
+                    long count;
+                    try {
+                        count = Long.decode(args[i + 1]).longValue();
+                    } catch (NumberFormatException nfe) {
+                        count = -1;
+                    }
+                    if (args[i].toLowerCase().equals("ckpt")) {
+                        checkpointInterval = count;
+                    } else {
+                        rewindTarget = count;
+                    }
+                    if (count < 0 || (count == 0 && args[i].toLowerCase().equals("ckpt"))) {
+                        out.println("Invalid instruction count: " + args[i + 1]);
+                        argsOK = false;
+                    }
+                    i++;
+                }
+                continue;
+            }
+            if (args[i].toLowerCase().equals("rewindbp")) {
+                if (args.length <= (i + 1)) {
+                    out.println("Rewindbp command line argument requires an address or label.");
+                    argsOK = false;
+                } else {
+                    rewindAddress = args[++i];
+                }
+                continue;
+            }
+            if (args[i].toLowerCase().equals("record") || args[i].toLowerCase().equals("replay")) {
+                if (args.length <= (i + 1)) {
+                    out.println("Record and replay command line arguments require a file name.");
+                    argsOK = false;
+                } else {
+                    replaySyscalls = args[i].toLowerCase().equals("replay");
+                    syscallLogFile = args[++i];
+                }
+                continue;
+            }
             if (args[i].toLowerCase().equals("mc")) {
                 String configName = args[++i];
                 MemoryConfiguration config = MemoryConfigurations.getConfigurationByName(configName);
@@ -376,6 +752,18 @@ public class MarsLaunch {
                 pseudo = false;
                 continue;
             }
+            if (args[i].toLowerCase().equals("npd")) {
+                preDecodedExecution = false;
+                continue;
+            }
+            if (args[i].toLowerCase().equals("njit")) {
+                compileHotBlocks = false;
+                continue;
+            }
+            if (args[i].toLowerCase().equals("jitcheck")) {
+                checkCompiledBlocks = true;
+                continue;
+            }
             if (args[i].toLowerCase().equals("we")) { // added 14-July-2008 DPS
                 warningsAreErrors = true;
                 continue;
@@ -392,6 +780,17 @@ public class MarsLaunch {
                 countInstructions = true;
                 continue;
             }
+            if (args[i].toLowerCase().indexOf("hot") == 0) {
+                String s = args[i].substring(3);
+                try {
+                    hotSpotCount = (s.length() == 0) ? 10 : Integer.decode(s).intValue();
+                    if (hotSpotCount > 0) {
+                        continue;
+                    }
+                } catch (NumberFormatException nfe) {
+                    // Let it fall thru and get handled by catch-all
+                }
+            }
 
 
             if (args[i].indexOf("$") == 0) {
@@ -452,6 +851,9 @@ public class MarsLaunch {
         try {
             Globals.getSettings().setBooleanSettingNonPersistent(Settings.DELAYED_BRANCHING_ENABLED, delayedBranching);
             Globals.getSettings().setBooleanSettingNonPersistent(Settings.SELF_MODIFYING_CODE_ENABLED, selfModifyingCode);
+            Globals.getSettings().setBooleanSettingNonPersistent(Settings.PRE_DECODED_EXECUTION, preDecodedExecution);
+            Globals.getSettings().setBooleanSettingNonPersistent(Settings.COMPILE_HOT_BLOCKS, compileHotBlocks);
+            BlockCompiler.setDifferentialChecking(checkCompiledBlocks);
             File mainFile = new File((String) filenameList.get(0)).getAbsoluteFile();// First file is "main" file
             ArrayList filesToAssemble;
             if (assembleProject) {
@@ -493,15 +895,92 @@ public class MarsLaunch {
             if (simulate) {
                 // store program args (if any) in MIPS memory
                 new ProgramArgumentList(programArgumentList).storeProgramArguments();
-                // establish observer if specified
-                establishObserver();
+                // keep execution counts if a hot spot report is wanted
+                Simulator.getInstance().setExecutionProfile((hotSpotCount > 0) ? new ExecutionProfile() : null);
+                Simulator.getInstance().setSamplingProfiler((sampleInterval > 0) ? new SamplingProfiler(sampleInterval) : null);
+                TraceRecorder trace = null;
+                if (traceFile != null) {
+                    try {
+                        trace = new TraceRecorder(new File(traceFile), compressTrace);
+                    } catch (IOException e) {
+                        out.println("Cannot create trace file " + traceFile + ": " + e.getMessage());
+                        return programRan;
+                    }
+                }
+                Simulator.getInstance().setTraceRecorder(trace);
+                CheckpointHistory history = null;
+                if (checkpointInterval > 0 || rewindTarget >= 0 || rewindAddress != null) {
+                    history = new CheckpointHistory((checkpointInterval > 0) ? checkpointInterval : CheckpointHistory.DEFAULT_INTERVAL,
+                            CheckpointHistory.DEFAULT_MAX_CHECKPOINTS);
+                }
+                Simulator.getInstance().setCheckpointHistory(history);
+                File syscallLog = (syscallLogFile != null) ? new File(syscallLogFile) : null;
+                boolean temporaryLog = (syscallLog == null && history != null);
+                if (temporaryLog) {
+                    // Going back re-executes syscalls, which must see the same results as before
+                    try {
+                        syscallLog = File.createTempFile("rars", ".syscalls");
+                    } catch (IOException e) {
+                        out.println("Cannot create syscall log for rewind: " + e.getMessage());
+                        return programRan;
+                    }
+                }
+                if (syscallLog != null) {
+                    try {
+                        if (replaySyscalls) {
+                            SyscallLog.startReplay(syscallLog);
+                        } else {
+                            SyscallLog.startRecording(syscallLog);
+                        }
+                    } catch (IOException e) {
+                        out.println("Cannot " + (replaySyscalls ? "replay" : "record") + " syscall log "
+                                + syscallLog + ": " + e.getMessage());
+                        if (temporaryLog) {
+                            syscallLog.delete();
+                        }
+                        return programRan;
+                    }
+                }
                 if (Globals.debug) {
                     out.println("--------  SIMULATION BEGINS  -----------");
                 }
                 programRan = true;
-                boolean done = code.simulate(maxSteps);
-                if (!done) {
-                    out.println("\nProgram terminated when maximum step limit " + maxSteps + " reached.");
+                try {
+                    if (!code.simulate(maxSteps)) {
+                        if (maxSteps > 0 && Simulator.getInstance().getInstructionCount() >= maxSteps) {
+                            out.println("\nProgram terminated when maximum step limit " + maxSteps + " reached.");
+                        } else {
+                            out.println("\nProgram stopped before completion.");
+                        }
+                    }
+                } finally {
+                    instructionCount = Simulator.getInstance().getInstructionCount();
+                    if (trace != null) {
+                        Simulator.getInstance().setTraceRecorder(null);
+                        try {
+                            trace.close();
+                        } catch (IOException e) {
+                            out.println("Error while writing trace to " + traceFile + ": " + e.getMessage());
+                        }
+                    }
+                    long unused = SyscallLog.getUnusedEntryCount();
+                    if (unused > 0) {
+                        out.println("\nReplay used " + SyscallLog.getEntryCount() + " of "
+                                + (SyscallLog.getEntryCount() + unused) + " recorded syscall results.");
+                    }
+                    if (history != null) {
+                        rewind(history);
+                    }
+                    if (syscallLog != null) {
+                        try {
+                            SyscallLog.stop();
+                        } catch (IOException e) {
+                            out.println("Error while writing syscall log to " + syscallLog + ": " + e.getMessage());
+                        }
+                        if (temporaryLog) {
+                            syscallLog.delete();
+                        }
+                    }
                 }
             }
             if (Globals.debug) {
@@ -541,49 +1020,151 @@ public class MarsLaunch {
         return memoryRange;
     }
 
-    /////////////////////////////////////////////////////////////////
-    // Required for counting instructions executed, if that option is specified.
+    //////////////////////////////////////////////////////////////////////
+    // Displays any specified runtime properties. Initially just instruction count
     // DPS 19 July 2012
-    private void establishObserver() {
+    private void displayMiscellaneousPostMortem() {
         if (countInstructions) {
-            Observer instructionCounter =
-                    new Observer() {
-                        private int lastAddress = 0;
-
-                        public void update(Observable o, Object obj) {
-                            if (obj instanceof AccessNotice) {
-                                AccessNotice notice = (AccessNotice) obj;
-                                if (!notice.accessIsFromMIPS())
-                                    return;
-                                if (notice.getAccessType() != AccessNotice.READ)
-                                    return;
-                                MemoryAccessNotice m = (MemoryAccessNotice) notice;
-                                int a = m.getAddress();
-                                if (a == lastAddress)
-                                    return;
-                                lastAddress = a;
-                                instructionCount++;
-                            }
-                        }
-                    };
+            out.println("\n" + instructionCount);
+        }
+        if (hotSpotCount > 0) {
+            displayHotSpots();
+        }
+        if (sampleInterval > 0) {
+            displayProfile();
+        }
+        if (checkCompiledBlocks) {
+            out.println("\nCompiled blocks checked: " + BlockCompiler.getCheckedCount()
+                    + ", differences: " + BlockCompiler.getMismatchCount());
+        }
+        for (String message : BlockCompiler.takeMessages()) {
+            out.println(message);
+        }
+    }
+
+
+    //////////////////////////////////////////////////////////////////////
+    // Carry out "rewind <k>" or "rewindbp <address>" once the program has stopped, so that
+    // the registers and memory displayed are those after instruction k, or just before the
+    // last execution of the instruction at address.  Execution profiles and samples are
+    // left as they were at the end of the run.
+
+    private void rewind(CheckpointHistory history) {
+        Simulator simulator = Simulator.getInstance();
+        ExecutionProfile profile = simulator.getExecutionProfile();
+        SamplingProfiler profiler = simulator.getSamplingProfiler();
+        simulator.setExecutionProfile(null);
+        simulator.setSamplingProfiler(null);
+        try {
+            if (rewindAddress != null) {
+                int address = code.getLocalSymbolTable().getAddressLocalOrGlobal(rewindAddress);
+                if (address == SymbolTable.NOT_FOUND) {
+                    try {
+                        address = Binary.stringToInt(rewindAddress);
+                    } catch (NumberFormatException nfe) {
+                        out.println("\nCannot rewind to " + rewindAddress + ": not a label or address.");
+                        return;
+                    }
+                }
+                if (simulator.reverseContinue(code, new int[]{address})) {
+                    out.println("\nRewound to instruction " + history.getPosition() + ", the last to reach "
+                            + rewindAddress + ".");
+                } else {
+                    out.println("\nExecution never reached " + rewindAddress + "; rewound to the start.");
+                }
+            } else if (rewindTarget >= 0) {
+                long target = Math.min(rewindTarget, history.getPosition());
+                long from = history.getCheckpointPosition(target);
+                simulator.goToInstruction(code, target);
+                out.println("\nRewound to the state after " + history.getPosition()
+                        + " instructions, from the checkpoint after " + from + ".");
+            }
+        } catch (ProcessingException e) {
+            out.println(e.errors().generateErrorAndWarningReport());
+            out.println("Rewind terminated due to errors.");
+        } catch (IOException e) {
+            out.println("Cannot rewind syscall log: " + e.getMessage());
+        } finally {
+            history.stop();
+            simulator.setCheckpointHistory(null);
+            simulator.setExecutionProfile(profile);
+            simulator.setSamplingProfiler(profiler);
+        }
+    }
+
+
+    //////////////////////////////////////////////////////////////////////
+    // Displays the most frequently executed instructions, each with its label
+    // and source line, followed by execution totals per instruction and per
+    // instruction format.
+
+    private void displayHotSpots() {
+        ExecutionProfile profile = Simulator.getInstance().getExecutionProfile();
+        long total = profile.getTotal();
+        int[] hotSpots = profile.getHotSpots(hotSpotCount);
+        out.println("\nHot spots: " + hotSpots.length + " most executed of " + total + " instructions");
+        out.println(String.format("%12s %6s  %-10s  %-24s %s", "count", "%", "address", "label", "source"));
+        for (int i = 0; i < hotSpots.length; i++) {
+            int address = hotSpots[i];
+            long count = profile.getCount(address);
+            String label = "";
+            String source = "";
             try {
-                Globals.memory.addObserver(instructionCounter, Memory.textBaseAddress, Memory.textLimitAddress);
+                ProgramStatement statement = Globals.memory.getStatementNoNotify(address);
+                if (statement != null) {
+                    MIPSprogram program = statement.getSourceMIPSprogram();
+                    Symbol symbol = (program == null)
+                            ? Globals.symbolTable.getTextSymbolAtOrBelow(address)
+                            : program.getLocalSymbolTable().getTextSymbolAtOrBelowLocalOrGlobal(address);
+                    if (symbol != null) {
+                        label = symbol.getName() + ((symbol.getAddress() == address) ? ""
+                                : "+" + (address - symbol.getAddress()));
+                    }
+                    source = (program == null) ? statement.getPrintableBasicAssemblyStatement()
+                            : new File(program.getFilename()).getName() + ":" + statement.getSourceLine() + "  " + statement.getSource().trim();
+                }
             } catch (AddressErrorException aee) {
-                out.println("Internal error: MarsLaunch uses incorrect text segment address for instruction observer");
+            } // will not occur, the address was executed
+            out.println(String.format("%12d %6.2f  %-10s  %-24s %s", count, 100.0 * count / total,
+                    Binary.intToHexString(address), label, source));
+        }
+        out.println("\nInstructions executed, by instruction:");
+        displayCountsByDecreasingCount(profile.getInstructionCounts(), total);
+        out.println("\nInstructions executed, by format:");
+        displayCountsByDecreasingCount(profile.getFormatCounts(), total);
+    }
+
+    private void displayCountsByDecreasingCount(final Map counts, long total) {
+        ArrayList keys = new ArrayList(counts.keySet());
+        Collections.sort(keys, new Comparator() {
+            public int compare(Object a, Object b) {
+                int order = ((Long) counts.get(b)).compareTo((Long) counts.get(a));
+                return (order != 0) ? order : a.toString().compareTo(b.toString());
             }
+        });
+        for (int i = 0; i < keys.size(); i++) {
+            long count = ((Long) counts.get(keys.get(i))).longValue();
+            out.println(String.format("%12d %6.2f  %s", count, 100.0 * count / total, keys.get(i)));
         }
     }
 
     //////////////////////////////////////////////////////////////////////
-    // Displays any specified runtime properties. Initially just instruction count
-    // DPS 19 July 2012
-    private void displayMiscellaneousPostMortem() {
-        if (countInstructions) {
-            out.println("\n" + instructionCount);
+    // Displays the samples per function taken by the profiler and writes
+    // all samples, as collapsed stacks, to the file given with "prof".
+
+    private void displayProfile() {
+        SamplingProfiler profiler = Simulator.getInstance().getSamplingProfiler();
+        out.println();
+        profiler.writeFunctionTable(out);
+        try {
+            PrintStream stacks = new PrintStream(new BufferedOutputStream(new FileOutputStream(collapsedStacksFile)));
+            profiler.writeCollapsedStacks(stacks);
+            stacks.close();
+        } catch (IOException e) {
+            out.println("Error while writing profile to " + collapsedStacksFile + ": " + e.getMessage());
         }
     }
 
-
     //////////////////////////////////////////////////////////////////////
     // Displays requested register or registers
 
@@ -766,6 +1347,11 @@ public class MarsLaunch {
         out.println("  ae<n>  -- terminate MARS with integer exit code <n> if an assemble error occurs.");
         out.println("  ascii  -- display memory or register contents interpreted as ASCII codes.");
         out.println("      b  -- brief - do not display register/memory address along with contents");
+        out.println("  batch <list> <results> [<n>] -- must be first: simulate the programs in <list>");
+        out.println("            concurrently on <n> threads, writing exit codes, instruction counts");
+        out.println("            and output to file <results>.  <list> is a directory of .asm files");
+        out.println("            (input from same-named .in files) or a file of command lines, one");
+        out.println("            per program, each optionally ending in '< inputfile'.");
         out.println("      d  -- display MARS debugging statements");
         out.println("     db  -- MIPS delayed branching is enabled");
         out.println("    dec  -- display memory or register contents in decimal.");
@@ -777,19 +1363,50 @@ public class MarsLaunch {
         out.println("            <format> = " + formats);
         out.println("      h  -- display this help.  Use by itself with no filename.");
         out.println("    hex  -- display memory or register contents in hexadecimal (default)");
+        out.println("  hot<n> -- display the <n> most executed instructions (default 10) with label and");
+        out.println("            source line, and execution totals per instruction and per format");
         out.println("     ic  -- display count of MIPS basic instructions 'executed'");
+        out.println("jitcheck -- compile code as soon as it runs and check it against the interpreter");
         out.println("     mc <config>  -- set memory configuration.  Argument <config> is");
         out.println("            case-sensitive and possible values are: Default for the default");
         out.println("            32-bit address space, CompactDataAtZero for a 32KB memory with");
         out.println("            data segment at address 0, or CompactTextAtZero for a 32KB");
-        out.println("            memory with text segment at address 0.");
+        out.println("            memory with text segment at address 0, or DefaultFlat for the");
+        out.println("            default address space kept in flat off-heap buffers.");
         out.println("     me  -- display MARS messages to standard err instead of standard out. ");
         out.println("            Can separate messages from program output using redirection");
         out.println("     nc  -- do not display copyright notice (for cleaner redirected/piped output).");
         out.println("     np  -- use of pseudo instructions and formats not permitted");
+        out.println("   njit  -- do not compile frequently executed code to JVM classes when simulating");
+        out.println("    npd  -- no pre-decoding: fetch and dispatch each statement individually when simulating");
         out.println("      p  -- Project mode - assemble all files in the same directory as given file.");
+        out.println("   prof <n> <file> -- sample the function being executed, and its callers, every <n>");
+        out.println("            instructions.  Displays samples per function at the end of the run and");
+        out.println("            writes the samples to <file> as collapsed stacks for flame graph tools.");
+        out.println("   ckpt <n> -- checkpoint the machine every <n> instructions so rewind and rewindbp");
+        out.println("            can go back quickly.  Default is every million instructions.");
+        out.println("  rewind <k> -- once the program stops, go back to its state after <k> instructions;");
+        out.println("            registers and memory displayed are those of then.");
+        out.println("  rewindbp <address> -- once the program stops, go back to the last time execution");
+        out.println("            reached <address>, a number or label.");
+        out.println("  record <file> -- log the results of syscalls that read input, the time or a");
+        out.println("            random seed to <file>, for replay.");
+        out.println("  replay <file> -- take syscall results from a log made by record, repeating the");
+        out.println("            recorded run exactly without reading any input.");
         out.println("  se<n>  -- terminate MARS with integer exit code <n> if a simulation (run) error occurs.");
+        out.println("  serve <port> [<n>] -- must be first: serve JSON assemble/run requests on");
+        out.println("            localhost <port>, <n> at a time, until killed.  One request per line,");
+        out.println("            e.g. {\"source\":\"...\",\"stdin\":\"...\",\"args\":[\"ic\"],\"steps\":1000}");
         out.println("     sm  -- start execution at statement with global label main, if defined");
+        out.println("  startup [<file>] -- must be first: time JVM startup, simulator setup and");
+        out.println("            assembling <file> (default a one-instruction program).");
+        out.println("  trace <file> -- write a binary trace of every instruction executed to <file>:");
+        out.println("            program counter, instruction, register written, memory accessed.");
+        out.println("            Use tracez instead of trace to write it compressed.");
+        out.println("  tracedump <file> [<first> [<count>]] -- must be first: display the records");
+        out.println("            of a trace as text, optionally only <count> of them from index <first>.");
+        out.println("  traceslice <file> <newfile> <first> <count> -- must be first: copy <count>");
+        out.println("            records of a trace, from index <first>, to a new trace file.");
         out.println("    smc  -- Self Modifying Code - Program can write and branch to either text or data segment");
         out.println("    <n>  -- where <n> is an integer maximum count of steps to simulate.");
         out.println("            If 0, negative or not specified, there is no maximum.");
@@ -151,6 +151,16 @@ public class Settings extends Observable {
      * execute that code.
      */
     public static final int SELF_MODIFYING_CODE_ENABLED = 20;
+    /**
+     * Flag to control whether or not the simulator runs text segment instructions from
+     * pre-decoded records instead of fetching and dispatching each ProgramStatement.
+     */
+    public static final int PRE_DECODED_EXECUTION = 21;
+    /**
+     * Flag to control whether or not frequently executed basic blocks are compiled to
+     * JVM classes.  Only has an effect with pre-decoded execution.
+     */
+    public static final int COMPILE_HOT_BLOCKS = 22;
     /**
      * Current specified exception handler file (a MIPS assembly source file)
      */
@@ -314,7 +324,7 @@ public class Settings extends Observable {
      */
     public static boolean[] defaultBooleanSettingsValues = { // match the above list by position
             true, false, false, false, false, true, true, false, false,
-            true, false, false, true, true, false, true, true, false, false, true, false};
+            true, false, false, true, true, false, true, true, false, false, true, false, true, true};
     /* Properties file used to hold default settings. */
     private static String settingsFile = "Settings";
     // NOTE: key sequence must match up with labels above which are used for array indexes!
@@ -324,7 +334,8 @@ public class Settings extends Observable {
             "WarningsAreErrors", "ProgramArguments", "DataSegmentHighlighting",
             "RegistersHighlighting", "StartAtMain", "EditorCurrentLineHighlighting",
             "PopupInstructionGuidance", "PopupSyscallInput", "GenericTextEditor",
-            "AutoIndent", "SelfModifyingCode"};
+            "AutoIndent", "SelfModifyingCode", "PreDecodedExecution",
+            "CompileHotBlocks"};
     /**
      * Last resort default values for String settings;
      * will use only if neither the Preferences nor the properties file work.
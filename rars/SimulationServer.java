@@ -0,0 +1,599 @@
+package rars;
+
+import rars.mips.hardware.*;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/*
+Copyright (c) 2018,  Yueyan Zhao
+
+Permission is hereby granted, free of charge, to any person obtaining 
+a copy of this software and associated documentation files (the 
+"Software"), to deal in the Software without restriction, including 
+without limitation the rights to use, copy, modify, merge, publish, 
+distribute, sublicense, and/or sell copies of the Software, and to 
+permit persons to whom the Software is furnished to do so, subject 
+to the following conditions:
+
+The above copyright notice and this permission notice shall be 
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, 
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF 
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. 
+IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR 
+ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF 
+CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION 
+WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+(MIT license, http://www.opensource.org/licenses/mit-license.html)
+ */
+
+/**
+ * Long-running server that assembles and simulates programs on request, so that the
+ * cost of starting a JVM and loading the instruction set is paid once rather than per
+ * program.  It listens on a localhost TCP port.  A client sends one request per line,
+ * as a JSON object, and receives one JSON object per line in reply; a connection may
+ * carry any number of requests.
+ * <p>
+ * Request members, all optional except that one of source and files must be given:
+ * <ul>
+ * <li><tt>source</tt>: program text, assembled as a single file</li>
+ * <li><tt>files</tt>: array of source file paths, relative to the server's directory and
+ * not going above it</li>
+ * <li><tt>stdin</tt>: text given to the program as standard input</li>
+ * <li><tt>args</tt>: array of further command-line options, e.g. <tt>["ic", "smc"]</tt>.
+ * Only options that name no file and need no state beyond the run are accepted: display
+ * formats, registers and memory ranges to display, and options that change how the
+ * program is assembled or run (see ALLOWED_OPTIONS).</li>
+ * <li><tt>steps</tt>: maximum number of instructions to execute; MAX_STEPS if absent,
+ * not positive or larger</li>
+ * <li><tt>programArgs</tt>: array of arguments passed to the program (see "pa")</li>
+ * </ul>
+ * Reply members: <tt>exit</tt> (exit code), <tt>instructions</tt> (instructions executed),
+ * <tt>ms</tt> (elapsed time) and <tt>output</tt> (standard output and error), or only
+ * <tt>error</tt> if the request could not be carried out.  A run still going after
+ * TIME_LIMIT milliseconds is stopped, and the reply then also holds <tt>timeout</tt>
+ * with value 1.  Output is kept up to MAX_OUTPUT bytes; if there was more, the reply
+ * also holds <tt>truncated</tt> with value 1.
+ * <p>
+ * Each worker thread serves one connection at a time in a sandbox of its own (see BatchRunner.Sandbox), which is
+ * reset before each run but otherwise stays warm.  All text is UTF-8.
+ */
+
+public class SimulationServer {
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    /**
+     * Most instructions a run may execute, and the limit for requests that give none.
+     */
+    public static final int MAX_STEPS = 100000000;
+    /**
+     * Milliseconds a run may take before it is stopped.
+     */
+    public static final long TIME_LIMIT = 10000;
+    /**
+     * Most bytes of a run's output kept for the reply.
+     */
+    public static final int MAX_OUTPUT = 1 << 20;
+    private static final long RETRY_STOP = 100; // ms between stops until the run ends
+    /**
+     * Options a request may give in <tt>args</tt>, besides register names, memory ranges
+     * and the <tt>ae&lt;n&gt;</tt>, <tt>se&lt;n&gt;</tt>, <tt>hot&lt;n&gt;</tt> and
+     * <tt>mc &lt;config&gt;</tt> options.
+     */
+    public static final Set<String> ALLOWED_OPTIONS = new HashSet<String>(Arrays.asList(
+            "a", "ad", "da", "ascii", "b", "d", "db", "dec", "hex", "ic", "jitcheck", "me", "nc",
+            "ne", "njit", "np", "npd", "sm", "smc", "we"));
+
+    private final int port;
+    private final int threads;
+    private final PrintStream out;
+    private final Timer watchdog = new Timer("Time limit", true);
+
+    /**
+     * @param port    localhost TCP port to listen on; 0 picks a free port
+     * @param threads number of connections served at once
+     * @param out     stream for messages about the server itself
+     */
+    public SimulationServer(int port, int threads, PrintStream out) {
+        this.port = port;
+        this.threads = threads;
+        this.out = out;
+    }
+
+    /**
+     * Serve requests until the JVM is stopped.
+     *
+     * @throws IOException if the port cannot be opened
+     */
+    public void serve() throws IOException {
+        ServerSocket server = new ServerSocket(port, 50, InetAddress.getByName(null));
+        out.println("Listening on " + server.getLocalSocketAddress());
+        final List<BatchRunner.Sandbox> created = Collections.synchronizedList(new ArrayList<BatchRunner.Sandbox>());
+        final ThreadLocal<BatchRunner.Sandbox> sandboxes = new ThreadLocal<BatchRunner.Sandbox>() {
+            protected BatchRunner.Sandbox initialValue() {
+                BatchRunner.Sandbox sandbox = new BatchRunner.Sandbox();
+                created.add(sandbox);
+                return sandbox;
+            }
+        };
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            while (true) {
+                final Socket client = server.accept();
+                pool.execute(new Runnable() {
+                    public void run() {
+                        serveConnection(client, sandboxes.get());
+                    }
+                });
+            }
+        } finally {
+            server.close();
+            pool.shutdown();
+            try {
+                pool.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+            }
+            BatchRunner.Sandbox.closeAll(created);
+        }
+    }
+
+    private void serveConnection(Socket client, BatchRunner.Sandbox sandbox) {
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), CHARSET));
+            Writer reply = new BufferedWriter(new OutputStreamWriter(client.getOutputStream(), CHARSET));
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.trim().length() == 0) {
+                    continue;
+                }
+                reply.write(handle(line, sandbox));
+                reply.write('\n');
+                reply.flush();
+            }
+        } catch (IOException e) {
+            // client went away
+        } finally {
+            try {
+                client.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    // Carry out one request line and return the reply line.
+    private String handle(String line, BatchRunner.Sandbox sandbox) {
+        Map<String, Object> reply = new LinkedHashMap<String, Object>();
+        File sourceFile = null;
+        try {
+            Object parsed = new JsonReader(line).readDocument();
+            if (!(parsed instanceof Map)) {
+                throw new IllegalArgumentException("request must be a JSON object");
+            }
+            Map request = (Map) parsed;
+            List<String> args = new ArrayList<String>();
+            args.add("nc");
+            args.addAll(options(strings(request, "args")));
+            long steps = MAX_STEPS;
+            if (request.get("steps") != null) {
+                steps = ((Long) member(request, "steps", Long.class)).longValue();
+                if (steps <= 0 || steps > MAX_STEPS) {
+                    steps = MAX_STEPS;
+                }
+            }
+            args.add(String.valueOf(steps));
+            if (request.get("source") != null) {
+                sourceFile = File.createTempFile("rars", ".asm");
+                OutputStream source = new FileOutputStream(sourceFile);
+                try {
+                    source.write(((String) member(request, "source", String.class)).getBytes(CHARSET));
+                } finally {
+                    source.close();
+                }
+                args.add(sourceFile.getPath());
+            } else if (request.get("files") != null) {
+                for (String file : strings(request, "files")) {
+                    args.add(checkPath(file));
+                }
+            } else {
+                throw new IllegalArgumentException("request has neither source nor files");
+            }
+            if (request.get("programArgs") != null) {
+                args.add("pa");
+                args.addAll(strings(request, "programArgs"));
+            }
+            String stdin = (request.get("stdin") == null) ? "" : (String) member(request, "stdin", String.class);
+            LimitedOutputStream output = new LimitedOutputStream(MAX_OUTPUT);
+            TimeLimit limit = new TimeLimit(sandbox);
+            long start = System.currentTimeMillis();
+            BatchRunner.Sandbox.Result result;
+            watchdog.schedule(limit, TIME_LIMIT, RETRY_STOP);
+            try {
+                result = sandbox.run(args.toArray(new String[args.size()]),
+                        new ByteArrayInputStream(stdin.getBytes(CHARSET)), output);
+            } finally {
+                limit.finish();
+            }
+            reply.put("exit", Long.valueOf(result.getExitCode()));
+            reply.put("instructions", Long.valueOf(result.getInstructionCount()));
+            reply.put("ms", Long.valueOf(System.currentTimeMillis() - start));
+            reply.put("output", new String(output.toByteArray(), CHARSET));
+            if (limit.hasExpired()) {
+                reply.put("timeout", Long.valueOf(1));
+            }
+            if (output.isTruncated()) {
+                reply.put("truncated", Long.valueOf(1));
+            }
+        } catch (Exception e) {
+            reply.clear();
+            reply.put("error", (e.getMessage() == null) ? e.toString() : e.getMessage());
+        } finally {
+            if (sourceFile != null) {
+                sourceFile.delete();
+            }
+        }
+        return writeJson(reply);
+    }
+
+    // Check that a file named in a request is relative and stays inside the server's
+    // directory.
+    private static String checkPath(String file) {
+        int depth = 0;
+        boolean outside = new File(file).isAbsolute();
+        for (String part : file.split("[/\\\\]")) {
+            if (part.equals("..")) {
+                depth--;
+                outside |= depth < 0;
+            } else if (part.length() > 0 && !part.equals(".")) {
+                depth++;
+            }
+        }
+        if (outside) {
+            throw new IllegalArgumentException("file \"" + file + "\" is outside the server's directory");
+        }
+        return file;
+    }
+
+    // Check the options of a request's args against ALLOWED_OPTIONS.
+    private static List<String> options(List<String> args) {
+        for (int i = 0; i < args.size(); i++) {
+            String option = args.get(i).toLowerCase();
+            if (option.equals("mc") && i + 1 < args.size()) {
+                i++; // configuration name
+            } else if (!ALLOWED_OPTIONS.contains(option) && !option.matches("(ae|se)[0-9]+|hot[0-9]*")
+                    && !option.matches("(0x)?[0-9a-f]+-(0x)?[0-9a-f]+") && !isRegister(args.get(i))) {
+                throw new IllegalArgumentException("option \"" + args.get(i) + "\" is not allowed");
+            }
+        }
+        return args;
+    }
+
+    private static boolean isRegister(String name) {
+        if (name.length() == 0) {
+            return false;
+        }
+        String withDollar = (name.charAt(0) == '$') ? name : "$" + name;
+        return RegisterFile.getUserRegister(name) != null || RegisterFile.getUserRegister(withDollar) != null
+                || Coprocessor1.getRegister(name) != null || Coprocessor1.getRegister(withDollar) != null;
+    }
+
+    private static Object member(Map request, String name, Class type) {
+        Object value = request.get(name);
+        if (!type.isInstance(value)) {
+            throw new IllegalArgumentException("\"" + name + "\" has the wrong type");
+        }
+        return value;
+    }
+
+    private static List<String> strings(Map request, String name) {
+        List<String> result = new ArrayList<String>();
+        if (request.get(name) != null) {
+            for (Object o : (List) member(request, name, List.class)) {
+                if (!(o instanceof String)) {
+                    throw new IllegalArgumentException("\"" + name + "\" must hold only strings");
+                }
+                result.add((String) o);
+            }
+        }
+        return result;
+    }
+
+    // Replies only hold strings and integers.
+    private static String writeJson(Map<String, Object> object) {
+        StringBuilder sb = new StringBuilder("{");
+        for (Map.Entry<String, Object> member : object.entrySet()) {
+            if (sb.length() > 1) {
+                sb.append(',');
+            }
+            writeJsonString(sb, member.getKey());
+            sb.append(':');
+            if (member.getValue() instanceof String) {
+                writeJsonString(sb, (String) member.getValue());
+            } else {
+                sb.append(member.getValue());
+            }
+        }
+        return sb.append('}').toString();
+    }
+
+    private static void writeJsonString(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        sb.append('"');
+    }
+
+    // Stops a run in a sandbox once its time is up, and again every RETRY_STOP ms in case
+    // the run was still being assembled, until finish() is called.
+    private static class TimeLimit extends TimerTask {
+        private final BatchRunner.Sandbox sandbox;
+        private boolean finished = false;
+        private boolean expired = false;
+
+        TimeLimit(BatchRunner.Sandbox sandbox) {
+            this.sandbox = sandbox;
+        }
+
+        public synchronized void run() {
+            if (!finished) {
+                expired = true;
+                try {
+                    sandbox.stop();
+                } catch (Exception e) {
+                }
+            }
+        }
+
+        // Once this returns, the sandbox is not stopped again.
+        synchronized void finish() {
+            finished = true;
+            cancel();
+        }
+
+        synchronized boolean hasExpired() {
+            return expired;
+        }
+    }
+
+    // Keeps the first bytes written to it, up to a limit, and drops the rest.
+    private static class LimitedOutputStream extends ByteArrayOutputStream {
+        private final int limit;
+        private boolean truncated = false;
+
+        LimitedOutputStream(int limit) {
+            this.limit = limit;
+        }
+
+        public synchronized void write(int b) {
+            if (count < limit) {
+                super.write(b);
+            } else {
+                truncated = true;
+            }
+        }
+
+        public synchronized void write(byte[] b, int off, int len) {
+            int kept = Math.min(len, limit - count);
+            if (kept > 0) {
+                super.write(b, off, kept);
+            }
+            if (kept < len) {
+                truncated = true;
+            }
+        }
+
+        synchronized boolean isTruncated() {
+            return truncated;
+        }
+    }
+
+    // Just enough of a JSON reader for requests: objects become Maps, arrays Lists,
+    // numbers Longs (only integers are accepted), plus Strings, Booleans and null.
+    private static class JsonReader {
+        private final String text;
+        private int position;
+
+        JsonReader(String text) {
+            this.text = text;
+        }
+
+        Object readDocument() {
+            Object value = readValue();
+            skipSpace();
+            if (position != text.length()) {
+                throw error("unexpected text after JSON value");
+            }
+            return value;
+        }
+
+        private Object readValue() {
+            skipSpace();
+            if (position >= text.length()) {
+                throw error("unexpected end of JSON");
+            }
+            char c = text.charAt(position);
+            if (c == '{') {
+                return readObject();
+            } else if (c == '[') {
+                return readArray();
+            } else if (c == '"') {
+                return readString();
+            } else if (c == '-' || (c >= '0' && c <= '9')) {
+                return readNumber();
+            } else if (text.startsWith("true", position)) {
+                position += 4;
+                return Boolean.TRUE;
+            } else if (text.startsWith("false", position)) {
+                position += 5;
+                return Boolean.FALSE;
+            } else if (text.startsWith("null", position)) {
+                position += 4;
+                return null;
+            }
+            throw error("unexpected character '" + c + "'");
+        }
+
+        private Map<String, Object> readObject() {
+            Map<String, Object> object = new LinkedHashMap<String, Object>();
+            position++; // {
+            skipSpace();
+            if (peek() == '}') {
+                position++;
+                return object;
+            }
+            while (true) {
+                skipSpace();
+                if (peek() != '"') {
+                    throw error("expected member name");
+                }
+                String name = readString();
+                skipSpace();
+                expect(':');
+                object.put(name, readValue());
+                skipSpace();
+                if (peek() == ',') {
+                    position++;
+                } else {
+                    expect('}');
+                    return object;
+                }
+            }
+        }
+
+        private List<Object> readArray() {
+            List<Object> array = new ArrayList<Object>();
+            position++; // [
+            skipSpace();
+            if (peek() == ']') {
+                position++;
+                return array;
+            }
+            while (true) {
+                array.add(readValue());
+                skipSpace();
+                if (peek() == ',') {
+                    position++;
+                } else {
+                    expect(']');
+                    return array;
+                }
+            }
+        }
+
+        private String readString() {
+            StringBuilder sb = new StringBuilder();
+            position++; // opening quote
+            while (true) {
+                if (position >= text.length()) {
+                    throw error("unterminated string");
+                }
+                char c = text.charAt(position++);
+                if (c == '"') {
+                    return sb.toString();
+                }
+                if (c != '\\') {
+                    sb.append(c);
+                    continue;
+                }
+                if (position >= text.length()) {
+                    throw error("unterminated string");
+                }
+                c = text.charAt(position++);
+                switch (c) {
+                    case 'b':
+                        sb.append('\b');
+                        break;
+                    case 'f':
+                        sb.append('\f');
+                        break;
+                    case 'n':
+                        sb.append('\n');
+                        break;
+                    case 'r':
+                        sb.append('\r');
+                        break;
+                    case 't':
+                        sb.append('\t');
+                        break;
+                    case 'u':
+                        if (position + 4 > text.length()) {
+                            throw error("bad \\u escape");
+                        }
+                        try {
+                            sb.append((char) Integer.parseInt(text.substring(position, position + 4), 16));
+                        } catch (NumberFormatException e) {
+                            throw error("bad \\u escape");
+                        }
+                        position += 4;
+                        break;
+                    default: // " \ /
+                        sb.append(c);
+                }
+            }
+        }
+
+        private Long readNumber() {
+            int start = position;
+            if (peek() == '-') {
+                position++;
+            }
+            while (position < text.length() && Character.isDigit(text.charAt(position))) {
+                position++;
+            }
+            try {
+                return Long.valueOf(text.substring(start, position));
+            } catch (NumberFormatException e) {
+                throw error("bad number");
+            }
+        }
+
+        private void skipSpace() {
+            while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+                position++;
+            }
+        }
+
+        private char peek() {
+            return (position < text.length()) ? text.charAt(position) : 0;
+        }
+
+        private void expect(char c) {
+            if (peek() != c) {
+                throw error("expected '" + c + "'");
+            }
+            position++;
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException("bad request: " + message + " at offset " + position);
+        }
+    }
+}
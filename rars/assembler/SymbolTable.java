@@ -33,7 +33,12 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
  */
 
 /**
- * Creats a table of Symbol objects.
+ * Creats a table of Symbol objects.  Besides the list kept in insertion order, the
+ * table maintains a hash map from label to Symbol and an index of the Symbols sorted
+ * by address, so lookups by name or address and queries for the labels in an address
+ * range do not have to scan the whole table.  Addresses are ordered as unsigned
+ * values, so kernel addresses sort after user addresses.  Symbol addresses must only
+ * be changed through fixSymbolTableAddress(), otherwise the address index goes stale.
  *
  * @author Jason Bumgarner, Jason Shrewsbury
  * @version June 2003
@@ -47,6 +52,16 @@ public class SymbolTable {
     private static String startLabel = "main";
     private String filename;
     private ArrayList table;
+    private HashMap symbolsByName;
+    // Address index: parallel arrays sorted by (address key, sequence).  The key is the
+    // address with its sign bit flipped so that signed int order is unsigned address
+    // order; the sequence number records insertion order, so that among symbols sharing
+    // an address the one added first (the one a scan of table would find) comes first.
+    private int[] addressKeys;
+    private int[] sequences;
+    private Symbol[] addressSymbols;
+    private int indexSize;
+    private int nextSequence;
 
     /**
      * Create a new empty symbol table for given file
@@ -56,7 +71,7 @@ public class SymbolTable {
      */
     public SymbolTable(String filename) {
         this.filename = filename;
-        this.table = new ArrayList();
+        clear();
     }
 
     /**
@@ -85,6 +100,8 @@ public class SymbolTable {
         } else {
             Symbol s = new Symbol(label, address, b);
             table.add(s);
+            symbolsByName.put(label, s);
+            insertIntoAddressIndex(s, nextSequence++);
             if (Globals.debug)
                 System.out.println("The symbol " + label + " with address " + address + " has been added to the " + this.filename + " symbol table.");
         }
@@ -100,13 +117,12 @@ public class SymbolTable {
 
     public void removeSymbol(Token token) {
         String label = token.getValue();
-        for (int i = 0; i < table.size(); i++) {
-            if (((Symbol) (table.get(i))).getName().equals(label)) {
-                table.remove(i);
-                if (Globals.debug)
-                    System.out.println("The symbol " + label + " has been removed from the " + this.filename + " symbol table.");
-                break;
-            }
+        Symbol s = (Symbol) symbolsByName.remove(label);
+        if (s != null) {
+            table.remove(s);
+            removeFromAddressIndex(indexPosition(s));
+            if (Globals.debug)
+                System.out.println("The symbol " + label + " has been removed from the " + this.filename + " symbol table.");
         }
         return;
     }
@@ -118,12 +134,8 @@ public class SymbolTable {
      * @return The memory address of the label given, or NOT_FOUND if not found in symbol table.
      **/
     public int getAddress(String s) {
-        for (int i = 0; i < table.size(); i++) {
-            if (((Symbol) (table.get(i))).getName().equals(s)) {
-                return ((Symbol) table.get(i)).getAddress();
-            }
-        }
-        return NOT_FOUND;
+        Symbol sym = (Symbol) symbolsByName.get(s);
+        return (sym == null) ? NOT_FOUND : sym.getAddress();
     }
 
     /**
@@ -147,12 +159,7 @@ public class SymbolTable {
      **/
 
     public Symbol getSymbol(String s) {
-        for (int i = 0; i < table.size(); i++) {
-            if (((Symbol) (table.get(i))).getName().equals(s)) {
-                return (Symbol) table.get(i);
-            }
-        }
-        return null;
+        return (Symbol) symbolsByName.get(s);
     }
 
     /**
@@ -169,12 +176,87 @@ public class SymbolTable {
         } catch (NumberFormatException e) {
             return null;
         }
-        for (int i = 0; i < table.size(); i++) {
-            if (((Symbol) (table.get(i))).getAddress() == address) {
-                return (Symbol) table.get(i);
+        return getSymbolGivenAddress(address);
+    }
+
+    /**
+     * Produce Symbol object from symbol table that has the given address.  If several
+     * symbols share the address, the one added to the table first is returned.
+     *
+     * @param address the address
+     * @return Symbol object having requested address, null if address not found in symbol table.
+     **/
+
+    public Symbol getSymbolGivenAddress(int address) {
+        int key = address ^ Integer.MIN_VALUE;
+        int i = lowerBound(key);
+        return (i < indexSize && addressKeys[i] == key) ? addressSymbols[i] : null;
+    }
+
+    /**
+     * Produce the text Symbol with the highest address not above the given address, i.e. the
+     * label of the code the address most likely belongs to.  Addresses compare as unsigned
+     * values.  If several text symbols share that address, the one added first is returned.
+     *
+     * @param address the address
+     * @return text Symbol object at or below the address, null if there is none in this table.
+     **/
+
+    public Symbol getTextSymbolAtOrBelow(int address) {
+        int i = lowerBound((address ^ Integer.MIN_VALUE) + 1) - 1;
+        if (address == -1) {
+            i = indexSize - 1; // key would overflow; every symbol is at or below 0xFFFFFFFF
+        }
+        while (i >= 0 && addressSymbols[i].getType()) {
+            i--;
+        }
+        if (i < 0) {
+            return null;
+        }
+        Symbol found = addressSymbols[i];
+        for (int j = i - 1; j >= 0 && addressKeys[j] == addressKeys[i]; j--) {
+            if (!addressSymbols[j].getType()) {
+                found = addressSymbols[j];
             }
         }
-        return null;
+        return found;
+    }
+
+    /**
+     * Produce the text Symbol with the highest address not above the given address from
+     * either the local or the global symbol table, preferring the local one if both
+     * have a symbol at that address.
+     *
+     * @param address the address
+     * @return text Symbol object at or below the address, null if there is none.
+     **/
+    public Symbol getTextSymbolAtOrBelowLocalOrGlobal(int address) {
+        Symbol local = this.getTextSymbolAtOrBelow(address);
+        Symbol global = Globals.symbolTable.getTextSymbolAtOrBelow(address);
+        if (local == null || (global != null
+                && rars.util.Binary.compareUnsigned(global.getAddress(), local.getAddress()) > 0)) {
+            return global;
+        }
+        return local;
+    }
+
+    /**
+     * For obtaining the Symbols whose address lies in the given range, compared as
+     * unsigned values.  Symbols sharing an address are listed in the order they were
+     * added to the table.
+     *
+     * @param lowAddress  lowest address of the range (inclusive)
+     * @param highAddress end of the range (exclusive)
+     * @return An ArrayList of Symbol objects, sorted by address.  Empty if the range is empty.
+     **/
+
+    public ArrayList getSymbolsInRange(int lowAddress, int highAddress) {
+        ArrayList list = new ArrayList();
+        int highKey = highAddress ^ Integer.MIN_VALUE;
+        for (int i = lowerBound(lowAddress ^ Integer.MIN_VALUE); i < indexSize && addressKeys[i] < highKey; i++) {
+            list.add(addressSymbols[i]);
+        }
+        return list;
     }
 
     /**
@@ -251,6 +333,12 @@ public class SymbolTable {
 
     public void clear() {
         table = new ArrayList();
+        symbolsByName = new HashMap();
+        addressKeys = new int[16];
+        sequences = new int[16];
+        addressSymbols = new Symbol[16];
+        indexSize = 0;
+        nextSequence = 0;
     }
 
     /**
@@ -264,11 +352,88 @@ public class SymbolTable {
      */
 
     public void fixSymbolTableAddress(int originalAddress, int replacementAddress) {
-        Symbol label = getSymbolGivenAddress(Integer.toString(originalAddress));
-        while (label != null) {
-            label.setAddress(replacementAddress);
-            label = getSymbolGivenAddress(Integer.toString(originalAddress));
+        if (originalAddress == replacementAddress) {
+            return;
+        }
+        int key = originalAddress ^ Integer.MIN_VALUE;
+        int first = lowerBound(key);
+        int end = first;
+        while (end < indexSize && addressKeys[end] == key) {
+            end++;
+        }
+        if (first == end) {
+            return;
+        }
+        Symbol[] moved = new Symbol[end - first];
+        int[] movedSequences = new int[end - first];
+        System.arraycopy(addressSymbols, first, moved, 0, moved.length);
+        System.arraycopy(sequences, first, movedSequences, 0, moved.length);
+        System.arraycopy(addressKeys, end, addressKeys, first, indexSize - end);
+        System.arraycopy(sequences, end, sequences, first, indexSize - end);
+        System.arraycopy(addressSymbols, end, addressSymbols, first, indexSize - end);
+        indexSize -= moved.length;
+        Arrays.fill(addressSymbols, indexSize, indexSize + moved.length, null);
+        for (int i = 0; i < moved.length; i++) {
+            moved[i].setAddress(replacementAddress);
+            insertIntoAddressIndex(moved[i], movedSequences[i]);
         }
         return;
     }
+
+    // Position of the first index entry whose key is not less than the given key.
+    private int lowerBound(int key) {
+        int low = 0;
+        int high = indexSize;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (addressKeys[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // Position of the given symbol in the address index.
+    private int indexPosition(Symbol s) {
+        for (int i = lowerBound(s.getAddress() ^ Integer.MIN_VALUE); i < indexSize; i++) {
+            if (addressSymbols[i] == s) {
+                return i;
+            }
+        }
+        return -1; // will not occur, every symbol in the table is indexed
+    }
+
+    // Symbols are normally added in ascending address order, so this usually appends.
+    private void insertIntoAddressIndex(Symbol s, int sequence) {
+        int key = s.getAddress() ^ Integer.MIN_VALUE;
+        int i = lowerBound(key);
+        while (i < indexSize && addressKeys[i] == key && sequences[i] < sequence) {
+            i++;
+        }
+        if (indexSize == addressKeys.length) {
+            addressKeys = Arrays.copyOf(addressKeys, indexSize * 2);
+            sequences = Arrays.copyOf(sequences, indexSize * 2);
+            addressSymbols = Arrays.copyOf(addressSymbols, indexSize * 2);
+        }
+        System.arraycopy(addressKeys, i, addressKeys, i + 1, indexSize - i);
+        System.arraycopy(sequences, i, sequences, i + 1, indexSize - i);
+        System.arraycopy(addressSymbols, i, addressSymbols, i + 1, indexSize - i);
+        addressKeys[i] = key;
+        sequences[i] = sequence;
+        addressSymbols[i] = s;
+        indexSize++;
+    }
+
+    private void removeFromAddressIndex(int i) {
+        if (i < 0) {
+            return;
+        }
+        System.arraycopy(addressKeys, i + 1, addressKeys, i, indexSize - i - 1);
+        System.arraycopy(sequences, i + 1, sequences, i, indexSize - i - 1);
+        System.arraycopy(addressSymbols, i + 1, addressSymbols, i, indexSize - i - 1);
+        indexSize--;
+        addressSymbols[indexSize] = null;
+    }
 }
\ No newline at end of file
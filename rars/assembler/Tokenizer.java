@@ -3,6 +3,7 @@ package rars.assembler;
 import rars.*;
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.io.*;
 
 /*
@@ -55,9 +56,18 @@ public class Tokenizer {
     // tab, backspace, return, form feed.  The characters and their corresponding decimal codes:
     private static final String escapedCharacters = "'\"\\ntbrf0";
     private static final String[] escapedCharactersValues = {"39", "34", "92", "10", "9", "8", "13", "12", "0"};
+    // Classifying a candidate token is expensive (register, number, operator and directive
+    // lookups, several of them failing with exceptions), and the same few hundred values
+    // make up almost every token of a program.  Classifications are therefore remembered
+    // in this table, shared by all tokenizers (they may run concurrently, see MIPSprogram).
+    // Each entry also holds the canonical copy of the value, so identical tokens share
+    // one String.  The type of a value never changes once the instruction set is loaded.
+    private static final int MAX_INTERNED_TOKENS = 1 << 16;
+    private static final ConcurrentHashMap<String, InternedToken> internedTokens = new ConcurrentHashMap<String, InternedToken>();
     private ErrorList errors;
     private MIPSprogram sourceMIPSprogram;
     private HashMap<String, String> equivalents; // DPS 11-July-2012
+    private HashMap<String, ArrayList> includedSources; // source lines of each .include file read
 
     /**
      * Simple constructor. Initializes empty error list.
@@ -89,6 +99,7 @@ public class Tokenizer {
     public ArrayList tokenize(MIPSprogram p) throws ProcessingException {
         sourceMIPSprogram = p;
         equivalents = new HashMap<String, String>(); // DPS 11-July-2012
+        includedSources = new HashMap<String, ArrayList>();
         ArrayList tokenList = new ArrayList();
         //ArrayList source = p.getSourceList();
         ArrayList<SourceLine> source = processIncludes(p, new HashMap<String, String>()); // DPS 9-Jan-2013
@@ -115,6 +126,16 @@ public class Tokenizer {
     }
 
 
+    /**
+     * Returns the files included, directly or indirectly, by the program most recently
+     * tokenized, with the source lines read from each.
+     *
+     * @return map from included file name to its ArrayList of source lines
+     */
+    public Map<String, ArrayList> getIncludedSources() {
+        return (includedSources == null) ? new HashMap<String, ArrayList>() : includedSources;
+    }
+
     // pre-pre-processing pass through source code to process any ".include" directives.
     // When one is encountered, the contents of the included file are inserted at that
     // point.  If no .include statements, the return value is a new array list but
@@ -127,6 +148,11 @@ public class Tokenizer {
         ArrayList<SourceLine> result = new ArrayList<SourceLine>(source.size());
         for (int i = 0; i < source.size(); i++) {
             String line = (String) source.get(i);
+            if (!mayContainInclude(line)) {
+                // No need to tokenize here; lines are tokenized once, by tokenize().
+                result.add(new SourceLine(line, program, i + 1));
+                continue;
+            }
             TokenList tl = tokenizeLine(program, i + 1, line, false);
             boolean hasInclude = false;
             for (int ii = 0; ii < tl.size(); ii++) {
@@ -156,6 +182,7 @@ public class Tokenizer {
                                 "Error reading include file " + filename));
                         throw new ProcessingException(errors);
                     }
+                    includedSources.put(filename, incl.getSourceList());
                     ArrayList<SourceLine> allLines = processIncludes(incl, inclFiles);
                     result.addAll(allLines);
                     hasInclude = true;
@@ -169,6 +196,18 @@ public class Tokenizer {
         return result;
     }
 
+    // True unless the line certainly has no .include directive, i.e. does not contain
+    // ".include" in any letter case.
+    private static boolean mayContainInclude(String line) {
+        String directive = Directives.INCLUDE.getName();
+        for (int i = line.indexOf('.'); i >= 0; i = line.indexOf('.', i + 1)) {
+            if (line.regionMatches(true, i, directive, 0, directive.length())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Used only to create a token list for the example provided with each instruction
      * specification.
@@ -494,7 +533,7 @@ public class Tokenizer {
         }
         // Check if a substitution from defined .eqv is to be made.  If so, make one.
         boolean substitutionMade = false;
-        for (int i = 0; i < tokens.size(); i++) {
+        for (int i = 0; equivalents != null && !equivalents.isEmpty() && i < tokens.size(); i++) {
             Token token = tokens.get(i);
             if (token.getType() == TokenTypes.IDENTIFIER && equivalents != null && equivalents.containsKey(token.getValue())) {
                 // do the substitution
@@ -526,7 +565,21 @@ public class Tokenizer {
                                        int tokenPos, int tokenStartPos, TokenList tokenList) {
         String value = new String(token, 0, tokenPos);
         if (value.length() > 0 && value.charAt(0) == '\'') value = preprocessCharacterLiteral(value);
-        TokenTypes type = TokenTypes.matchTokenType(value);
+        TokenTypes type;
+        if (value.charAt(0) == '#') {
+            type = TokenTypes.COMMENT; // comments are rarely repeated, no point remembering them
+        } else {
+            InternedToken interned = internedTokens.get(value);
+            if (interned == null) {
+                interned = new InternedToken(value, TokenTypes.matchTokenType(value));
+                if (internedTokens.size() >= MAX_INTERNED_TOKENS) {
+                    internedTokens.clear();
+                }
+                internedTokens.put(value, interned);
+            }
+            value = interned.value;
+            type = interned.type;
+        }
         if (type == TokenTypes.ERROR) {
             errors.add(new ErrorMessage(program, line, tokenStartPos,
                     theLine + "\nInvalid language element: " + value));
@@ -566,4 +619,15 @@ public class Tokenizer {
         }
         return value;
     }
+
+    // A token value together with its classification.
+    private static final class InternedToken {
+        private final String value;
+        private final TokenTypes type;
+
+        private InternedToken(String value, TokenTypes type) {
+            this.value = value;
+            this.type = type;
+        }
+    }
 }
@@ -5,6 +5,8 @@ import rars.util.*;
 import rars.simulator.*;
 import rars.mips.instructions.*;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.*;
 	
 	/*
@@ -226,18 +228,52 @@ public class Memory extends Observable {
      * Current setting for endian (default LITTLE_ENDIAN)
      **/
     private static boolean byteOrder = LITTLE_ENDIAN;
+    /**
+     * Whether the data-type segments are kept in one flat off-heap buffer each
+     * (set from the current memory configuration)
+     **/
+    private static boolean flatStorage = false;
     private static Memory uniqueMemoryInstance = new Memory();
     Collection observables = getNewMemoryObserversCollection();
-    private int[][] dataBlockTable;
-    private int[][] kernelDataBlockTable;
-    private int[][] stackBlockTable;
+    // Read-only index of the observables, rebuilt whenever the collection changes: entry r
+    // holds those whose range overlaps the 256MB region r (the top 4 address bits).  The
+    // memory access paths consult only this index and "observed", never the collection.
+    private static final int OBSERVER_REGION_SHIFT = 28;
+    private volatile MemoryObservable[][] observablesByRegion = new MemoryObservable[1 << (32 - OBSERVER_REGION_SHIFT)][0];
+    private volatile boolean observed = false;
+    private WordTable dataBlockTable;
+    private WordTable kernelDataBlockTable;
+    private WordTable stackBlockTable;
     // This will be a Singleton class, only one instance is ever created.  Since I know the 
     // Memory object is always needed, I'll go ahead and create it at the time of class loading.
     // (greedy rather than lazy instantiation).  The constructor is private and getInstance()
     // always returns this instance.
-    private int[][] memoryMapBlockTable;
+    private WordTable memoryMapBlockTable;
     private ProgramStatement[][] textBlockTable;
     private ProgramStatement[][] kernelTextBlockTable;
+    // Bumped whenever the contents of either text segment change, so that structures
+    // derived from the ProgramStatements (e.g. pre-decoded instructions) know when to rebuild.
+    private volatile int textSegmentVersion = 0;
+    // Checkpoint that blocks are saved in before their first write, null if none is open.
+    // Checkpoints are numbered (their epoch) in the order taken, from 1.  See takeCheckpoint().
+    private Checkpoint openCheckpoint;
+    private int lastEpoch = 0;
+    private int[] textSavedIn, kernelTextSavedIn; // epoch of the checkpoint each text block was last saved in
+
+    // Direct-mapped translation cache for the data-type segments, indexed by the low bits
+    // of the 4K page number.  An entry records which table a page lives in and the address
+    // that relative offsets are computed from, so that repeat accesses to the page skip the
+    // segment classification chain.  Only pages lying wholly inside exactly one of the data,
+    // stack, MMIO or kernel data segments (and in no text segment) are entered, so the
+    // answer is the same whichever order a caller would have tested the segments in.
+    // Entries are immutable and replaced whole, because GUI readers may translate on the
+    // event thread while the simulation thread uses the same slot.
+    private static final int TLB_ENTRIES = 64;
+    private static final int PAGE_SHIFT = 12;
+    private final TlbEntry[] tlb = new TlbEntry[TLB_ENTRIES];
+    // With flat storage, the data and stack segments are resolved ahead of the cache
+    // by one subtraction and bounds check each; null otherwise.
+    private TlbEntry flatDataEntry, flatStackEntry;
 
     /*
      * Private constructor for Memory.  Separate data structures for text and data segments.
@@ -294,6 +330,7 @@ public class Memory extends Observable {
         memoryMapLimitAddress = Math.min(MemoryConfigurations.getCurrentConfiguration().getMemoryMapLimitAddress(),
                 memoryMapBaseAddress +
                         BLOCK_LENGTH_WORDS * MMIO_TABLE_LENGTH * WORD_LENGTH_BYTES);
+        flatStorage = MemoryConfigurations.getCurrentConfiguration().usesFlatStorage();
       /*	System.out.println("dataSegmentLimitAddress "+Binary.intToHexString(dataSegmentLimitAddress));
       	System.out.println("textLimitAddress "+Binary.intToHexString(textLimitAddress));
       	System.out.println("kernelDataSegmentLimitAddress "+Binary.intToHexString(kernelDataSegmentLimitAddress));
@@ -447,15 +484,95 @@ public class Memory extends Observable {
     private void initialize() {
         heapAddress = heapBaseAddress;
         textBlockTable = new ProgramStatement[TEXT_BLOCK_TABLE_LENGTH][];
-        dataBlockTable = new int[BLOCK_TABLE_LENGTH][]; // array of null int[] references
+        dataBlockTable = newWordTable(dataBlockTable, BLOCK_TABLE_LENGTH);
         kernelTextBlockTable = new ProgramStatement[TEXT_BLOCK_TABLE_LENGTH][];
-        kernelDataBlockTable = new int[BLOCK_TABLE_LENGTH][];
-        stackBlockTable = new int[BLOCK_TABLE_LENGTH][];
-        memoryMapBlockTable = new int[MMIO_TABLE_LENGTH][];
+        kernelDataBlockTable = newWordTable(kernelDataBlockTable, BLOCK_TABLE_LENGTH);
+        stackBlockTable = newWordTable(stackBlockTable, BLOCK_TABLE_LENGTH);
+        memoryMapBlockTable = newWordTable(memoryMapBlockTable, MMIO_TABLE_LENGTH);
+        Arrays.fill(tlb, null);
+        flatDataEntry = (flatStorage) ? new TlbEntry(0, dataBlockTable, dataSegmentBaseAddress, false) : null;
+        flatStackEntry = (flatStorage) ? new TlbEntry(0, stackBlockTable, stackBaseAddress, true) : null;
+        openCheckpoint = null;
+        textSavedIn = null;
+        kernelTextSavedIn = null;
+        textSegmentVersion++;
         System.gc(); // call garbage collector on any Table memory just deallocated.
     }
 
 
+    // Empty storage for a data-type segment of the given number of 4K blocks, in the form
+    // selected by the current memory configuration.  A flat table the segment already
+    // has is emptied and kept, so that its buffer is reserved only once.
+    private static WordTable newWordTable(WordTable previous, int blocks) {
+        if (!flatStorage) {
+            return new BlockWordTable(blocks);
+        }
+        if (previous instanceof FlatWordTable && previous.getBlockCount() == blocks) {
+            ((FlatWordTable) previous).empty();
+            return previous;
+        }
+        return new FlatWordTable(blocks);
+    }
+
+    // Return the translation cache entry for the page containing address, filling it
+    // on a miss, or null if the page is not wholly inside one data-type segment.  With
+    // flat storage, data and stack addresses are resolved directly; the callers test
+    // those two segments first, so this gives the answer their chains would.
+    private TlbEntry translate(int address) {
+        if (flatDataEntry != null) {
+            int offset = address - dataSegmentBaseAddress;
+            if (offset >= 0 && offset < dataSegmentLimitAddress - dataSegmentBaseAddress) {
+                return flatDataEntry;
+            }
+            offset = stackBaseAddress - address;
+            if (offset >= 0 && offset < stackBaseAddress - stackLimitAddress) {
+                return flatStackEntry;
+            }
+        }
+        int page = address >>> PAGE_SHIFT;
+        TlbEntry entry = tlb[page & (TLB_ENTRIES - 1)];
+        if (entry != null && entry.page == page) {
+            return entry;
+        }
+        int first = page << PAGE_SHIFT;
+        int last = first + (1 << PAGE_SHIFT) - 1;
+        if (overlaps(first, last, textBaseAddress, textLimitAddress)
+                || overlaps(first, last, kernelTextBaseAddress, kernelTextLimitAddress)) {
+            return null;
+        }
+        boolean inData = overlaps(first, last, dataSegmentBaseAddress, dataSegmentLimitAddress);
+        boolean inStack = overlaps(first, last, stackLimitAddress + 1, stackBaseAddress + 1);
+        boolean inMemoryMap = overlaps(first, last, memoryMapBaseAddress, memoryMapLimitAddress);
+        boolean inKernelData = overlaps(first, last, kernelDataBaseAddress, kernelDataSegmentLimitAddress);
+        if (inData && !inStack && !inMemoryMap && !inKernelData
+                && contains(first, last, dataSegmentBaseAddress, dataSegmentLimitAddress)) {
+            entry = new TlbEntry(page, dataBlockTable, dataSegmentBaseAddress, false);
+        } else if (inStack && !inData && !inMemoryMap && !inKernelData
+                && contains(first, last, stackLimitAddress + 1, stackBaseAddress + 1)) {
+            entry = new TlbEntry(page, stackBlockTable, stackBaseAddress, true);
+        } else if (inMemoryMap && !inData && !inStack && !inKernelData
+                && contains(first, last, memoryMapBaseAddress, memoryMapLimitAddress)) {
+            entry = new TlbEntry(page, memoryMapBlockTable, memoryMapBaseAddress, false);
+        } else if (inKernelData && !inData && !inStack && !inMemoryMap
+                && contains(first, last, kernelDataBaseAddress, kernelDataSegmentLimitAddress)) {
+            entry = new TlbEntry(page, kernelDataBlockTable, kernelDataBaseAddress, false);
+        } else {
+            return null;
+        }
+        tlb[page & (TLB_ENTRIES - 1)] = entry;
+        return entry;
+    }
+
+    // Whether the page [first, last] shares any address with segment [low, limit).
+    private static boolean overlaps(int first, int last, int low, int limit) {
+        return first < limit && last >= low;
+    }
+
+    // Whether the page [first, last] lies entirely in segment [low, limit).
+    private static boolean contains(int first, int last, int low, int limit) {
+        return first >= low && last < limit;
+    }
+
     /********************************  THE GETTER METHODS  ******************************/
 
     //////////////////////////////////////////////////////////////////////////////////////////
@@ -523,7 +640,11 @@ public class Memory extends Observable {
         int oldValue = 0;
         if (Globals.debug) System.out.println("memory[" + address + "] set to " + value + "(" + length + " bytes)");
         int relativeByteAddress;
-        if (inDataSegment(address)) {
+        TlbEntry entry = translate(address);
+        if (entry != null) {
+            // data, stack, MMIO or kernel data page seen before.
+            oldValue = storeBytesInTable(entry.table, entry.offset(address), length, value);
+        } else if (inDataSegment(address)) {
             // in data segment.  Will write one byte at a time, w/o regard to boundaries.
             relativeByteAddress = address - dataSegmentBaseAddress; // relative to data segment start, in bytes
             oldValue = storeBytesInTable(dataBlockTable, relativeByteAddress, length, value);
@@ -585,7 +706,11 @@ public class Memory extends Observable {
             throw new AddressErrorException("store address not aligned on word boundary ",
                     Exceptions.ADDRESS_EXCEPTION_STORE, address);
         }
-        if (inDataSegment(address)) {
+        TlbEntry entry = translate(address);
+        if (entry != null) {
+            // data, stack, MMIO or kernel data page seen before.
+            oldValue = storeWordInTable(entry.table, entry.offset(address) >> 2, value);
+        } else if (inDataSegment(address)) {
             // in data segment
             relative = (address - dataSegmentBaseAddress) >> 2; // convert byte address to words
             oldValue = storeWordInTable(dataBlockTable, relative, value);
@@ -738,6 +863,86 @@ public class Memory extends Observable {
         } else {
             storeProgramStatement(address, statement, kernelTextBaseAddress, kernelTextBlockTable);
         }
+        textSegmentVersion++;
+    }
+
+    /**
+     * Returns a counter that changes every time a statement is stored into the
+     * text or kernel text segment, or memory is cleared.  Clients that cache
+     * information derived from text segment contents can compare it to the value
+     * seen when the cache was built.
+     *
+     * @return current text segment version number
+     */
+    public int getTextSegmentVersion() {
+        return textSegmentVersion;
+    }
+
+    /**
+     * Start a copy-on-write checkpoint of memory contents.  Nothing is copied now.  From
+     * here until the next checkpoint is taken, the first write to each 4K block of the
+     * data, stack, MMIO, kernel data and text segments saves the block's previous contents
+     * in this checkpoint.  A checkpoint therefore holds only the blocks written while it
+     * was open, and restoring memory to it touches only blocks written since.
+     *
+     * @return the new checkpoint, which is now the open one
+     */
+    public Checkpoint takeCheckpoint() {
+        Checkpoint checkpoint = new Checkpoint(++lastEpoch, heapAddress);
+        setOpenCheckpoint(checkpoint);
+        return checkpoint;
+    }
+
+    /**
+     * Return memory to its contents at the time one of a series of checkpoints was taken.
+     * The blocks saved in that checkpoint and in every later one are put back, latest first,
+     * so each block ends up as it was when the checkpoint was taken.  The later checkpoints
+     * are removed from the series, and the restored checkpoint is the open one again.
+     *
+     * @param checkpoints the checkpoints taken since memory was cleared or checkpoints stopped, in the order taken
+     * @param index       position in checkpoints of the one to return to
+     */
+    public void restoreCheckpoint(List<Checkpoint> checkpoints, int index) {
+        boolean textRestored = false;
+        for (int i = checkpoints.size() - 1; i >= index; i--) {
+            ArrayList<SavedBlock> saved = checkpoints.get(i).saved;
+            for (int j = saved.size() - 1; j >= 0; j--) {
+                textRestored |= saved.get(j).restore();
+            }
+        }
+        Checkpoint checkpoint = checkpoints.get(index);
+        while (checkpoints.size() > index + 1) {
+            checkpoints.remove(checkpoints.size() - 1);
+        }
+        // Blocks saved in the restored checkpoint need not be saved again; all others must be.
+        for (int i = 0; i < checkpoint.saved.size(); i++) {
+            SavedBlock saved = checkpoint.saved.get(i);
+            saved.savedIn[saved.block] = checkpoint.epoch;
+        }
+        heapAddress = checkpoint.heapAddress;
+        setOpenCheckpoint(checkpoint);
+        if (textRestored) {
+            textSegmentVersion++;
+        }
+    }
+
+    /**
+     * Close the open checkpoint, if any, so that writes no longer save blocks.
+     */
+    public void stopCheckpoints() {
+        setOpenCheckpoint(null);
+    }
+
+    private void setOpenCheckpoint(Checkpoint checkpoint) {
+        openCheckpoint = checkpoint;
+        dataBlockTable.setCheckpoint(checkpoint);
+        kernelDataBlockTable.setCheckpoint(checkpoint);
+        stackBlockTable.setCheckpoint(checkpoint);
+        memoryMapBlockTable.setCheckpoint(checkpoint);
+        if (checkpoint != null && textSavedIn == null) {
+            textSavedIn = new int[TEXT_BLOCK_TABLE_LENGTH];
+            kernelTextSavedIn = new int[TEXT_BLOCK_TABLE_LENGTH];
+        }
     }
 
     ////////////////////////////////////////////////////////////////////////////////
@@ -762,7 +967,11 @@ public class Memory extends Observable {
     private int get(int address, int length, boolean notify) throws AddressErrorException {
         int value = 0;
         int relativeByteAddress;
-        if (inDataSegment(address)) {
+        TlbEntry entry = translate(address);
+        if (entry != null) {
+            // data, stack, MMIO or kernel data page seen before.
+            value = fetchBytesFromTable(entry.table, entry.offset(address), length);
+        } else if (inDataSegment(address)) {
             // in data segment.  Will read one byte at a time, w/o regard to boundaries.
             relativeByteAddress = address - dataSegmentBaseAddress; // relative to data segment start, in bytes
             value = fetchBytesFromTable(dataBlockTable, relativeByteAddress, length);
@@ -828,7 +1037,11 @@ public class Memory extends Observable {
             throw new AddressErrorException("address for fetch not aligned on word boundary",
                     Exceptions.ADDRESS_EXCEPTION_LOAD, address);
         }
-        if (inDataSegment(address)) {
+        TlbEntry entry = translate(address);
+        if (entry != null) {
+            // data, stack, MMIO or kernel data page seen before.
+            value = fetchWordFromTable(entry.table, entry.offset(address) >> 2);
+        } else if (inDataSegment(address)) {
             // in data segment
             relative = (address - dataSegmentBaseAddress) >> 2; // convert byte address to words
             value = fetchWordFromTable(dataBlockTable, relative);
@@ -1142,6 +1355,7 @@ public class Memory extends Observable {
                     Exceptions.ADDRESS_EXCEPTION_LOAD, startAddr);
         }
         observables.add(new MemoryObservable(obs, startAddr, endAddr));
+        indexObservables();
     }
 
     /**
@@ -1151,6 +1365,16 @@ public class Memory extends Observable {
         return observables.size();
     }
 
+    /**
+     * Determine whether any observers are registered.  Unlike countObservers(), this
+     * takes no lock, so it is cheap enough to call on every simulated instruction.
+     *
+     * @return true if at least one memory observer is registered
+     */
+    public boolean isObserved() {
+        return observed;
+    }
+
     /**
      * Remove specified memory observers
      *
@@ -1159,8 +1383,13 @@ public class Memory extends Observable {
     public void deleteObserver(Observer obs) {
         Iterator it = observables.iterator();
         while (it.hasNext()) {
-            ((MemoryObservable) it.next()).deleteObserver(obs);
+            MemoryObservable mo = (MemoryObservable) it.next();
+            mo.deleteObserver(obs);
+            if (mo.countObservers() == 0) {
+                it.remove(); // so countObservers() drops back to zero once all are gone
+            }
         }
+        indexObservables();
     }
 
     /**
@@ -1169,6 +1398,7 @@ public class Memory extends Observable {
     public void deleteObservers() {
         // just drop the collection
         observables = getNewMemoryObserversCollection();
+        indexObservables();
     }
 
     /**
@@ -1199,6 +1429,13 @@ public class Memory extends Observable {
 
     /*********************************  THE HELPERS  *************************************/
 
+    // The table helpers below do not lock.  While a program runs, the simulation thread
+    // is the only writer.  Any other thread that writes memory (GUI edits, tools driving
+    // memory-mapped devices) must hold Globals.memoryAndRegistersLock, which the
+    // simulation thread also holds while executing whenever such threads may exist.
+    // Readers on other threads need no lock: each table element is read atomically,
+    // and blocks only ever go from null to allocated (zero-filled) arrays.
+
 
     ////////////////////////////////////////////////////////////////////////////////
     //
@@ -1206,25 +1443,52 @@ public class Memory extends Observable {
     //
     // The "|| Globals.getGui()==null" is a hack added 19 July 2012 DPS.  IF MIPS simulation
     // is from command mode, Globals.program is null but still want ability to observe.
+    //
+    // The notice is only created once an observable matches, and is shared by all of
+    // them since notices are immutable.
     private void notifyAnyObservers(int type, int address, int length, int value) {
-        if ((Globals.program != null || Globals.getGui() == null) && this.observables.size() > 0) {
-            Iterator it = this.observables.iterator();
-            MemoryObservable mo;
-            while (it.hasNext()) {
-                mo = (MemoryObservable) it.next();
-                if (mo.match(address)) {
-                    mo.notifyObserver(new MemoryAccessNotice(type, address, length, value));
+        if (observed && (Globals.program != null || Globals.getGui() == null)) {
+            MemoryObservable[] candidates = observablesByRegion[address >>> OBSERVER_REGION_SHIFT];
+            MemoryAccessNotice notice = null;
+            for (int i = 0; i < candidates.length; i++) {
+                if (candidates[i].match(address)) {
+                    if (notice == null) {
+                        notice = new MemoryAccessNotice(type, address, length, value);
+                    }
+                    candidates[i].notifyObserver(notice);
                 }
             }
         }
     }
 
-    private int storeBytesInTable(int[][] blockTable,
+    // Rebuild observablesByRegion and observed from the observables collection, keeping
+    // registration order within each region.
+    private synchronized void indexObservables() {
+        Object[] all = observables.toArray();
+        MemoryObservable[][] index = new MemoryObservable[observablesByRegion.length][];
+        for (int region = 0; region < index.length; region++) {
+            ArrayList inRegion = new ArrayList();
+            for (int i = 0; i < all.length; i++) {
+                MemoryObservable mo = (MemoryObservable) all[i];
+                // Ranges never cross 0x80000000, so the unsigned region numbers of
+                // their ends bracket every region they touch.
+                if ((mo.lowAddress >>> OBSERVER_REGION_SHIFT) <= region
+                        && ((mo.highAddress - 1 + WORD_LENGTH_BYTES) >>> OBSERVER_REGION_SHIFT) >= region) {
+                    inRegion.add(mo);
+                }
+            }
+            index[region] = (MemoryObservable[]) inRegion.toArray(new MemoryObservable[inRegion.size()]);
+        }
+        observablesByRegion = index;
+        observed = all.length > 0;
+    }
+
+    private int storeBytesInTable(WordTable blockTable,
                                   int relativeByteAddress, int length, int value) {
         return storeOrFetchBytesInTable(blockTable, relativeByteAddress, length, value, STORE);
     }
 
-    private int fetchBytesFromTable(int[][] blockTable, int relativeByteAddress, int length) {
+    private int fetchBytesFromTable(WordTable blockTable, int relativeByteAddress, int length) {
         return storeOrFetchBytesInTable(blockTable, relativeByteAddress, length, 0, FETCH);
     }
 
@@ -1244,9 +1508,9 @@ public class Memory extends Observable {
     // client using STORE or FETCH in last arg.
     // Modified 29 Dec 2005 to return old value of replaced bytes, for STORE.
     //
-    private synchronized int storeOrFetchBytesInTable(int[][] blockTable,
-                                                      int relativeByteAddress, int length, int value, boolean op) {
-        int relativeWordAddress, block, offset, bytePositionInMemory, bytePositionInValue;
+    private int storeOrFetchBytesInTable(WordTable blockTable,
+                                         int relativeByteAddress, int length, int value, boolean op) {
+        int relativeWordAddress, bytePositionInMemory, bytePositionInValue;
         int oldValue = 0; // for STORE, return old values of replaced bytes
         int loopStopper = 3 - length;
         // IF added DPS 22-Dec-2008. NOTE: has NOT been tested with Big-Endian.
@@ -1265,22 +1529,18 @@ public class Memory extends Observable {
         for (bytePositionInValue = 3; bytePositionInValue > loopStopper; bytePositionInValue--) {
             bytePositionInMemory = relativeByteAddress % 4;
             relativeWordAddress = relativeByteAddress >> 2;
-            block = relativeWordAddress / BLOCK_LENGTH_WORDS;  // Block number
-            offset = relativeWordAddress % BLOCK_LENGTH_WORDS; // Word within that block
-            if (blockTable[block] == null) {
-                if (op == STORE)
-                    blockTable[block] = new int[BLOCK_LENGTH_WORDS];
-                else
-                    return 0;
+            if (op == FETCH && !blockTable.isAllocated(relativeWordAddress)) {
+                return 0;
             }
             if (byteOrder == LITTLE_ENDIAN) bytePositionInMemory = 3 - bytePositionInMemory;
+            int word = blockTable.getWord(relativeWordAddress);
             if (op == STORE) {
-                oldValue = replaceByte(blockTable[block][offset], bytePositionInMemory,
+                oldValue = replaceByte(word, bytePositionInMemory,
                         oldValue, bytePositionInValue);
-                blockTable[block][offset] = replaceByte(value, bytePositionInValue,
-                        blockTable[block][offset], bytePositionInMemory);
+                blockTable.setWord(relativeWordAddress, replaceByte(value, bytePositionInValue,
+                        word, bytePositionInMemory));
             } else {// op == FETCH
-                value = replaceByte(blockTable[block][offset], bytePositionInMemory,
+                value = replaceByte(word, bytePositionInMemory,
                         value, bytePositionInValue);
             }
             relativeByteAddress++;
@@ -1288,17 +1548,8 @@ public class Memory extends Observable {
         return (op == STORE) ? oldValue : value;
     }
 
-    private synchronized int storeWordInTable(int[][] blockTable, int relative, int value) {
-        int block, offset, oldValue;
-        block = relative / BLOCK_LENGTH_WORDS;
-        offset = relative % BLOCK_LENGTH_WORDS;
-        if (blockTable[block] == null) {
-            // First time writing to this block, so allocate the space.
-            blockTable[block] = new int[BLOCK_LENGTH_WORDS];
-        }
-        oldValue = blockTable[block][offset];
-        blockTable[block][offset] = value;
-        return oldValue;
+    private int storeWordInTable(WordTable blockTable, int relative, int value) {
+        return blockTable.setWord(relative, value);
     }
 
     ////////////////////////////////////////////////////////////////////////////////
@@ -1309,18 +1560,9 @@ public class Memory extends Observable {
     // and block size.  Assumes address is word aligned, no endian processing.
     // Modified 29 Dec 2005 to return overwritten value.
 
-    private synchronized int fetchWordFromTable(int[][] blockTable, int relative) {
-        int value = 0;
-        int block, offset;
-        block = relative / BLOCK_LENGTH_WORDS;
-        offset = relative % BLOCK_LENGTH_WORDS;
-        if (blockTable[block] == null) {
-            // first reference to an address in this block.  Assume initialized to 0.
-            value = 0;
-        } else {
-            value = blockTable[block][offset];
-        }
-        return value;
+    private int fetchWordFromTable(WordTable blockTable, int relative) {
+        // Words in blocks never written read as 0.
+        return blockTable.getWord(relative);
     }
 
     ////////////////////////////////////////////////////////////////////////////////
@@ -1331,18 +1573,12 @@ public class Memory extends Observable {
     // and block size.  Assumes word alignment, no endian processing.
     //
 
-    private synchronized Integer fetchWordOrNullFromTable(int[][] blockTable, int relative) {
-        int value = 0;
-        int block, offset;
-        block = relative / BLOCK_LENGTH_WORDS;
-        offset = relative % BLOCK_LENGTH_WORDS;
-        if (blockTable[block] == null) {
-            // first reference to an address in this block.  Assume initialized to 0.
+    private Integer fetchWordOrNullFromTable(WordTable blockTable, int relative) {
+        if (!blockTable.isAllocated(relative)) {
+            // first reference to an address in this block.
             return null;
-        } else {
-            value = blockTable[block][offset];
         }
-        return new Integer(value);
+        return new Integer(blockTable.getWord(relative));
     }
 
     ////////////////////////////////////////////////////////////////////////////////
@@ -1391,6 +1627,14 @@ public class Memory extends Observable {
         int block = relative / BLOCK_LENGTH_WORDS;
         int offset = relative % BLOCK_LENGTH_WORDS;
         if (block < TEXT_BLOCK_TABLE_LENGTH) {
+            if (openCheckpoint != null) {
+                int[] savedIn = (blockTable == textBlockTable) ? textSavedIn : kernelTextSavedIn;
+                if (savedIn[block] != openCheckpoint.epoch) {
+                    savedIn[block] = openCheckpoint.epoch;
+                    openCheckpoint.saved.add(new SavedBlock(null, blockTable, savedIn, block,
+                            (blockTable[block] == null) ? null : blockTable[block].clone()));
+                }
+            }
             if (blockTable[block] == null) {
                 // No instructions are stored in this block, so allocate the block.
                 blockTable[block] = new ProgramStatement[BLOCK_LENGTH_WORDS];
@@ -1461,4 +1705,257 @@ public class Memory extends Observable {
         }
     }
 
+    /**
+     * Memory's part of a machine checkpoint: the heap allocation pointer, and the previous
+     * contents of the blocks first written while it was the open checkpoint.
+     *
+     * @see #takeCheckpoint()
+     */
+    public static class Checkpoint {
+        private final int epoch;
+        private final int heapAddress;
+        private final ArrayList<SavedBlock> saved = new ArrayList<SavedBlock>();
+
+        private Checkpoint(int epoch, int heapAddress) {
+            this.epoch = epoch;
+            this.heapAddress = heapAddress;
+        }
+
+        /**
+         * @return number of 4K blocks saved in this checkpoint
+         */
+        public int getSavedBlockCount() {
+            return saved.size();
+        }
+
+        /**
+         * Take over the saved blocks of the checkpoint taken just after this one, so that
+         * one can be discarded.  Restoring to this checkpoint still gives the same contents.
+         * The other checkpoint must not be the open one.
+         *
+         * @param next the checkpoint following this one
+         */
+        public void absorb(Checkpoint next) {
+            saved.addAll(next.saved); // restored last to first, so this checkpoint's own copies win
+            next.saved.clear();
+        }
+    }
+
+    // The contents of one block as they were before a write, in either a WordTable or
+    // a text segment table, and the marks recording which checkpoint saved its blocks.
+    private static class SavedBlock {
+        private final WordTable table;
+        private final ProgramStatement[][] text;
+        private final int[] savedIn;
+        private final int block;
+        private final Object contents; // int[] or ProgramStatement[], null if the block was never written
+
+        SavedBlock(WordTable table, ProgramStatement[][] text, int[] savedIn, int block, Object contents) {
+            this.table = table;
+            this.text = text;
+            this.savedIn = savedIn;
+            this.block = block;
+            this.contents = contents;
+        }
+
+        // Put the contents back, leaving this copy unchanged.  Returns true if it is a text block.
+        boolean restore() {
+            if (table != null) {
+                table.restoreBlock(block, (int[]) contents);
+                return false;
+            }
+            text[block] = (contents == null) ? null : ((ProgramStatement[]) contents).clone();
+            return true;
+        }
+    }
+
+    // One translation cache entry: the page, the table it lives in and the address
+    // that offsets are computed from.  Stack offsets count backward from the stack base.
+    private static class TlbEntry {
+        private final int page;
+        private final WordTable table;
+        private final int base;
+        private final boolean backward;
+
+        TlbEntry(int page, WordTable table, int base, boolean backward) {
+            this.page = page;
+            this.table = table;
+            this.base = base;
+            this.backward = backward;
+        }
+
+        // Byte offset of address within table.
+        int offset(int address) {
+            return (backward) ? base - address : address - base;
+        }
+    }
+
+    /////////////////////////////////////////////////////////////////////////
+    // Word storage for one data-type segment (data, stack, kernel data, MMIO),
+    // indexed by word offset from the start of the segment's table.  Words never
+    // written read as 0.  Capacity is a whole number of 4K blocks.
+    private static abstract class WordTable {
+        Checkpoint checkpoint; // open checkpoint, null if none
+        int[] savedIn; // epoch of the checkpoint each block was last saved in
+
+        abstract int getWord(int wordIndex);
+
+        // Store value and return the word's previous contents.
+        abstract int setWord(int wordIndex, int value);
+
+        // Whether the 4K block containing this word has been written to.
+        abstract boolean isAllocated(int wordIndex);
+
+        abstract int getBlockCount();
+
+        // Copy of a block's words, null if it has never been written.
+        abstract int[] copyBlock(int block);
+
+        // Replace a block's words with a copy of the given ones, or make it never written if null.
+        abstract void restoreBlock(int block, int[] words);
+
+        void setCheckpoint(Checkpoint checkpoint) {
+            this.checkpoint = checkpoint;
+            if (checkpoint != null && savedIn == null) {
+                savedIn = new int[getBlockCount()];
+            }
+        }
+
+        // Called with a checkpoint open before every write: saves the block in it the first time.
+        final void beforeWrite(int block) {
+            if (savedIn[block] != checkpoint.epoch) {
+                savedIn[block] = checkpoint.epoch;
+                checkpoint.saved.add(new SavedBlock(this, null, savedIn, block, copyBlock(block)));
+            }
+        }
+    }
+
+    // The original representation: a table of int[] blocks, each allocated the first
+    // time an address inside it is written.
+    private static class BlockWordTable extends WordTable {
+        private final int[][] blocks;
+
+        BlockWordTable(int blockCount) {
+            blocks = new int[blockCount][]; // array of null int[] references
+        }
+
+        int getWord(int wordIndex) {
+            int[] block = blocks[wordIndex >> 10];
+            return (block == null) ? 0 : block[wordIndex & (BLOCK_LENGTH_WORDS - 1)];
+        }
+
+        int setWord(int wordIndex, int value) {
+            if (checkpoint != null) {
+                beforeWrite(wordIndex >> 10);
+            }
+            int[] block = blocks[wordIndex >> 10];
+            if (block == null) {
+                // First time writing to this block, so allocate the space.
+                block = new int[BLOCK_LENGTH_WORDS];
+                blocks[wordIndex >> 10] = block;
+            }
+            int offset = wordIndex & (BLOCK_LENGTH_WORDS - 1);
+            int oldValue = block[offset];
+            block[offset] = value;
+            return oldValue;
+        }
+
+        boolean isAllocated(int wordIndex) {
+            return blocks[wordIndex >> 10] != null;
+        }
+
+        int getBlockCount() {
+            return blocks.length;
+        }
+
+        int[] copyBlock(int block) {
+            return (blocks[block] == null) ? null : blocks[block].clone();
+        }
+
+        void restoreBlock(int block, int[] words) {
+            blocks[block] = (words == null) ? null : words.clone();
+        }
+    }
+
+    // One contiguous direct buffer for the whole segment, outside the Java heap, so that
+    // large simulated memories add nothing to garbage collection work and every access
+    // is a single bounds-checked read.  The buffer is reserved on the first write and
+    // kept when memory is cleared (see empty()); the written-block flags keep
+    // fetchWordOrNull() reporting the same as the block table.  Blocks not written
+    // always hold zeros.
+    private static class FlatWordTable extends WordTable {
+        private final int blockCount;
+        private final boolean[] written;
+        private ByteBuffer words;
+
+        FlatWordTable(int blockCount) {
+            this.blockCount = blockCount;
+            this.written = new boolean[blockCount];
+        }
+
+        int getWord(int wordIndex) {
+            return (words == null) ? 0 : words.getInt(wordIndex << 2);
+        }
+
+        int setWord(int wordIndex, int value) {
+            if (checkpoint != null) {
+                beforeWrite(wordIndex >> 10);
+            }
+            if (words == null) {
+                words = ByteBuffer.allocateDirect(blockCount * BLOCK_LENGTH_WORDS * WORD_LENGTH_BYTES).order(ByteOrder.nativeOrder());
+            }
+            written[wordIndex >> 10] = true;
+            int oldValue = words.getInt(wordIndex << 2);
+            words.putInt(wordIndex << 2, value);
+            return oldValue;
+        }
+
+        boolean isAllocated(int wordIndex) {
+            return written[wordIndex >> 10];
+        }
+
+        // Make every block unwritten again, zeroing only those that were written.
+        void empty() {
+            for (int block = 0; block < blockCount; block++) {
+                if (written[block]) {
+                    int end = (block + 1) * BLOCK_LENGTH_WORDS * WORD_LENGTH_BYTES;
+                    for (int i = block * BLOCK_LENGTH_WORDS * WORD_LENGTH_BYTES; i < end; i += 8) {
+                        words.putLong(i, 0L);
+                    }
+                    written[block] = false;
+                }
+            }
+            checkpoint = null;
+            savedIn = null;
+        }
+
+        int getBlockCount() {
+            return blockCount;
+        }
+
+        int[] copyBlock(int block) {
+            if (!written[block]) {
+                return null;
+            }
+            int[] copy = new int[BLOCK_LENGTH_WORDS];
+            for (int i = 0; i < BLOCK_LENGTH_WORDS; i++) {
+                copy[i] = words.getInt((block * BLOCK_LENGTH_WORDS + i) << 2);
+            }
+            return copy;
+        }
+
+        void restoreBlock(int block, int[] copy) {
+            if (words == null) {
+                if (copy == null) {
+                    return;
+                }
+                words = ByteBuffer.allocateDirect(blockCount * BLOCK_LENGTH_WORDS * WORD_LENGTH_BYTES).order(ByteOrder.nativeOrder());
+            }
+            for (int i = 0; i < BLOCK_LENGTH_WORDS; i++) {
+                words.putInt((block * BLOCK_LENGTH_WORDS + i) << 2, (copy == null) ? 0 : copy[i]);
+            }
+            written[block] = copy != null;
+        }
+    }
+
 }
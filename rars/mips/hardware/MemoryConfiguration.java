@@ -45,13 +45,24 @@ public class MemoryConfiguration {
     private String configurationIdentifier, configurationName;
     private String[] configurationItemNames;
     private int[] configurationItemValues;
+    private boolean flatStorage;
 
 
     public MemoryConfiguration(String ident, String name, String[] items, int[] values) {
+        this(ident, name, items, values, false);
+    }
+
+    /**
+     * @param flatStorage if true, the data, stack, kernel data and MMIO segments are each
+     *                    stored in a single off-heap buffer rather than a table of 4K blocks.
+     *                    The segment addresses are unaffected.
+     */
+    public MemoryConfiguration(String ident, String name, String[] items, int[] values, boolean flatStorage) {
         this.configurationIdentifier = ident;
         this.configurationName = name;
         this.configurationItemNames = items;
         this.configurationItemValues = values;
+        this.flatStorage = flatStorage;
     }
 
     public String getConfigurationIdentifier() {
@@ -70,6 +81,10 @@ public class MemoryConfiguration {
         return configurationItemNames;
     }
 
+    public boolean usesFlatStorage() {
+        return flatStorage;
+    }
+
     public int getTextBaseAddress() {
         return configurationItemValues[0];
     }
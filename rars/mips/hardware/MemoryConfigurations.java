@@ -162,6 +162,7 @@ public class MemoryConfigurations {
             configurations.add(new MemoryConfiguration("Default", "Default", configurationItemNames, defaultConfigurationItemValues));
             configurations.add(new MemoryConfiguration("CompactDataAtZero", "Compact, Data at Address 0", configurationItemNames, dataBasedCompactConfigurationItemValues));
             configurations.add(new MemoryConfiguration("CompactTextAtZero", "Compact, Text at Address 0", configurationItemNames, textBasedCompactConfigurationItemValues));
+            configurations.add(new MemoryConfiguration("DefaultFlat", "Default, flat off-heap storage", configurationItemNames, defaultConfigurationItemValues, true));
             defaultConfiguration = (MemoryConfiguration) configurations.get(0);
             currentConfiguration = defaultConfiguration;
             // Get current config from settings
@@ -217,8 +218,12 @@ public class MemoryConfigurations {
         if (config != currentConfiguration) {
             currentConfiguration = config;
             Globals.memory.clear();
-            RegisterFile.getUserRegister("$gp").changeResetValue(config.getGlobalPointer());
-            RegisterFile.getUserRegister("$sp").changeResetValue(config.getStackPointer());
+            // This register file has no $gp/$sp (all registers reset to 0), so only
+            // adjust them if they are present.
+            Register gp = RegisterFile.getUserRegister("$gp");
+            Register sp = RegisterFile.getUserRegister("$sp");
+            if (gp != null) gp.changeResetValue(config.getGlobalPointer());
+            if (sp != null) sp.changeResetValue(config.getStackPointer());
             RegisterFile.getProgramCounterRegister().changeResetValue(config.getTextBaseAddress());
             RegisterFile.initializeProgramCounter(config.getTextBaseAddress());
             RegisterFile.resetRegisters();
@@ -45,6 +45,9 @@ public class Register extends Observable {
     // are the only methods here used by the register collection
     // (RegisterFile, Coprocessor0, Coprocessor1) methods.
     private volatile int value;
+    // Kept in step with the observer list, so that accesses need not lock to ask
+    // whether anyone is observing.
+    private volatile boolean observed = false;
 
     /**
      * Creates a new register with specified name, number, and value.
@@ -158,11 +161,36 @@ public class Register extends Observable {
         resetValue = reset;
     }
 
+    public synchronized void addObserver(Observer o) {
+        super.addObserver(o);
+        observed = countObservers() > 0;
+    }
+
+    public synchronized void deleteObserver(Observer o) {
+        super.deleteObserver(o);
+        observed = countObservers() > 0;
+    }
+
+    public synchronized void deleteObservers() {
+        super.deleteObservers();
+        observed = false;
+    }
+
+    /**
+     * Determine whether this register has any observers.  Unlike countObservers(),
+     * does not lock.
+     *
+     * @return true if at least one observer is registered
+     */
+    boolean isObserved() {
+        return observed;
+    }
+
     //
     // Method to notify any observers of register operation that has just occurred.
     //
-    private void notifyAnyObservers(int type) {
-        if (this.countObservers() > 0) {// && Globals.program != null) && Globals.program.inSteppedExecution()) {
+    protected void notifyAnyObservers(int type) {
+        if (observed) {// && Globals.program != null) && Globals.program.inSteppedExecution()) {
             this.setChanged();
             this.notifyObservers(new RegisterAccessNotice(type, this.name));
         }
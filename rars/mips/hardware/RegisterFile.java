@@ -47,29 +47,35 @@ public class RegisterFile {
     public static final int GLOBAL_POINTER_REGISTER = 28;
     public static final int STACK_POINTER_REGISTER = 29;
 
+    // Values of x0-x31 and, at PC_INDEX, the program counter.  These are the registers'
+    // actual storage: their Register objects read and write it too.  While a register
+    // has no observers and back-stepping is off, the simulator uses it directly.
+    private static final int PC_INDEX = 32;
+    private static final int[] values = new int[PC_INDEX + 1];
+
     private static Register[] regFile =
-            {new Register("zero", 0, 0), new Register("ra", 1, 0),
-                    new Register("vsp", 2, 0), new Register("gp", 3, 0),
-                    new Register("tp", 4, 0), new Register("t0", 5, 0),
-                    new Register("t1", 6, 0), new Register("t2", 7, 0),
-                    new Register("s0", 8, 0), new Register("s1", 9, 0),
-                    new Register("a0", 10, 0), new Register("a1", 11, 0),
-                    new Register("a2", 12, 0), new Register("a3", 13, 0),
-                    new Register("a4", 14, 0), new Register("a5", 15, 0),
-                    new Register("a6", 16, 0), new Register("a7", 17, 0),
-                    new Register("s2", 18, 0), new Register("s3", 19, 0),
-                    new Register("s4", 20, 0), new Register("s5", 21, 0),
-                    new Register("s6", 22, 0), new Register("s7", 23, 0),
-                    new Register("s8", 24, 0), new Register("s9", 25, 0),
-                    new Register("s10", 26, 0), new Register("s11", 27, 0),
-                    new Register("t3", 28, 0), new Register("t4", 29, 0),
-                    new Register("t5", 30, 0), new Register("t6", 31, 0),
+            {new FileRegister("zero", 0, 0), new FileRegister("ra", 1, 0),
+                    new FileRegister("vsp", 2, 0), new FileRegister("gp", 3, 0),
+                    new FileRegister("tp", 4, 0), new FileRegister("t0", 5, 0),
+                    new FileRegister("t1", 6, 0), new FileRegister("t2", 7, 0),
+                    new FileRegister("s0", 8, 0), new FileRegister("s1", 9, 0),
+                    new FileRegister("a0", 10, 0), new FileRegister("a1", 11, 0),
+                    new FileRegister("a2", 12, 0), new FileRegister("a3", 13, 0),
+                    new FileRegister("a4", 14, 0), new FileRegister("a5", 15, 0),
+                    new FileRegister("a6", 16, 0), new FileRegister("a7", 17, 0),
+                    new FileRegister("s2", 18, 0), new FileRegister("s3", 19, 0),
+                    new FileRegister("s4", 20, 0), new FileRegister("s5", 21, 0),
+                    new FileRegister("s6", 22, 0), new FileRegister("s7", 23, 0),
+                    new FileRegister("s8", 24, 0), new FileRegister("s9", 25, 0),
+                    new FileRegister("s10", 26, 0), new FileRegister("s11", 27, 0),
+                    new FileRegister("t3", 28, 0), new FileRegister("t4", 29, 0),
+                    new FileRegister("t5", 30, 0), new FileRegister("t6", 31, 0),
                     //new Register("gp", GLOBAL_POINTER_REGISTER, Memory.globalPointer),
                     //new Register("sp", STACK_POINTER_REGISTER, Memory.stackPointer),
                     //new Register("fp", 30, 0),new Register("ra", 31, 0)
             };
 
-    private static Register programCounter = new Register("pc", 32, Memory.textBaseAddress);
+    private static Register programCounter = new FileRegister("pc", PC_INDEX, Memory.textBaseAddress);
     private static Register hi = new Register("hi", 33, 0);//this is an internal register with arbitrary number
     private static Register lo = new Register("lo", 34, 0);// this is an internal register with arbitrary number
 
@@ -99,17 +105,17 @@ public class RegisterFile {
         int old = 0;
         if (num == 0) {
             //System.out.println("You can not change the value of the zero register.");
-        } else {
-            for (int i = 0; i < regFile.length; i++) {
-                if (regFile[i].getNumber() == num) {
-                    old = (Globals.getSettings().getBackSteppingEnabled())
-                            ? Globals.program.getBackStepper().addRegisterFileRestore(num, regFile[i].setValue(val))
-                            : regFile[i].setValue(val);
-                    break;
-                }
+        } else if (num < PC_INDEX) {
+            // regFile[num] is register number num
+            if (regFile[num].isObserved() || Globals.getSettings().getBackSteppingEnabled()) {
+                old = (Globals.getSettings().getBackSteppingEnabled())
+                        ? Globals.program.getBackStepper().addRegisterFileRestore(num, regFile[num].setValue(val))
+                        : regFile[num].setValue(val);
+            } else {
+                old = values[num];
+                values[num] = val;
             }
-        }
-        if (num == 33) {//updates the hi register
+        } else if (num == 33) {//updates the hi register
             old = (Globals.getSettings().getBackSteppingEnabled())
                     ? Globals.program.getBackStepper().addRegisterFileRestore(num, hi.setValue(val))
                     : hi.setValue(val);
@@ -153,8 +159,11 @@ public class RegisterFile {
             return hi.getValue();
         } else if (num == 34) {
             return lo.getValue();
-        } else
+        } else if (regFile[num].isObserved()) {
             return regFile[num].getValue();
+        } else {
+            return values[num];
+        }
 
     }
 
@@ -227,7 +236,11 @@ public class RegisterFile {
      **/
 
     public static void initializeProgramCounter(int value) {
-        programCounter.setValue(value);
+        if (programCounter.isObserved()) {
+            programCounter.setValue(value);
+        } else {
+            values[PC_INDEX] = value;
+        }
     }
 
     /**
@@ -273,7 +286,7 @@ public class RegisterFile {
      **/
 
     public static int getProgramCounter() {
-        return programCounter.getValue();
+        return (programCounter.isObserved()) ? programCounter.getValue() : values[PC_INDEX];
     }
 
     /**
@@ -318,7 +331,11 @@ public class RegisterFile {
      **/
 
     public static void incrementPC() {
-        programCounter.setValue(programCounter.getValue() + Instruction.INSTRUCTION_LENGTH);
+        if (programCounter.isObserved()) {
+            programCounter.setValue(programCounter.getValue() + Instruction.INSTRUCTION_LENGTH);
+        } else {
+            values[PC_INDEX] += Instruction.INSTRUCTION_LENGTH;
+        }
     }
 
     /**
@@ -346,4 +363,34 @@ public class RegisterFile {
         hi.deleteObserver(observer);
         lo.deleteObserver(observer);
     }
+
+    /**
+     * A register whose value lives in the values array, at the index of its number.
+     */
+    private static class FileRegister extends Register {
+        FileRegister(String name, int number, int value) {
+            super(name, number, value);
+            values[number] = value;
+        }
+
+        public int getValue() {
+            notifyAnyObservers(AccessNotice.READ);
+            return values[getNumber()];
+        }
+
+        public int getValueNoNotify() {
+            return values[getNumber()];
+        }
+
+        public int setValue(int val) {
+            int old = values[getNumber()];
+            values[getNumber()] = val;
+            notifyAnyObservers(AccessNotice.WRITE);
+            return old;
+        }
+
+        public void resetValue() {
+            values[getNumber()] = getResetValue();
+        }
+    }
 }
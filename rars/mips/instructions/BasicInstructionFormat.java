@@ -40,16 +40,28 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
  * @version August 2003
  */
 public class BasicInstructionFormat {//Format in MIPS is not deleted
-    public static final BasicInstructionFormat R_FORMAT = new BasicInstructionFormat();//
-    public static final BasicInstructionFormat I_FORMAT = new BasicInstructionFormat();//
-    public static final BasicInstructionFormat I_BRANCH_FORMAT = new BasicInstructionFormat();
-    public static final BasicInstructionFormat J_FORMAT = new BasicInstructionFormat();
-    public static final BasicInstructionFormat S_FORMAT = new BasicInstructionFormat();//
-    public static final BasicInstructionFormat SB_FORMAT = new BasicInstructionFormat();//
-    public static final BasicInstructionFormat U_FORMAT = new BasicInstructionFormat();//
-    public static final BasicInstructionFormat UJ_FORMAT = new BasicInstructionFormat();//
-
-    // private default constructor prevents objects of this class other than those above.
-    private BasicInstructionFormat() {
+    public static final BasicInstructionFormat R_FORMAT = new BasicInstructionFormat("R");//
+    public static final BasicInstructionFormat I_FORMAT = new BasicInstructionFormat("I");//
+    public static final BasicInstructionFormat I_BRANCH_FORMAT = new BasicInstructionFormat("I-BRANCH");
+    public static final BasicInstructionFormat J_FORMAT = new BasicInstructionFormat("J");
+    public static final BasicInstructionFormat S_FORMAT = new BasicInstructionFormat("S");//
+    public static final BasicInstructionFormat SB_FORMAT = new BasicInstructionFormat("SB");//
+    public static final BasicInstructionFormat U_FORMAT = new BasicInstructionFormat("U");//
+    public static final BasicInstructionFormat UJ_FORMAT = new BasicInstructionFormat("UJ");//
+
+    private String name;
+
+    // private constructor prevents objects of this class other than those above.
+    private BasicInstructionFormat(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Produces the name of this format, e.g. "R" or "SB".
+     *
+     * @return the format name
+     */
+    public String toString() {
+        return name;
     }
 }
@@ -66,8 +66,11 @@ public abstract class Instruction {
     protected String description;
     /**
      * List of tokens generated by tokenizing example usage (see <tt>exampleFormat</tt>).
+     * Created on first use, as most instructions are never used by a given program.
+     * Volatile as programs may be assembled on several threads (see BatchRunner); a
+     * race only tokenizes the same example twice.
      **/
-    protected TokenList tokenList;
+    protected volatile TokenList tokenList;
 
 
     /**
@@ -111,7 +114,12 @@ public abstract class Instruction {
      */
 
     public TokenList getTokenList() {
-        return tokenList;
+        TokenList tokens = tokenList;
+        if (tokens == null) {
+            createExampleTokenList();
+            tokens = tokenList;
+        }
+        return tokens;
     }
 
 
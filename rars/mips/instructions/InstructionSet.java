@@ -3,6 +3,7 @@ package rars.mips.instructions;
 import rars.simulator.*;
 import rars.mips.hardware.*;
 import rars.mips.instructions.syscalls.*;
+import rars.util.*;
 import rars.*;
 
 import java.util.*;
@@ -48,8 +49,14 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
 public class InstructionSet {
     private ArrayList instructionList;
     private ArrayList opcodeMatchMaps;
+    private volatile BasicInstruction[][] decodeTable; // see findByBinaryCode()
+    private OperatorIndex operatorIndex; // see matchOperator()
     private SyscallLoader syscallLoader;
 
+    // The decode table is indexed by the opcode (bits 0-6), funct3 (bits 12-14) and
+    // funct7 (bits 25-31) fields of a machine instruction, packed into 17 bits.
+    private static final int DECODE_KEY_BITS = 17;
+
     /**
      * Creates a new InstructionSet object.
      */
@@ -800,12 +807,8 @@ public class InstructionSet {
         syscallLoader = new SyscallLoader();
         syscallLoader.loadSyscalls();
 
-        // Initialization step.  Create token list for each instruction example.  This is
-        // used by parser to determine user program correct syntax.
-        for (int i = 0; i < instructionList.size(); i++) {
-            Instruction inst = (Instruction) instructionList.get(i);
-            inst.createExampleTokenList();
-        }
+        // Token lists for instruction examples, used by the parser to check user program
+        // syntax, are created on demand by Instruction.getTokenList().
 
         HashMap maskMap = new HashMap();
         ArrayList matchMaps = new ArrayList();
@@ -826,18 +829,103 @@ public class InstructionSet {
         }
         Collections.sort(matchMaps);
         this.opcodeMatchMaps = matchMaps;
+        this.decodeTable = null;
     }
 
+    /**
+     * Given a 32-bit machine instruction, return the basic instruction it encodes.
+     * The instruction's opcode, funct3 and funct7 fields select, by one array lookup,
+     * the few basic instructions that could match; these are checked in order of
+     * decreasing mask length, so the most specific match wins.
+     *
+     * @param binaryInstr the machine instruction
+     * @return the matching BasicInstruction, or null if the instruction is not valid.
+     */
     public BasicInstruction findByBinaryCode(int binaryInstr) {
-        ArrayList matchMaps = this.opcodeMatchMaps;
-        for (int i = 0; i < matchMaps.size(); i++) {
-            MatchMap map = (MatchMap) matchMaps.get(i);
-            BasicInstruction ret = map.find(binaryInstr);
-            if (ret != null) return ret;
+        BasicInstruction[][] table = decodeTable;
+        if (table == null) {
+            table = buildDecodeTable();
+        }
+        BasicInstruction[] candidates = table[decodeKey(binaryInstr)];
+        if (candidates != null) {
+            for (int i = 0; i < candidates.length; i++) {
+                if ((binaryInstr & candidates[i].getOpcodeMask()) == candidates[i].getOpcodeMatch()) {
+                    return candidates[i];
+                }
+            }
         }
         return null;
     }
 
+    /**
+     * Decode a run of machine instructions, such as a raw text segment image, at once.
+     *
+     * @param binaryInstrs the machine instructions
+     * @return array of the same length holding the matching BasicInstruction for each
+     * machine instruction, or null where it is not valid.
+     */
+    public BasicInstruction[] findByBinaryCode(int[] binaryInstrs) {
+        BasicInstruction[] result = new BasicInstruction[binaryInstrs.length];
+        for (int i = 0; i < binaryInstrs.length; i++) {
+            result[i] = findByBinaryCode(binaryInstrs[i]);
+        }
+        return result;
+    }
+
+    private static int decodeKey(int binaryInstr) {
+        return (binaryInstr & 0x7F) | ((binaryInstr >>> 5) & 0x380) | ((binaryInstr >>> 15) & 0x1FC00);
+    }
+
+    // Built on first use; most programs never decode a binary instruction.  Each basic
+    // instruction is entered under every key its fixed bits allow, in MatchMap order.
+    // Identical candidate lists share one array.
+    private synchronized BasicInstruction[][] buildDecodeTable() {
+        if (decodeTable != null) {
+            return decodeTable;
+        }
+        BasicInstruction[][] table = new BasicInstruction[1 << DECODE_KEY_BITS][];
+        for (int i = 0; i < opcodeMatchMaps.size(); i++) {
+            MatchMap map = (MatchMap) opcodeMatchMaps.get(i);
+            int fixed = decodeKey(map.mask);
+            int free = ((1 << DECODE_KEY_BITS) - 1) & ~fixed;
+            Iterator instructions = map.matchMap.values().iterator();
+            while (instructions.hasNext()) {
+                BasicInstruction basic = (BasicInstruction) instructions.next();
+                int match = decodeKey(basic.getOpcodeMatch());
+                // visit every subset of the free key bits
+                int bits = free;
+                while (true) {
+                    int key = match | bits;
+                    BasicInstruction[] old = table[key];
+                    if (old == null) {
+                        table[key] = new BasicInstruction[]{basic};
+                    } else {
+                        table[key] = Arrays.copyOf(old, old.length + 1);
+                        table[key][old.length] = basic;
+                    }
+                    if (bits == 0) {
+                        break;
+                    }
+                    bits = (bits - 1) & free;
+                }
+            }
+        }
+        HashMap shared = new HashMap();
+        for (int key = 0; key < table.length; key++) {
+            if (table[key] != null) {
+                List candidates = Arrays.asList(table[key]);
+                BasicInstruction[] same = (BasicInstruction[]) shared.get(candidates);
+                if (same == null) {
+                    shared.put(candidates, table[key]);
+                } else {
+                    table[key] = same;
+                }
+            }
+        }
+        decodeTable = table;
+        return table;
+    }
+
     /*  METHOD TO ADD PSEUDO-INSTRUCTIONS
      */
 
@@ -849,9 +937,7 @@ public class InstructionSet {
             is = this.getClass().getResourceAsStream("/PseudoOps.txt");
             in = new BufferedReader(new InputStreamReader(is));
         } catch (NullPointerException e) {
-            System.out.println(
-                    "Error: MIPS pseudo-instruction file PseudoOps.txt not found.");
-            System.exit(0);
+            throw new IllegalStateException("Error: MIPS pseudo-instruction file PseudoOps.txt not found.");
         }
         try {
             String line, pseudoOp, template, firstTemplate, token;
@@ -893,59 +979,84 @@ public class InstructionSet {
             }
             in.close();
         } catch (IOException ioe) {
-            System.out.println(
-                    "Internal Error: MIPS pseudo-instructions could not be loaded.");
-            System.exit(0);
+            throw new IllegalStateException("Internal Error: MIPS pseudo-instructions could not be loaded.", ioe);
         } catch (Exception ioe) {
-            System.out.println(
-                    "Error: Invalid MIPS pseudo-instruction specification.");
-            System.exit(0);
+            throw new IllegalStateException("Error: Invalid MIPS pseudo-instruction specification.", ioe);
         }
 
     }
 
     /**
      * Given an operator mnemonic, will return the corresponding Instruction object(s)
-     * from the instruction set.  Uses straight linear search technique.
+     * from the instruction set.  Case-insensitive.  Uses a hash index of mnemonics.
      *
      * @param name operator mnemonic (e.g. addi, sw,...)
      * @return list of corresponding Instruction object(s), or null if not found.
      */
     public ArrayList matchOperator(String name) {
-        ArrayList matchingInstructions = null;
-        // Linear search for now....
-        for (int i = 0; i < instructionList.size(); i++) {
-            if (((Instruction) instructionList.get(i)).getName().equalsIgnoreCase(name)) {
-                if (matchingInstructions == null)
-                    matchingInstructions = new ArrayList();
-                matchingInstructions.add(instructionList.get(i));
-            }
+        if (name == null) {
+            return null;
         }
-        return matchingInstructions;
+        OperatorIndex index = getOperatorIndex();
+        return index.instructions((int[]) index.byName.get(operatorKey(name)));
     }
 
 
     /**
      * Given a string, will return the Instruction object(s) from the instruction
      * set whose operator mnemonic prefix matches it.  Case-insensitive.  For example
-     * "s" will match "sw", "sh", "sb", etc.  Uses straight linear search technique.
+     * "s" will match "sw", "sh", "sb", etc.  Uses binary search of the sorted mnemonics.
      *
      * @param name a string
      * @return list of matching Instruction object(s), or null if none match.
      */
     public ArrayList prefixMatchOperator(String name) {
-        ArrayList matchingInstructions = null;
-        // Linear search for now....
-        if (name != null) {
-            for (int i = 0; i < instructionList.size(); i++) {
-                if (((Instruction) instructionList.get(i)).getName().toLowerCase().startsWith(name.toLowerCase())) {
-                    if (matchingInstructions == null)
-                        matchingInstructions = new ArrayList();
-                    matchingInstructions.add(instructionList.get(i));
-                }
-            }
+        if (name == null) {
+            return null;
+        }
+        OperatorIndex index = getOperatorIndex();
+        String prefix = operatorKey(name);
+        String[] names = index.sortedNames;
+        // first mnemonic not less than the prefix; those that follow match while they start with it
+        int low = Arrays.binarySearch(names, prefix);
+        if (low < 0) {
+            low = -low - 1;
+        }
+        int high = low;
+        int count = 0;
+        while (high < names.length && names[high].startsWith(prefix)) {
+            count += ((int[]) index.byName.get(names[high])).length;
+            high++;
         }
-        return matchingInstructions;
+        if (count == 0) {
+            return null;
+        }
+        // report in instruction set order, as the matches for one name are
+        int[] positions = new int[count];
+        count = 0;
+        for (int i = low; i < high; i++) {
+            int[] forName = (int[]) index.byName.get(names[i]);
+            System.arraycopy(forName, 0, positions, count, forName.length);
+            count += forName.length;
+        }
+        Arrays.sort(positions);
+        return index.instructions(positions);
+    }
+
+    // Mnemonics are compared a character at a time, like String.equalsIgnoreCase().
+    private static String operatorKey(String name) {
+        char[] key = new char[name.length()];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = Character.toLowerCase(Character.toUpperCase(name.charAt(i)));
+        }
+        return new String(key);
+    }
+
+    private synchronized OperatorIndex getOperatorIndex() {
+        if (operatorIndex == null || operatorIndex.size != instructionList.size()) {
+            operatorIndex = new OperatorIndex(instructionList);
+        }
+        return operatorIndex;
     }
 
     /*
@@ -958,7 +1069,11 @@ public class InstructionSet {
             throws ProcessingException {
         Syscall service = syscallLoader.findSyscall(number);
         if (service != null) {
-            service.simulate(statement);
+            try {
+                service.simulate(statement);
+            } catch (SyscallLog.ReplayException e) {
+                throw new ProcessingException(statement, e.getMessage());
+            }
             return;
         }
         throw new ProcessingException(statement,
@@ -1030,6 +1145,42 @@ public class InstructionSet {
                         Instruction.INSTRUCTION_LENGTH : 0));
     }
 
+    // Positions in the instruction list of the instructions with each mnemonic, keyed
+    // by operatorKey(), and the keys in sorted order for prefix searches.
+    private static class OperatorIndex {
+        private final ArrayList instructionList;
+        private final int size;
+        private final HashMap byName;
+        private final String[] sortedNames;
+
+        OperatorIndex(ArrayList instructionList) {
+            this.instructionList = instructionList;
+            this.size = instructionList.size();
+            this.byName = new HashMap();
+            for (int i = 0; i < size; i++) {
+                String key = operatorKey(((Instruction) instructionList.get(i)).getName());
+                int[] old = (int[]) byName.get(key);
+                int[] positions = (old == null) ? new int[1] : Arrays.copyOf(old, old.length + 1);
+                positions[positions.length - 1] = i;
+                byName.put(key, positions);
+            }
+            this.sortedNames = (String[]) byName.keySet().toArray(new String[byName.size()]);
+            Arrays.sort(sortedNames);
+        }
+
+        // A new list each time, as callers are free to change it.
+        ArrayList instructions(int[] positions) {
+            if (positions == null) {
+                return null;
+            }
+            ArrayList result = new ArrayList(positions.length);
+            for (int i = 0; i < positions.length; i++) {
+                result.add(instructionList.get(positions[i]));
+            }
+            return result;
+        }
+    }
+
     private static class MatchMap implements Comparable {
         private int mask;
         private int maskLength; // number of 1 bits in mask
@@ -1058,11 +1209,6 @@ public class InstructionSet {
             if (d == 0) d = this.mask - o.mask;
             return d;
         }
-
-        public BasicInstruction find(int instr) {
-            int match = Integer.valueOf(instr & mask);
-            return (BasicInstruction) matchMap.get(match);
-        }
     }
 }
 
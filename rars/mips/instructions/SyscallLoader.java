@@ -52,6 +52,7 @@ class SyscallLoader {
     private static final String CLASS_EXTENSION = "class";
 
     private ArrayList syscallList;
+    private HashMap syscallsByNumber; // built once numbers are final, see loadSyscalls()
 
     /*
      *  Dynamically loads Syscalls into an ArrayList.  This method is adapted from
@@ -61,6 +62,7 @@ class SyscallLoader {
      */
     void loadSyscalls() {
         syscallList = new ArrayList();
+        syscallsByNumber = null;
         // grab all class files in the same directory as Syscall
         ArrayList candidates = FilenameFinder.getFilenameList(this.getClass().getClassLoader(),
                 SYSCALLS_DIRECTORY_PATH, CLASS_EXTENSION);
@@ -91,12 +93,17 @@ class SyscallLoader {
                                 findSyscall(syscall.getNumber()).getName());
                     }
                 } catch (Exception e) {
-                    System.out.println("Error instantiating Syscall from file " + file + ": " + e);
-                    System.exit(0);
+                    throw new IllegalStateException("Error instantiating Syscall from file " + file + ": " + e, e);
                 }
             }
         }
         syscallList = processSyscallNumberOverrides(syscallList);
+        HashMap byNumber = new HashMap();
+        for (int i = 0; i < syscallList.size(); i++) {
+            Syscall syscall = (Syscall) syscallList.get(i);
+            byNumber.put(Integer.valueOf(syscall.getNumber()), syscall);
+        }
+        syscallsByNumber = byNumber;
         return;
     }
 
@@ -118,9 +125,8 @@ class SyscallLoader {
                 }
             }
             if (!match) {
-                System.out.println("Error: syscall name '" + override.getName() +
+                throw new IllegalStateException("Error: syscall name '" + override.getName() +
                         "' in config file does not match any name in syscall list");
-                System.exit(0);
             }
         }
         // Wait until end to check for duplicate numbers.  To do so earlier
@@ -130,20 +136,19 @@ class SyscallLoader {
         // of a new Syscall subclass to the collection, even if the config file
         // does not contain any overrides.
         Syscall syscallA, syscallB;
-        boolean duplicates = false;
+        String duplicates = "";
         for (int i = 0; i < syscallList.size(); i++) {
             syscallA = (Syscall) syscallList.get(i);
             for (int j = i + 1; j < syscallList.size(); j++) {
                 syscallB = (Syscall) syscallList.get(j);
                 if (syscallA.getNumber() == syscallB.getNumber()) {
-                    System.out.println("Error: syscalls " + syscallA.getName() + " and " +
-                            syscallB.getName() + " are both assigned same number " + syscallA.getNumber());
-                    duplicates = true;
+                    duplicates += ((duplicates.length() == 0) ? "" : "\n") + "Error: syscalls " + syscallA.getName()
+                            + " and " + syscallB.getName() + " are both assigned same number " + syscallA.getNumber();
                 }
             }
         }
-        if (duplicates) {
-            System.exit(0);
+        if (duplicates.length() > 0) {
+            throw new IllegalStateException(duplicates);
         }
         return syscallList;
     }
@@ -153,11 +158,14 @@ class SyscallLoader {
      * Returns null if no associated object found.
      */
     Syscall findSyscall(int number) {
-        // linear search is OK since number of syscalls is small.
         Syscall service, match = null;
         if (syscallList == null) {
             loadSyscalls();
         }
+        if (syscallsByNumber != null) {
+            return (Syscall) syscallsByNumber.get(Integer.valueOf(number));
+        }
+        // still loading: linear search is OK since number of syscalls is small.
         for (int index = 0; index < syscallList.size(); index++) {
             service = (Syscall) syscallList.get(index);
             if (service.getNumber() == number) {
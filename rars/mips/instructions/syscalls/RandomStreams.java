@@ -1,6 +1,10 @@
 package rars.mips.instructions.syscalls;
 
+import rars.util.*;
+
+import java.io.*;
 import java.util.HashMap;
+import java.util.Random;
 
 /*
 Copyright (c) 2003-2008,  Pete Sanderson and Kenneth Vollmar
@@ -43,4 +47,73 @@ public class RandomStreams {
      * The streams are by default not seeded.
      */
     static final HashMap randomStreams = new HashMap();
+    private static final Random seeds = new Random();
+
+    /**
+     * Return the stream with the given index, creating it if need be.  A stream created
+     * here is not seeded by the program; its seed passes through SyscallLog so that a
+     * replayed run gets the same numbers.
+     *
+     * @param index index of pseudorandom number generator
+     * @return the stream
+     */
+    static Random getStream(int index) {
+        Integer key = Integer.valueOf(index);
+        Random stream = (Random) randomStreams.get(key);
+        if (stream == null) {
+            stream = new Random(SyscallLog.logRandomSeed(seeds.nextLong()));
+            randomStreams.put(key, stream);
+        }
+        return stream;
+    }
+
+    /**
+     * Return a copy of all the streams, each in its current state, for setState().
+     *
+     * @return the saved streams, null if there are none
+     */
+    public static byte[] getState() {
+        if (randomStreams.isEmpty()) {
+            return null;
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(randomStreams);
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e.toString()); // Random and Integer are serializable
+        }
+    }
+
+    /**
+     * Replace all the streams with those saved by getState(), so that each continues
+     * from where it was then.
+     *
+     * @param state the saved streams, null for none
+     */
+    public static void setState(byte[] state) {
+        if (state == null) {
+            randomStreams.clear();
+            return;
+        }
+        try {
+            ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(state));
+            HashMap saved = (HashMap) in.readObject();
+            randomStreams.clear();
+            randomStreams.putAll(saved);
+        } catch (IOException e) {
+            throw new IllegalStateException(e.toString());
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e.toString());
+        }
+    }
+
+    /**
+     * Discard all streams, as at startup.
+     */
+    public static void reset() {
+        randomStreams.clear();
+    }
 }
\ No newline at end of file
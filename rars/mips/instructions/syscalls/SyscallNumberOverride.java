@@ -55,8 +55,7 @@ public class SyscallNumberOverride {
         try {
             this.newServiceNumber = Integer.parseInt(value.trim());
         } catch (NumberFormatException e) {
-            System.out.println("Error processing Syscall number override: '" + value.trim() + "' is not a valid integer");
-            System.exit(0);
+            throw new IllegalStateException("Error processing Syscall number override: '" + value.trim() + "' is not a valid integer");
         }
     }
 
@@ -56,12 +56,7 @@ public class SyscallRandDouble extends AbstractSyscall {
         // Input arguments: $a0 = index of pseudorandom number generator
         // Return: $f0 = the next pseudorandom, uniformly distributed double value between 0.0 and 1.0
         // from this random number generator's sequence.
-        Integer index = new Integer(RegisterFile.getValue(4));
-        Random stream = (Random) RandomStreams.randomStreams.get(index);
-        if (stream == null) {
-            stream = new Random(); // create a non-seeded stream
-            RandomStreams.randomStreams.put(index, stream);
-        }
+        Random stream = RandomStreams.getStream(RegisterFile.getValue(4));
         try {
             Coprocessor1.setRegisterPairToDouble(0, stream.nextDouble());
         } catch (InvalidRegisterAccessException e) {   // register ID error in this method
@@ -58,12 +58,7 @@ public class SyscallRandIntRange extends AbstractSyscall {
         //    $a1 = the upper bound of range of returned values.
         // Return: $a0 = the next pseudorandom, uniformly distributed int value from this
         // random number generator's sequence.
-        Integer index = new Integer(RegisterFile.getValue(4));
-        Random stream = (Random) RandomStreams.randomStreams.get(index);
-        if (stream == null) {
-            stream = new Random(); // create a non-seeded stream
-            RandomStreams.randomStreams.put(index, stream);
-        }
+        Random stream = RandomStreams.getStream(RegisterFile.getValue(4));
         try {
             RegisterFile.updateRegister(4, stream.nextInt(RegisterFile.getValue(5)));
         } catch (IllegalArgumentException iae) {
@@ -4,6 +4,8 @@ import rars.*;
 import rars.mips.hardware.*;
 import rars.mips.instructions.*;
 
+import java.util.Arrays;
+
 /*
 Copyright (c) 2003-2006,  Pete Sanderson and Kenneth Vollmar
 
@@ -57,6 +59,9 @@ public class BackStepper {
     // Flag to mark BackStep object as prepresenting specific situation: user manipulates
     // memory/register value via GUI after assembling program but before running it.
     private static final int NOT_PC_VALUE = -1;
+    // Or'ed into the recorded action of a step taken in a delayed branch's delay slot.
+    private static final int IN_DELAY_SLOT = 0x100;
+    private static final int ACTION_MASK = 0xFF;
 
     private boolean engaged;
     private BackstepStack backSteps;
@@ -105,6 +110,14 @@ public class BackStepper {
         return backSteps.empty();
     }
 
+    /**
+     * Discard all steps that could be undone, as when the machine state has been replaced
+     * by a checkpoint's and they no longer apply.
+     */
+    public void clear() {
+        backSteps = new BackstepStack(Globals.maximumBacksteps);
+    }
+
     /**
      * Determine whether the next back-step action occurred as the result of
      * an instruction that executed in the "delay slot" of a delayed branch.
@@ -114,7 +127,7 @@ public class BackStepper {
      */
     // Added 25 June 2007
     public boolean inDelaySlot() {
-        return !empty() && backSteps.peek().inDelaySlot;
+        return !empty() && (backSteps.action[backSteps.peek()] & IN_DELAY_SLOT) != 0;
     }
 
     /**
@@ -127,66 +140,81 @@ public class BackStepper {
     // all store their result in register pairs which results in two store operations.
     // Both must be undone transparently, so we need to detect that multiple steps happen
     // together and carry out all of them here.
-    // Use a do-while loop based on the backstep's program statement reference.
+    // Use a do-while loop based on the backstep's program statement reference.  Statements
+    // are not recorded with the steps; they are looked up here, only for the steps undone.
     public void backStep() {
         if (engaged && !backSteps.empty()) {
-            ProgramStatement statement = ((BackStep) backSteps.peek()).ps;
+            Object statement = statementAt(backSteps.pc[backSteps.peek()]);
             engaged = false; // GOTTA DO THIS SO METHOD CALL IN SWITCH WILL NOT RESULT IN NEW ACTION ON STACK!
             do {
-                BackStep step = (BackStep) backSteps.pop();
-            /*
-            	System.out.println("backstep POP: action "+step.action+" pc "+rars.util.Binary.intToHexString(step.pc)+
-            	                   " source "+((step.ps==null)? "none":step.ps.getSource())+
-            							 " parm1 "+step.param1+" parm2 "+step.param2);
-            */
-                if (step.pc != NOT_PC_VALUE) {
-                    RegisterFile.setProgramCounter(step.pc);
+                int step = backSteps.pop();
+                int pc = backSteps.pc[step];
+                int param1 = backSteps.param1[step];
+                int param2 = backSteps.param2[step];
+                if (pc != NOT_PC_VALUE) {
+                    RegisterFile.setProgramCounter(pc);
                 }
                 try {
-                    switch (step.action) {
+                    switch (backSteps.action[step] & ACTION_MASK) {
                         case MEMORY_RESTORE_RAW_WORD:
-                            Globals.memory.setRawWord(step.param1, step.param2);
+                            Globals.memory.setRawWord(param1, param2);
                             break;
                         case MEMORY_RESTORE_WORD:
-                            Globals.memory.setWord(step.param1, step.param2);
+                            Globals.memory.setWord(param1, param2);
                             break;
                         case MEMORY_RESTORE_HALF:
-                            Globals.memory.setHalf(step.param1, step.param2);
+                            Globals.memory.setHalf(param1, param2);
                             break;
                         case MEMORY_RESTORE_BYTE:
-                            Globals.memory.setByte(step.param1, step.param2);
+                            Globals.memory.setByte(param1, param2);
                             break;
                         case REGISTER_RESTORE:
-                            RegisterFile.updateRegister(step.param1, step.param2);
+                            RegisterFile.updateRegister(param1, param2);
                             break;
                         case PC_RESTORE:
-                            RegisterFile.setProgramCounter(step.param1);
+                            RegisterFile.setProgramCounter(param1);
                             break;
                         case COPROC0_REGISTER_RESTORE:
-                            Coprocessor0.updateRegister(step.param1, step.param2);
+                            Coprocessor0.updateRegister(param1, param2);
                             break;
                         case COPROC1_REGISTER_RESTORE:
-                            Coprocessor1.updateRegister(step.param1, step.param2);
+                            Coprocessor1.updateRegister(param1, param2);
                             break;
                         case COPROC1_CONDITION_CLEAR:
-                            Coprocessor1.clearConditionFlag(step.param1);
+                            Coprocessor1.clearConditionFlag(param1);
                             break;
                         case COPROC1_CONDITION_SET:
-                            Coprocessor1.setConditionFlag(step.param1);
+                            Coprocessor1.setConditionFlag(param1);
                             break;
                         case DO_NOTHING:
                             break;
                     }
                 } catch (Exception e) {
                     // if the original action did not cause an exception this will not either.
-                    System.out.println("Internal MARS error: address exception while back-stepping.");
-                    System.exit(0);
+                    throw new IllegalStateException("Internal MARS error: address exception while back-stepping.", e);
                 }
-            } while (!backSteps.empty() && statement == ((BackStep) backSteps.peek()).ps);
+            } while (!backSteps.empty() && statement == statementAt(backSteps.pc[backSteps.peek()]));
             engaged = true;  // RESET IT (was disabled at top of loop -- see comment)
         }
     }
 
+    // The statement that a step recorded at the given pc belongs to, for grouping the steps
+    // of one instruction.  Outside the text segments (self-modifying code executing data)
+    // every lookup yields a distinct statement, so such steps are never grouped.
+    private Object statementAt(int pc) {
+        if (pc == NOT_PC_VALUE) {
+            return null;
+        }
+        if (!Memory.inTextSegment(pc) && !Memory.inKernelTextSegment(pc)) {
+            return new Object();
+        }
+        try {
+            return Globals.memory.getStatementNoNotify(pc);
+        } catch (AddressErrorException e) {
+            return null;
+        }
+    }
+
 
     /* Convenience method called below to get program counter value.  If it needs to be
      * be modified (e.g. to subtract 4) that can be done here in one place.
@@ -337,91 +365,54 @@ public class BackStepper {
      * @return 0
      */
     public int addDoNothing(int pc) {
-        if (backSteps.empty() || backSteps.peek().pc != pc) {
+        if (backSteps.empty() || backSteps.pc[backSteps.peek()] != pc) {
             backSteps.push(DO_NOTHING, pc);
         }
         return 0;
     }
 
 
-    // Represents a "back step" (undo action) on the stack.
-    private class BackStep {
-        private int action;  // what do do MEMORY_RESTORE_WORD, etc
-        private int pc;      // program counter value when original step occurred
-        private ProgramStatement ps;   // statement whose action is being "undone" here
-        private int param1;  // first parameter required by that action
-        private int param2;  // optional second parameter required by that action
-        private boolean inDelaySlot; // true if instruction executed in "delay slot" (delayed branching enabled)
-
-        // it is critical that BackStep object get its values by calling this method
-        // rather than assigning to individual members, because of the technique used
-        // to set its ps member (and possibly pc).
-        private void assign(int act, int programCounter, int parm1, int parm2) {
-            action = act;
-            pc = programCounter;
-            try {
-                // Client does not have direct access to program statement, and rather than making all
-                // of them go through the methods below to obtain it, we will do it here.
-                // Want the program statement but do not want observers notified.
-                ps = Globals.memory.getStatementNoNotify(programCounter);
-            } catch (Exception e) {
-                // The only situation causing this so far: user modifies memory or register
-                // contents through direct manipulation on the GUI, after assembling the program but
-                // before starting to run it (or after backstepping all the way to the start).
-                // The action will not be associated with any instruction, but will be carried out
-                // when popped.
-                ps = null;
-                pc = NOT_PC_VALUE; // Backstep method above will see this as flag to not set PC
-            }
-            param1 = parm1;
-            param2 = parm2;
-            inDelaySlot = Simulator.inDelaySlot(); // ADDED 25 June 2007
-         /*				
-            System.out.println("backstep PUSH: action "+action+" pc "+rars.util.Binary.intToHexString(pc)+
-         		                   " source "+((ps==null)? "none":ps.getSource())+
-         								 " parm1 "+param1+" parm2 "+param2);
-         */
-        }
-    }
-
     // *****************************************************************************
     // special purpose stack class for backstepping.  You've heard of circular queues
     // implemented with an array, right?  This is a circular stack!  When full, the
     // newly-pushed item overwrites the oldest item, with circular top!  All operations
-    // are constant time.  It's synchronized too, to be safe (is used by both the
-    // simulation thread and the GUI thread for the back-step button).
-    // Upon construction, it is filled with newly-created empty BackStep objects which
-    // will exist for the life of the stack.  Push does not create a BackStep object
-    // but instead overwrites the contents of the existing one.  Thus during MIPS
-    // program (simulated) execution, BackStep objects are never created or junked
-    // regardless of how many steps are executed.  This will speed things up a bit
-    // and make life easier for the garbage collector.
+    // are constant time.
+    // Each step is one slot across parallel primitive arrays, so pushing allocates nothing
+    // and a deep history costs 16 bytes a step.  The arrays start small and double up to
+    // the capacity, so a large limit costs nothing until a program runs that long.
+    // Only the simulation thread pushes; the GUI pops only while the simulation is paused,
+    // so no locking is done.
 
     private class BackstepStack {
+        private static final int INITIAL_LENGTH = 1024;
         private int capacity;
         private int size;
         private int top;
-        private BackStep[] stack;
+        private int[] action;  // what do do MEMORY_RESTORE_WORD, etc, plus IN_DELAY_SLOT
+        private int[] pc;      // program counter value when original step occurred
+        private int[] param1;  // first parameter required by that action
+        private int[] param2;  // optional second parameter required by that action
 
-        // Stack is created upon successful assembly or reset.  The one-time overhead of
-        // creating all the BackStep objects will not be noticed by the user, and enhances
-        // runtime performance by not having to create or recycle them during MIPS
-        // program execution.
+        // Stack is created upon successful assembly or reset.
         private BackstepStack(int capacity) {
             this.capacity = capacity;
             this.size = 0;
             this.top = -1;
-            this.stack = new BackStep[capacity];
-            for (int i = 0; i < capacity; i++) {
-                this.stack[i] = new BackStep();
-            }
+            int length = Math.min(capacity, INITIAL_LENGTH);
+            this.action = new int[length];
+            this.pc = new int[length];
+            this.param1 = new int[length];
+            this.param2 = new int[length];
         }
 
-        private synchronized boolean empty() {
+        private boolean empty() {
             return size == 0;
         }
 
-        private synchronized void push(int act, int programCounter, int parm1, int parm2) {
+        private void push(int act, int programCounter, int parm1, int parm2) {
+            if (size == action.length && size < capacity) {
+                grow();
+            }
             if (size == 0) {
                 top = 0;
                 size++;
@@ -431,39 +422,69 @@ public class BackStepper {
             } else { // size == capacity.  The top moves up one, replacing oldest entry (goodbye!)
                 top = (top + 1) % capacity;
             }
-            // We'll re-use existing objects rather than create/discard each time.
-            // Must use assign() method rather than series of assignment statements!
-            stack[top].assign(act, programCounter, parm1, parm2);
+            if (programCounter != NOT_PC_VALUE && !isStatementAddress(programCounter)) {
+                // The user manipulated memory or register contents through the GUI, after
+                // assembling the program but before starting to run it (or after backstepping
+                // all the way to the start).  The action will not be associated with any
+                // instruction, but will be carried out when popped.
+                programCounter = NOT_PC_VALUE;
+            }
+            action[top] = (Simulator.inDelaySlot()) ? act | IN_DELAY_SLOT : act;
+            pc[top] = programCounter;
+            param1[top] = parm1;
+            param2[top] = parm2;
         }
 
-        private synchronized void push(int act, int programCounter, int parm1) {
+        private void push(int act, int programCounter, int parm1) {
             push(act, programCounter, parm1, 0);
         }
 
-        private synchronized void push(int act, int programCounter) {
+        private void push(int act, int programCounter) {
             push(act, programCounter, 0, 0);
         }
 
         // NO PROTECTION.  This class is used only within this file so there is no excuse
-        // for trying to pop from empty stack.
-        private synchronized BackStep pop() {
-            BackStep bs;
-            bs = stack[top];
+        // for trying to pop from empty stack.  Returns the slot of the popped step, which
+        // stays valid until the next push.
+        private int pop() {
+            int slot = top;
             if (size == 1) {
                 top = -1;
             } else {
                 top = (top + capacity - 1) % capacity;
             }
             size--;
-            return bs;
+            return slot;
         }
 
         // NO PROTECTION.  This class is used only within this file so there is no excuse
-        // for trying to peek from empty stack.
-        private synchronized BackStep peek() {
-            return stack[top];
+        // for trying to peek from empty stack.  Returns the slot of the top step.
+        private int peek() {
+            return top;
         }
 
+        // The stack has not wrapped while smaller than capacity, so slots 0..top are in use.
+        private void grow() {
+            int length = (int) Math.min((long) capacity, 2L * action.length);
+            action = Arrays.copyOf(action, length);
+            pc = Arrays.copyOf(pc, length);
+            param1 = Arrays.copyOf(param1, length);
+            param2 = Arrays.copyOf(param2, length);
+        }
+
+        // Whether a statement could be looked up at this address, as it is in backStep().
+        private boolean isStatementAddress(int address) {
+            if (address % Instruction.INSTRUCTION_LENGTH == 0
+                    && (Memory.inTextSegment(address) || Memory.inKernelTextSegment(address))) {
+                return true;
+            }
+            try {
+                Globals.memory.getStatementNoNotify(address);
+                return true;
+            } catch (Exception e) {
+                return false;
+            }
+        }
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,844 @@
+package rars.simulator;
+
+import rars.*;
+import rars.mips.hardware.*;
+import rars.mips.instructions.*;
+import rars.util.*;
+
+import javax.swing.*;
+import java.io.*;
+import java.util.*;
+
+/*
+Copyright (c) 2018,  Yueyan Zhao
+
+Permission is hereby granted, free of charge, to any person obtaining 
+a copy of this software and associated documentation files (the 
+"Software"), to deal in the Software without restriction, including 
+without limitation the rights to use, copy, modify, merge, publish, 
+distribute, sublicense, and/or sell copies of the Software, and to 
+permit persons to whom the Software is furnished to do so, subject 
+to the following conditions:
+
+The above copyright notice and this permission notice shall be 
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, 
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF 
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. 
+IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR 
+ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF 
+CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION 
+WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+(MIT license, http://www.opensource.org/licenses/mit-license.html)
+ */
+
+/**
+ * Second execution tier: compiles hot basic blocks into JVM classes.  Each
+ * TranslatedBlock counts how often it runs; once it reaches COMPILE_THRESHOLD it is
+ * handed to compile(), which emits a small class whose execute() method performs the
+ * block's RV32I semantics directly, with register values kept in JVM locals for the
+ * length of the block.  Registers and memory are still written through RegisterFile
+ * and Memory, so all state is up to date if an instruction throws part way through.
+ * Instructions without a dedicated opcode id (syscall) are run by their SimulationCode,
+ * which remains the reference for every instruction.
+ * <p>
+ * For verifying the compiler, setDifferentialChecking(true) makes every compiled block
+ * run twice: first compiled, recording its register and memory writes, then, after
+ * those writes are undone, by the SimulationCode of each instruction.  The two results
+ * are compared and any difference is reported; the interpreted result is the one kept.
+ * <p>
+ * The compiler's messages go to the Mars messages pane, or without a GUI are kept until
+ * the run is over (see takeMessages()), so that they never mix with the program's output.
+ *
+ * @see TranslatedBlock
+ */
+
+public class BlockCompiler {
+    /**
+     * Number of times a block must run before it is compiled.
+     */
+    public static final int COMPILE_THRESHOLD = 1000;
+    /**
+     * Upper limit on the number of blocks compiled for one version of the text segment.
+     */
+    public static final int MAX_COMPILED_BLOCKS = 8192;
+
+    /**
+     * A compiled block.  Implemented by the generated classes, which are loaded by their
+     * own class loader and so can only use public classes and members.
+     */
+    public interface Code {
+        /**
+         * Run the block.  On entry the program counter holds the block's address; on
+         * return it holds the address of the next instruction to run.
+         *
+         * @param instructions the block's instructions, not fused; used for fallback and error reporting
+         */
+        void execute(DecodedInstruction[] instructions) throws ProcessingException;
+    }
+
+    private static final String CLASS_NAME = "rars.simulator.CompiledBlock";
+    private static final String CODE_INTERFACE = "rars/simulator/BlockCompiler$Code";
+    private static final String COMPILER = "rars/simulator/BlockCompiler";
+    private static final String REGISTER_FILE = "rars/mips/hardware/RegisterFile";
+    private static final String BINARY = "rars/util/Binary";
+    private static final String DECODED_INSTRUCTION = "rars/simulator/DecodedInstruction";
+    private static final String MEMORY_ACCESS = "(IL" + DECODED_INSTRUCTION + ";)I";
+    private static final String MEMORY_STORE = "(IIL" + DECODED_INSTRUCTION + ";)V";
+
+    // locals of the generated execute() method
+    private static final int LOCAL_INSTRUCTIONS = 1;
+    private static final int LOCAL_REGISTER_BASE = 2; // x1 at 3, ... x31 at 33
+    private static final int MAX_LOCALS = LOCAL_REGISTER_BASE + 32;
+    private static final int MAX_STACK = 6;
+
+    private static volatile boolean differentialChecking = false;
+    private static int checkedCount = 0;
+    private static int mismatchCount = 0;
+    private static ArrayList<int[]> storeJournal = null; // {address, length, value, old value} when checking
+    private static final ArrayList<String> messages = new ArrayList<String>(); // not yet reported, no GUI
+
+    /**
+     * Turn differential checking of compiled blocks against the interpreter on or off.
+     * While it is on, blocks are compiled as soon as they first run, so that every block
+     * gets checked, and blocks ending in an instruction that can only be interpreted
+     * (e.g. syscall, which may perform I/O) are not compiled.
+     *
+     * @param enabled true to check compiled blocks
+     */
+    public static void setDifferentialChecking(boolean enabled) {
+        differentialChecking = enabled;
+        checkedCount = 0;
+        mismatchCount = 0;
+    }
+
+    /**
+     * Returns true if compiled blocks are being checked against the interpreter.
+     */
+    public static boolean isDifferentialChecking() {
+        return differentialChecking;
+    }
+
+    /**
+     * Returns the number of compiled block executions checked since checking was turned on.
+     */
+    public static int getCheckedCount() {
+        return checkedCount;
+    }
+
+    /**
+     * Returns the number of checked block executions whose results differed.
+     */
+    public static int getMismatchCount() {
+        return mismatchCount;
+    }
+
+    /**
+     * Returns the compiler's messages since the last call and forgets them.  Without a
+     * GUI, messages are kept rather than printed during the run.
+     *
+     * @return messages, one per line, in the order they arose
+     */
+    public static List<String> takeMessages() {
+        synchronized (messages) {
+            ArrayList<String> taken = new ArrayList<String>(messages);
+            messages.clear();
+            return taken;
+        }
+    }
+
+    private static void report(String message) {
+        if (Globals.getGui() != null) {
+            final String text = message + "\n";
+            SwingUtilities.invokeLater(new Runnable() {
+                public void run() {
+                    Globals.getGui().getMessagesPane().postMarsMessage(text);
+                }
+            });
+        } else {
+            synchronized (messages) {
+                messages.add(message);
+            }
+        }
+    }
+
+    /**
+     * Compile the given block.  The blocks of each decoded text segment are loaded by a
+     * class loader of its own, so they are unloaded once the segment is discarded.
+     *
+     * @param text         the decoded text segment the block was translated from
+     * @param block        the block
+     * @param instructions its instructions, not fused
+     * @return the compiled code, or null if the block cannot or should not be compiled
+     */
+    static Code compile(DecodedTextSegment text, TranslatedBlock block, DecodedInstruction[] instructions) {
+        if (differentialChecking && instructions[instructions.length - 1].opcode == DecodedInstruction.OTHER) {
+            return null;
+        }
+        if (text.getCompiledBlockCount() >= MAX_COMPILED_BLOCKS) {
+            if (text.getCompiledBlockCount() == MAX_COMPILED_BLOCKS) {
+                report("Compiled block limit of " + MAX_COMPILED_BLOCKS
+                        + " reached; further blocks will be interpreted.");
+                text.countCompiledBlock(); // report only once
+            }
+            return null;
+        }
+        String className = CLASS_NAME + text.getCompiledBlockCount(); // unique within the loader
+        text.countCompiledBlock();
+        Throwable failure;
+        try {
+            byte[] classBytes = new ClassEmitter(className.replace('.', '/')).emit(block.getAddress(), instructions);
+            return (Code) text.getBlockLoader().define(className, classBytes).newInstance();
+        } catch (Exception e) {
+            failure = e;
+        } catch (LinkageError e) {
+            failure = e;
+        }
+        // Should not happen; the block simply stays interpreted.
+        report("Unable to compile block at " + Binary.intToHexString(block.getAddress()) + ": " + failure);
+        return null;
+    }
+
+    /**
+     * Loads the compiled blocks of one decoded text segment.
+     */
+    static class BlockLoader extends ClassLoader {
+        BlockLoader() {
+            super(BlockCompiler.class.getClassLoader());
+        }
+
+        Class<?> define(String name, byte[] classBytes) {
+            return defineClass(name, classBytes, 0, classBytes.length);
+        }
+    }
+
+    /**
+     * Run a compiled block, then check it against the interpreter as described above.
+     *
+     * @param block        the block
+     * @param instructions its instructions, not fused
+     * @param code         the compiled block
+     * @throws ProcessingException thrown by the interpreted instructions, if any
+     */
+    static void executeChecked(TranslatedBlock block, DecodedInstruction[] instructions, Code code)
+            throws ProcessingException {
+        int[] before = saveRegisters();
+        storeJournal = new ArrayList<int[]>();
+        ProcessingException compiledException = null;
+        try {
+            code.execute(instructions);
+        } catch (ProcessingException pe) {
+            compiledException = pe;
+        }
+        int[] compiledRegisters = saveRegisters();
+        ArrayList<int[]> compiledStores = storeJournal;
+        storeJournal = null;
+        // Undo, newest first.
+        try {
+            for (int i = compiledStores.size() - 1; i >= 0; i--) {
+                int[] store = compiledStores.get(i);
+                Globals.memory.set(store[0], store[3], store[1]);
+            }
+        } catch (AddressErrorException e) {
+        } // will not occur, the same addresses were just written
+        restoreRegisters(before);
+
+        final ArrayList<int[]> interpretedStores = new ArrayList<int[]>();
+        Observer storeRecorder = new Observer() {
+            public void update(Observable o, Object obj) {
+                MemoryAccessNotice notice = (MemoryAccessNotice) obj;
+                if (notice.getAccessType() == AccessNotice.WRITE) {
+                    interpretedStores.add(new int[]{notice.getAddress(), notice.getLength(), notice.getValue()});
+                }
+            }
+        };
+        Globals.memory.addObserver(storeRecorder);
+        ProcessingException interpretedException = null;
+        try {
+            for (int i = 0; i < instructions.length; i++) {
+                RegisterFile.incrementPC();
+                ProgramStatement statement = instructions[i].getStatement();
+                ((BasicInstruction) statement.getInstruction()).getSimulationCode().simulate(statement);
+            }
+        } catch (ProcessingException pe) {
+            interpretedException = pe;
+        } finally {
+            Globals.memory.deleteObserver(storeRecorder);
+        }
+
+        checkedCount++;
+        String difference = compareRegisters(compiledRegisters, saveRegisters());
+        if (difference == null) {
+            difference = compareStores(compiledStores, interpretedStores);
+        }
+        if (difference == null && (compiledException == null) != (interpretedException == null)) {
+            difference = (compiledException == null) ? "only the interpreter threw an exception"
+                    : "only the compiled block threw an exception";
+        }
+        if (difference != null) {
+            mismatchCount++;
+            report("Compiled block at " + Binary.intToHexString(block.getAddress())
+                    + " differs from interpreter: " + difference);
+        }
+        if (interpretedException != null) {
+            throw interpretedException;
+        }
+    }
+
+    // x0..x31, then the program counter
+    private static int[] saveRegisters() {
+        int[] values = new int[33];
+        for (int i = 0; i < 32; i++) {
+            values[i] = RegisterFile.getValue(i);
+        }
+        values[32] = RegisterFile.getProgramCounter();
+        return values;
+    }
+
+    private static void restoreRegisters(int[] values) {
+        for (int i = 1; i < 32; i++) {
+            RegisterFile.updateRegister(i, values[i]);
+        }
+        RegisterFile.initializeProgramCounter(values[32]);
+    }
+
+    private static String compareRegisters(int[] compiled, int[] interpreted) {
+        for (int i = 0; i < compiled.length; i++) {
+            if (compiled[i] != interpreted[i]) {
+                return ((i < 32) ? "x" + i : "pc") + " is " + Binary.intToHexString(compiled[i])
+                        + ", expected " + Binary.intToHexString(interpreted[i]);
+            }
+        }
+        return null;
+    }
+
+    private static String compareStores(ArrayList<int[]> compiled, ArrayList<int[]> interpreted) {
+        for (int i = 0; i < Math.max(compiled.size(), interpreted.size()); i++) {
+            if (i >= compiled.size() || i >= interpreted.size()) {
+                return "stored " + compiled.size() + " times, expected " + interpreted.size();
+            }
+            int[] c = compiled.get(i);
+            int[] e = interpreted.get(i);
+            if (c[0] != e[0] || c[1] != e[1] || c[2] != e[2]) {
+                return "store " + i + " wrote " + Binary.intToHexString(c[2]) + " (" + c[1] + " bytes) to "
+                        + Binary.intToHexString(c[0]) + ", expected " + Binary.intToHexString(e[2])
+                        + " (" + e[1] + " bytes) to " + Binary.intToHexString(e[0]);
+            }
+        }
+        return null;
+    }
+
+    /*  Memory access helpers called by the generated code.  Each takes the instruction
+     *  performing the access, for the exception if the access fails.  Public, as the
+     *  generated classes are in another class loader's package.
+     */
+
+    public static int loadByte(int address, DecodedInstruction instruction) throws ProcessingException {
+        try {
+            return Globals.memory.getByte(address) << 24 >> 24;
+        } catch (AddressErrorException e) {
+            throw new ProcessingException(instruction.statement, e);
+        }
+    }
+
+    public static int loadByteUnsigned(int address, DecodedInstruction instruction) throws ProcessingException {
+        try {
+            return Globals.memory.getByte(address) & 0x000000ff;
+        } catch (AddressErrorException e) {
+            throw new ProcessingException(instruction.statement, e);
+        }
+    }
+
+    public static int loadHalf(int address, DecodedInstruction instruction) throws ProcessingException {
+        try {
+            return Globals.memory.getHalf(address) << 16 >> 16;
+        } catch (AddressErrorException e) {
+            throw new ProcessingException(instruction.statement, e);
+        }
+    }
+
+    public static int loadHalfUnsigned(int address, DecodedInstruction instruction) throws ProcessingException {
+        try {
+            return Globals.memory.getHalf(address) & 0x0000ffff;
+        } catch (AddressErrorException e) {
+            throw new ProcessingException(instruction.statement, e);
+        }
+    }
+
+    public static int loadWord(int address, DecodedInstruction instruction) throws ProcessingException {
+        try {
+            return Globals.memory.getWord(address);
+        } catch (AddressErrorException e) {
+            throw new ProcessingException(instruction.statement, e);
+        }
+    }
+
+    public static void storeByte(int address, int value, DecodedInstruction instruction) throws ProcessingException {
+        try {
+            journal(address, 1, value & 0x000000ff, Globals.memory.setByte(address, value & 0x000000ff));
+        } catch (AddressErrorException e) {
+            throw new ProcessingException(instruction.statement, e);
+        }
+    }
+
+    public static void storeHalf(int address, int value, DecodedInstruction instruction) throws ProcessingException {
+        try {
+            journal(address, 2, value & 0x0000ffff, Globals.memory.setHalf(address, value & 0x0000ffff));
+        } catch (AddressErrorException e) {
+            throw new ProcessingException(instruction.statement, e);
+        }
+    }
+
+    public static void storeWord(int address, int value, DecodedInstruction instruction) throws ProcessingException {
+        try {
+            journal(address, 4, value, Globals.memory.setWord(address, value));
+        } catch (AddressErrorException e) {
+            throw new ProcessingException(instruction.statement, e);
+        }
+    }
+
+    private static void journal(int address, int length, int value, int oldValue) {
+        if (storeJournal != null) {
+            storeJournal.add(new int[]{address, length, value, oldValue});
+        }
+    }
+
+    /**
+     * Generates the class file for one compiled block.  The class implements Code and has
+     * just a constructor and execute().  Class file version 49 is used so that no stack
+     * map frames are required.
+     */
+    private static class ClassEmitter {
+        private final String className;
+        private final ByteArrayOutputStream constants = new ByteArrayOutputStream();
+        private final HashMap<String, Integer> constantIndex = new HashMap<String, Integer>();
+        private int constantCount = 1;
+        private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+        private final boolean[] cached = new boolean[32]; // register value is in its local
+
+        ClassEmitter(String className) {
+            this.className = className;
+        }
+
+        byte[] emit(int address, DecodedInstruction[] instructions) throws IOException {
+            for (int i = 0; i < instructions.length; i++) {
+                emitInstruction(address + i * Instruction.INSTRUCTION_LENGTH, i, instructions[i]);
+            }
+            DecodedInstruction last = instructions[instructions.length - 1];
+            if (!last.endsBlock()) {
+                setProgramCounter(address + instructions.length * Instruction.INSTRUCTION_LENGTH);
+            }
+            code.write(0xb1); // return
+
+            int thisClass = classConstant(className);
+            int superClass = classConstant("java/lang/Object");
+            int codeInterface = classConstant(CODE_INTERFACE);
+            int init = utf8Constant("<init>");
+            int initDescriptor = utf8Constant("()V");
+            int objectInit = methodConstant(0x0a, "java/lang/Object", "<init>", "()V");
+            int execute = utf8Constant("execute");
+            int executeDescriptor = utf8Constant("([L" + DECODED_INSTRUCTION + ";)V");
+            int codeAttribute = utf8Constant("Code");
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xcafebabe);
+            out.writeShort(0);  // minor version
+            out.writeShort(49); // major version
+            out.writeShort(constantCount);
+            constants.writeTo(out);
+            out.writeShort(0x0011); // ACC_FINAL | ACC_SUPER
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(1);
+            out.writeShort(codeInterface);
+            out.writeShort(0); // fields
+            out.writeShort(2); // methods
+            // constructor
+            out.writeShort(0x0001); // ACC_PUBLIC
+            out.writeShort(init);
+            out.writeShort(initDescriptor);
+            out.writeShort(1);
+            byte[] initCode = {0x2a, (byte) 0xb7, (byte) (objectInit >> 8), (byte) objectInit, (byte) 0xb1};
+            writeCode(out, codeAttribute, 1, 1, initCode);
+            // execute
+            out.writeShort(0x0001); // ACC_PUBLIC
+            out.writeShort(execute);
+            out.writeShort(executeDescriptor);
+            out.writeShort(1);
+            writeCode(out, codeAttribute, MAX_STACK, MAX_LOCALS, code.toByteArray());
+            out.writeShort(0); // class attributes
+            out.flush();
+            return bytes.toByteArray();
+        }
+
+        private void writeCode(DataOutputStream out, int codeAttribute, int maxStack, int maxLocals, byte[] body)
+                throws IOException {
+            out.writeShort(codeAttribute);
+            out.writeInt(12 + body.length);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(body.length);
+            out.write(body);
+            out.writeShort(0); // exception table
+            out.writeShort(0); // attributes
+        }
+
+        // Semantics must match DecodedInstruction.execute(), which in turn matches InstructionSet.
+        private void emitInstruction(int address, int index, DecodedInstruction d) {
+            int next = address + Instruction.INSTRUCTION_LENGTH;
+            switch (d.opcode) {
+                case DecodedInstruction.NOP:
+                    break;
+                case DecodedInstruction.ADD:
+                    binary(d, 0x60); // iadd
+                    break;
+                case DecodedInstruction.SUB:
+                    binary(d, 0x64); // isub
+                    break;
+                case DecodedInstruction.AND:
+                    binary(d, 0x7e); // iand
+                    break;
+                case DecodedInstruction.OR:
+                    binary(d, 0x80); // ior
+                    break;
+                case DecodedInstruction.XOR:
+                    binary(d, 0x82); // ixor
+                    break;
+                case DecodedInstruction.SLL:
+                    binary(d, 0x78); // ishl, shift distance masked to 5 bits by the JVM as well
+                    break;
+                case DecodedInstruction.SRL:
+                    binary(d, 0x7c); // iushr
+                    break;
+                case DecodedInstruction.SRA:
+                    binary(d, 0x7a); // ishr
+                    break;
+                case DecodedInstruction.SLT:
+                    loadRegister(d.rs1);
+                    loadRegister(d.rs2);
+                    lessThan("compare");
+                    storeRegister(d.rd);
+                    break;
+                case DecodedInstruction.SLTU:
+                    loadRegister(d.rs1);
+                    loadRegister(d.rs2);
+                    lessThan("compareUnsigned");
+                    storeRegister(d.rd);
+                    break;
+                case DecodedInstruction.ADDI:
+                    immediate(d, 0x60);
+                    break;
+                case DecodedInstruction.ANDI:
+                    immediate(d, 0x7e);
+                    break;
+                case DecodedInstruction.ORI:
+                    immediate(d, 0x80);
+                    break;
+                case DecodedInstruction.XORI:
+                    immediate(d, 0x82);
+                    break;
+                case DecodedInstruction.SLLI:
+                    immediate(d, 0x78);
+                    break;
+                case DecodedInstruction.SRLI:
+                    immediate(d, 0x7c);
+                    break;
+                case DecodedInstruction.SRAI:
+                    immediate(d, 0x7a);
+                    break;
+                case DecodedInstruction.SLTI:
+                    loadRegister(d.rs1);
+                    pushInt(d.imm);
+                    lessThan("compare");
+                    storeRegister(d.rd);
+                    break;
+                case DecodedInstruction.SLTIU:
+                    loadRegister(d.rs1);
+                    pushInt(d.imm);
+                    lessThan("compareUnsigned");
+                    storeRegister(d.rd);
+                    break;
+                case DecodedInstruction.LUI:
+                    pushInt(d.imm);
+                    storeRegister(d.rd);
+                    break;
+                case DecodedInstruction.AUIPC:
+                    // pc moves by the immediate and rd receives the new pc
+                    setProgramCounter(next + d.imm);
+                    pushInt(next + d.imm);
+                    storeRegister(d.rd);
+                    break;
+                case DecodedInstruction.JAL:
+                    pushInt(next);
+                    storeRegister(d.rd);
+                    setProgramCounter(address + d.imm);
+                    break;
+                case DecodedInstruction.JALR:
+                    // rs1 is read after rd is written
+                    pushInt(next);
+                    storeRegister(d.rd);
+                    loadRegister(d.rs1);
+                    pushInt(d.imm);
+                    code.write(0x60); // iadd
+                    pushInt(0xfffffffe);
+                    code.write(0x7e); // iand
+                    invoke(0xb8, REGISTER_FILE, "initializeProgramCounter", "(I)V");
+                    break;
+                case DecodedInstruction.BEQ:
+                    branch(d, address, 0x9f, false); // if_icmpeq
+                    break;
+                case DecodedInstruction.BNE:
+                    branch(d, address, 0xa0, false); // if_icmpne
+                    break;
+                case DecodedInstruction.BLT:
+                    branch(d, address, 0xa1, false); // if_icmplt
+                    break;
+                case DecodedInstruction.BGE:
+                    branch(d, address, 0xa2, false); // if_icmpge
+                    break;
+                case DecodedInstruction.BLTU:
+                    branch(d, address, 0x9b, true); // iflt
+                    break;
+                case DecodedInstruction.BGEU:
+                    branch(d, address, 0x9c, true); // ifge
+                    break;
+                case DecodedInstruction.LB:
+                    load(d, index, next, "loadByte");
+                    break;
+                case DecodedInstruction.LBU:
+                    load(d, index, next, "loadByteUnsigned");
+                    break;
+                case DecodedInstruction.LH:
+                    load(d, index, next, "loadHalf");
+                    break;
+                case DecodedInstruction.LHU:
+                    load(d, index, next, "loadHalfUnsigned");
+                    break;
+                case DecodedInstruction.LW:
+                    load(d, index, next, "loadWord");
+                    break;
+                case DecodedInstruction.SB:
+                    store(d, index, next, "storeByte");
+                    break;
+                case DecodedInstruction.SH:
+                    store(d, index, next, "storeHalf");
+                    break;
+                case DecodedInstruction.SW:
+                    store(d, index, next, "storeWord");
+                    break;
+                default:
+                    // Interpreted.  It may read or write any register, so nothing cached survives it.
+                    setProgramCounter(next);
+                    pushInstruction(index);
+                    invoke(0xb6, DECODED_INSTRUCTION, "execute", "()V");
+                    Arrays.fill(cached, false);
+            }
+        }
+
+        private void binary(DecodedInstruction d, int operation) {
+            loadRegister(d.rs1);
+            loadRegister(d.rs2);
+            code.write(operation);
+            storeRegister(d.rd);
+        }
+
+        private void immediate(DecodedInstruction d, int operation) {
+            loadRegister(d.rs1);
+            pushInt(d.imm);
+            code.write(operation);
+            storeRegister(d.rd);
+        }
+
+        // Replace the two operands on the stack with 1 if the first is less, else 0.
+        private void lessThan(String comparison) {
+            invoke(0xb8, BINARY, comparison, "(II)I");
+            pushInt(31);
+            code.write(0x7c); // iushr: sign bit of the comparison result
+        }
+
+        // Set the program counter to the branch target or the next address.
+        private void branch(DecodedInstruction d, int address, int condition, boolean unsigned) {
+            loadRegister(d.rs1);
+            loadRegister(d.rs2);
+            if (unsigned) {
+                invoke(0xb8, BINARY, "compareUnsigned", "(II)I");
+            }
+            code.write(condition);       // offsets are relative to the jump instruction
+            writeShort(3 + 3 + 3);       // to taken:
+            pushIntWide(address + Instruction.INSTRUCTION_LENGTH);
+            code.write(0xa7);            // goto set
+            writeShort(3 + 3);
+            pushIntWide(address + d.imm); // taken:
+            invoke(0xb8, REGISTER_FILE, "initializeProgramCounter", "(I)V"); // set:
+        }
+
+        private void load(DecodedInstruction d, int index, int next, String helper) {
+            setProgramCounter(next); // for the exception, if one occurs
+            loadRegister(d.rs1);
+            pushInt(d.imm);
+            code.write(0x60); // iadd
+            pushInstruction(index);
+            invoke(0xb8, COMPILER, helper, MEMORY_ACCESS);
+            storeRegister(d.rd);
+        }
+
+        private void store(DecodedInstruction d, int index, int next, String helper) {
+            setProgramCounter(next);
+            loadRegister(d.rs1);
+            pushInt(d.imm);
+            code.write(0x60); // iadd
+            loadRegister(d.rs2);
+            pushInstruction(index);
+            invoke(0xb8, COMPILER, helper, MEMORY_STORE);
+        }
+
+        private void setProgramCounter(int value) {
+            pushInt(value);
+            invoke(0xb8, REGISTER_FILE, "initializeProgramCounter", "(I)V");
+        }
+
+        private void loadRegister(int register) {
+            if (register == 0) {
+                pushInt(0);
+            } else if (cached[register]) {
+                code.write(0x15); // iload
+                code.write(LOCAL_REGISTER_BASE + register);
+            } else {
+                pushInt(register);
+                invoke(0xb8, REGISTER_FILE, "getValue", "(I)I");
+                code.write(0x59); // dup
+                code.write(0x36); // istore
+                code.write(LOCAL_REGISTER_BASE + register);
+                cached[register] = true;
+            }
+        }
+
+        // Write the value on the stack through to the register file, and keep it in the local.
+        private void storeRegister(int register) {
+            if (register == 0) {
+                code.write(0x57); // pop
+                return;
+            }
+            code.write(0x59); // dup
+            code.write(0x36); // istore
+            code.write(LOCAL_REGISTER_BASE + register);
+            cached[register] = true;
+            pushInt(register);
+            code.write(0x5f); // swap
+            invoke(0xb8, REGISTER_FILE, "updateRegister", "(II)I");
+            code.write(0x57); // pop
+        }
+
+        private void pushInstruction(int index) {
+            code.write(0x2b); // aload_1
+            pushInt(index);
+            code.write(0x32); // aaload
+        }
+
+        private void pushInt(int value) {
+            if (value >= -1 && value <= 5) {
+                code.write(0x03 + value); // iconst_<n>
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                code.write(0x10); // bipush
+                code.write(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                code.write(0x11); // sipush
+                writeShort(value);
+            } else {
+                pushIntWide(value);
+            }
+        }
+
+        // Always 3 bytes, for branch offsets computed in advance.
+        private void pushIntWide(int value) {
+            code.write(0x13); // ldc_w
+            writeShort(integerConstant(value));
+        }
+
+        private void invoke(int instruction, String owner, String name, String descriptor) {
+            code.write(instruction);
+            writeShort(methodConstant(0x0a, owner, name, descriptor));
+        }
+
+        private void writeShort(int value) {
+            code.write(value >> 8);
+            code.write(value);
+        }
+
+        /*  Constant pool  */
+
+        private int utf8Constant(String value) {
+            Integer index = constantIndex.get("U" + value);
+            if (index == null) {
+                byte[] utf8;
+                try {
+                    utf8 = value.getBytes("UTF-8");
+                } catch (UnsupportedEncodingException e) {
+                    throw new IllegalStateException(e); // will not occur, every JVM supports UTF-8
+                }
+                constants.write(1);
+                constants.write(utf8.length >> 8);
+                constants.write(utf8.length);
+                constants.write(utf8, 0, utf8.length);
+                index = addConstant("U" + value);
+            }
+            return index;
+        }
+
+        private int integerConstant(int value) {
+            Integer index = constantIndex.get("I" + value);
+            if (index == null) {
+                constants.write(3);
+                constants.write(value >> 24);
+                constants.write(value >> 16);
+                constants.write(value >> 8);
+                constants.write(value);
+                index = addConstant("I" + value);
+            }
+            return index;
+        }
+
+        private int classConstant(String name) {
+            Integer index = constantIndex.get("C" + name);
+            if (index == null) {
+                int nameIndex = utf8Constant(name);
+                constants.write(7);
+                constants.write(nameIndex >> 8);
+                constants.write(nameIndex);
+                index = addConstant("C" + name);
+            }
+            return index;
+        }
+
+        private int methodConstant(int tag, String owner, String name, String descriptor) {
+            String key = "M" + owner + "." + name + descriptor;
+            Integer index = constantIndex.get(key);
+            if (index == null) {
+                int ownerIndex = classConstant(owner);
+                int nameIndex = utf8Constant(name);
+                int descriptorIndex = utf8Constant(descriptor);
+                constants.write(12); // NameAndType
+                constants.write(nameIndex >> 8);
+                constants.write(nameIndex);
+                constants.write(descriptorIndex >> 8);
+                constants.write(descriptorIndex);
+                int nameAndType = addConstant("N" + name + descriptor + "#" + constantCount);
+                constants.write(tag);
+                constants.write(ownerIndex >> 8);
+                constants.write(ownerIndex);
+                constants.write(nameAndType >> 8);
+                constants.write(nameAndType);
+                index = addConstant(key);
+            }
+            return index;
+        }
+
+        private int addConstant(String key) {
+            constantIndex.put(key, constantCount);
+            return constantCount++;
+        }
+    }
+}
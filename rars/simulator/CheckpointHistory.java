@@ -0,0 +1,283 @@
+package rars.simulator;
+
+import rars.*;
+import rars.util.*;
+import rars.mips.hardware.*;
+import rars.mips.instructions.syscalls.*;
+
+import java.io.*;
+import java.util.*;
+
+/*
+Copyright (c) 2018,  Yueyan Zhao
+
+Permission is hereby granted, free of charge, to any person obtaining 
+a copy of this software and associated documentation files (the 
+"Software"), to deal in the Software without restriction, including 
+without limitation the rights to use, copy, modify, merge, publish, 
+distribute, sublicense, and/or sell copies of the Software, and to 
+permit persons to whom the Software is furnished to do so, subject 
+to the following conditions:
+
+The above copyright notice and this permission notice shall be 
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, 
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF 
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. 
+IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR 
+ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF 
+CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION 
+WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+(MIT license, http://www.opensource.org/licenses/mit-license.html)
+ */
+
+/**
+ * Checkpoints of the simulated machine, taken every so many instructions as a program runs,
+ * from which the machine can be put back to its state after any instruction executed so far.
+ * A checkpoint holds the integer registers and program counter, the Coprocessor0 and
+ * Coprocessor1 registers, the random number streams, the position in the syscall log and a
+ * Memory.Checkpoint.  The last costs nothing to take; memory blocks are copied later, and
+ * only the first time each is written.  Restoring a checkpoint takes time in proportion to
+ * the blocks written since it was taken.  The instructions from there to the one wanted
+ * are then executed again (see Simulator.goToInstruction()).
+ * <p>
+ * Instructions executed again only do the same as before if the syscall results they get
+ * do: input read, the time and random seeds.  Record or replay them with SyscallLog, which
+ * is rewound along with the machine, or re-executed instructions will ask for new input.
+ * Console output of re-executed instructions is discarded.  Files the program has open are
+ * not part of a checkpoint.
+ * <p>
+ * When more than the maximum number of checkpoints have been taken, every other one except
+ * the first and the latest is dropped, and the interval doubles.  However long the run, the
+ * checkpoints kept are spread evenly over it.
+ *
+ * @see Simulator#setCheckpointHistory(CheckpointHistory)
+ */
+
+public class CheckpointHistory {
+    public static final long DEFAULT_INTERVAL = 1000000;
+    public static final int DEFAULT_MAX_CHECKPOINTS = 256;
+
+    private final int maxCheckpoints;
+    private long interval;
+    private long nextDue = 0;
+    private long position = 0; // instructions executed since the program started
+    private long furthest = 0; // most instructions ever executed, counting those executed again only once
+    private final ArrayList<State> checkpoints = new ArrayList<State>();
+    private final ArrayList<Memory.Checkpoint> memoryCheckpoints = new ArrayList<Memory.Checkpoint>();
+
+    /**
+     * Create an empty history, for a program about to start.  The first checkpoint is
+     * taken before its first instruction.
+     *
+     * @param interval       number of instructions between checkpoints
+     * @param maxCheckpoints number of checkpoints to keep at most, at least 2
+     */
+    public CheckpointHistory(long interval, int maxCheckpoints) {
+        if (interval <= 0 || maxCheckpoints < 2) {
+            throw new IllegalArgumentException("invalid checkpoint interval or count");
+        }
+        this.interval = interval;
+        this.maxCheckpoints = maxCheckpoints;
+    }
+
+    /**
+     * @return number of instructions between checkpoints; doubles as checkpoints are dropped
+     */
+    public long getInterval() {
+        return interval;
+    }
+
+    /**
+     * @return number of instructions the machine's state is the result of
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * @return largest number of instructions executed so far; positions up to it were already
+     * reached once, and their console output written
+     */
+    public long getFurthestPosition() {
+        return furthest;
+    }
+
+    /**
+     * @return number of checkpoints kept
+     */
+    public int getCheckpointCount() {
+        return checkpoints.size();
+    }
+
+    /**
+     * @return number of 4K memory blocks copied by the checkpoints kept
+     */
+    public long getSavedBlockCount() {
+        long count = 0;
+        for (int i = 0; i < memoryCheckpoints.size(); i++) {
+            count += memoryCheckpoints.get(i).getSavedBlockCount();
+        }
+        return count;
+    }
+
+    /**
+     * Find the checkpoint to restore to reach a given position.
+     *
+     * @param target number of instructions executed
+     * @return position of the latest checkpoint at or before target, -1 if there is none
+     */
+    public long getCheckpointPosition(long target) {
+        int index = indexAtOrBefore(target);
+        return (index < 0) ? -1 : checkpoints.get(index).position;
+    }
+
+    /**
+     * Determine whether a checkpoint should be taken now.  Called by the simulation
+     * loop before each instruction, or basic block, it executes.
+     *
+     * @param position number of instructions executed since the program started
+     * @return true if it is time to take one
+     */
+    boolean isDue(long position) {
+        return position >= nextDue;
+    }
+
+    /**
+     * Take a checkpoint of the machine as it is, between instructions and outside any
+     * delay slot.
+     *
+     * @param position number of instructions executed since the program started
+     */
+    void take(long position) {
+        setPosition(position);
+        State state = new State();
+        state.position = position;
+        Register[] registers = RegisterFile.getRegisters();
+        state.registers = new int[registers.length + 3];
+        for (int i = 0; i < registers.length; i++) {
+            state.registers[i] = registers[i].getValueNoNotify();
+        }
+        state.registers[registers.length] = RegisterFile.getProgramCounter();
+        state.registers[registers.length + 1] = RegisterFile.getValue(33); // hi
+        state.registers[registers.length + 2] = RegisterFile.getValue(34); // lo
+        state.coprocessor0 = getValues(Coprocessor0.getRegisters());
+        state.coprocessor1 = getValues(Coprocessor1.getRegisters());
+        state.conditionFlags = Coprocessor1.getConditionFlags();
+        state.randomStreams = RandomStreams.getState();
+        state.syscallLogEntry = SyscallLog.getEntryCount();
+        checkpoints.add(state);
+        memoryCheckpoints.add(Globals.memory.takeCheckpoint());
+        if (checkpoints.size() > maxCheckpoints) {
+            // Drop every other one, merging its memory blocks into the one before.
+            for (int i = (checkpoints.size() - 2) | 1; i >= 1; i -= 2) {
+                if (i < checkpoints.size() - 1) {
+                    memoryCheckpoints.get(i - 1).absorb(memoryCheckpoints.get(i));
+                    memoryCheckpoints.remove(i);
+                    checkpoints.remove(i);
+                }
+            }
+            interval *= 2;
+        }
+        nextDue = position + interval;
+    }
+
+    /**
+     * Record how many instructions have executed, as the simulation stops.
+     *
+     * @param position number of instructions executed since the program started
+     */
+    void setPosition(long position) {
+        this.position = position;
+        furthest = Math.max(furthest, position);
+    }
+
+    /**
+     * Put the machine back to the latest checkpoint at or before a given position.
+     * Checkpoints after it are dropped; they are taken again as execution continues.
+     *
+     * @param target number of instructions executed
+     * @return position of the checkpoint restored, at most target
+     * @throws IllegalArgumentException if no checkpoint is that early
+     * @throws IOException              if the syscall log cannot be rewound
+     */
+    public long restore(long target) throws IOException {
+        int index = indexAtOrBefore(target);
+        if (index < 0) {
+            throw new IllegalArgumentException("no checkpoint at or before instruction " + target);
+        }
+        State state = checkpoints.get(index);
+        Globals.memory.restoreCheckpoint(memoryCheckpoints, index);
+        while (checkpoints.size() > index + 1) {
+            checkpoints.remove(checkpoints.size() - 1);
+        }
+        Register[] registers = RegisterFile.getRegisters();
+        for (int i = 1; i < registers.length; i++) {
+            registers[i].setValue(state.registers[i]);
+        }
+        RegisterFile.initializeProgramCounter(state.registers[registers.length]);
+        RegisterFile.updateRegister(33, state.registers[registers.length + 1]);
+        RegisterFile.updateRegister(34, state.registers[registers.length + 2]);
+        setValues(Coprocessor0.getRegisters(), state.coprocessor0);
+        setValues(Coprocessor1.getRegisters(), state.coprocessor1);
+        for (int flag = 0; flag < Coprocessor1.getConditionFlagCount(); flag++) {
+            if (Binary.bitValue(state.conditionFlags, flag) == 1) {
+                Coprocessor1.setConditionFlag(flag);
+            } else {
+                Coprocessor1.clearConditionFlag(flag);
+            }
+        }
+        RandomStreams.setState(state.randomStreams);
+        DelayedBranch.clear();
+        if (Globals.program != null && Globals.program.getBackStepper() != null) {
+            Globals.program.getBackStepper().clear();
+        }
+        position = state.position;
+        nextDue = position + interval;
+        SyscallLog.rewind(state.syscallLogEntry);
+        return position;
+    }
+
+    /**
+     * Stop Memory from saving blocks for the latest checkpoint.  The history can no longer
+     * be used afterwards.
+     */
+    public void stop() {
+        Globals.memory.stopCheckpoints();
+    }
+
+    private int indexAtOrBefore(long target) {
+        int index = checkpoints.size() - 1;
+        while (index >= 0 && checkpoints.get(index).position > target) {
+            index--;
+        }
+        return index;
+    }
+
+    private static int[] getValues(Register[] registers) {
+        int[] values = new int[registers.length];
+        for (int i = 0; i < registers.length; i++) {
+            values[i] = registers[i].getValueNoNotify();
+        }
+        return values;
+    }
+
+    private static void setValues(Register[] registers, int[] values) {
+        for (int i = 0; i < registers.length; i++) {
+            registers[i].setValue(values[i]);
+        }
+    }
+
+    // Everything a checkpoint holds apart from memory.
+    private static class State {
+        long position;
+        int[] registers; // x0-x31, then program counter, hi and lo
+        int[] coprocessor0;
+        int[] coprocessor1;
+        int conditionFlags;
+        byte[] randomStreams;
+        long syscallLogEntry;
+    }
+}
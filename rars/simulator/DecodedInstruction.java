@@ -0,0 +1,505 @@
+package rars.simulator;
+
+import rars.*;
+import rars.mips.hardware.*;
+import rars.mips.instructions.*;
+import rars.util.*;
+
+import java.util.*;
+
+/*
+Copyright (c) 2018,  Yueyan Zhao
+
+Permission is hereby granted, free of charge, to any person obtaining
+a copy of this software and associated documentation files (the
+"Software"), to deal in the Software without restriction, including
+without limitation the rights to use, copy, modify, merge, publish,
+distribute, sublicense, and/or sell copies of the Software, and to
+permit persons to whom the Software is furnished to do so, subject
+to the following conditions:
+
+The above copyright notice and this permission notice shall be
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+(MIT license, http://www.opensource.org/licenses/mit-license.html)
+ */
+
+/**
+ * Compact pre-decoded form of one basic instruction in the text segment: an opcode
+ * id, register indices and an already sign-extended immediate.  The simulator runs
+ * these directly instead of fetching the ProgramStatement from Memory and going
+ * through its SimulationCode.  Semantics mirror the SimulationCode of the matching
+ * BasicInstruction in InstructionSet exactly, assuming delayed branching is off.
+ * Anything without a dedicated opcode id (e.g. syscall) is decoded as OTHER and
+ * still executed by its SimulationCode.
+ *
+ * @see DecodedTextSegment
+ */
+
+public final class DecodedInstruction {
+    public static final int OTHER = 0;
+    public static final int NOP = 1;
+    public static final int ADD = 2;
+    public static final int SUB = 3;
+    public static final int SLT = 4;
+    public static final int SLTU = 5;
+    public static final int AND = 6;
+    public static final int OR = 7;
+    public static final int XOR = 8;
+    public static final int SLL = 9;
+    public static final int SRL = 10;
+    public static final int SRA = 11;
+    public static final int ADDI = 12;
+    public static final int SLTI = 13;
+    public static final int SLTIU = 14;
+    public static final int ANDI = 15;
+    public static final int ORI = 16;
+    public static final int XORI = 17;
+    public static final int SLLI = 18;
+    public static final int SRLI = 19;
+    public static final int SRAI = 20;
+    public static final int LUI = 21;
+    public static final int AUIPC = 22;
+    public static final int JAL = 23;
+    public static final int JALR = 24;
+    public static final int BEQ = 25;
+    public static final int BNE = 26;
+    public static final int BLT = 27;
+    public static final int BLTU = 28;
+    public static final int BGE = 29;
+    public static final int BGEU = 30;
+    public static final int LB = 31;
+    public static final int LBU = 32;
+    public static final int LH = 33;
+    public static final int LHU = 34;
+    public static final int LW = 35;
+    public static final int SB = 36;
+    public static final int SH = 37;
+    public static final int SW = 38;
+    // Superinstructions: two adjacent instructions run as one.  See fuse().
+    public static final int LUI_ADDI = 39;
+    public static final int LUI_ORI = 40;
+    public static final int AUIPC_JALR = 41;
+    public static final int COMPARE_BRANCH = 42;
+    /**
+     * Number of opcode ids, useful for sizing per-opcode tables.
+     */
+    public static final int OPCODE_COUNT = 43;
+
+    private static final String[] mnemonics = {
+            null, "nop", "add", "sub", "slt", "sltu", "and", "or", "xor", "sll", "srl", "sra",
+            "addi", "slti", "sltiu", "andi", "ori", "xori", "slli", "srli", "srai", "lui", "auipc",
+            "jal", "jalr", "beq", "bne", "blt", "bltu", "bge", "bgeu",
+            "lb", "lbu", "lh", "lhu", "lw", "sb", "sh", "sw",
+            "lui+addi", "lui+ori", "auipc+jalr", "compare+branch"};
+    private static final HashMap<String, Integer> opcodeIds = new HashMap<String, Integer>();
+
+    static {
+        for (int i = 1; i < LUI_ADDI; i++) {
+            opcodeIds.put(mnemonics[i], i);
+        }
+    }
+
+    final int opcode;
+    final int rd, rs1, rs2;
+    final int imm;
+    final ProgramStatement statement;
+    final DecodedInstruction first, second; // the fused pair, null unless a superinstruction
+
+    private DecodedInstruction(int opcode, int rd, int rs1, int rs2, int imm, ProgramStatement statement) {
+        this(opcode, rd, rs1, rs2, imm, statement, null, null);
+    }
+
+    private DecodedInstruction(int opcode, int rd, int rs1, int rs2, int imm, ProgramStatement statement,
+                               DecodedInstruction first, DecodedInstruction second) {
+        this.opcode = opcode;
+        this.rd = rd;
+        this.rs1 = rs1;
+        this.rs2 = rs2;
+        this.imm = imm;
+        this.statement = statement;
+        this.first = first;
+        this.second = second;
+    }
+
+    /**
+     * Decode the given statement.  Operands are taken from the statement itself rather
+     * than re-extracted from its binary code, since that is what its SimulationCode uses.
+     *
+     * @param statement a statement from the text segment
+     * @return decoded record, or null if the statement has no instruction
+     * (it must then be handled, i.e. reported, by the statement-by-statement path).
+     */
+    public static DecodedInstruction decode(ProgramStatement statement) {
+        if (statement == null || !(statement.getInstruction() instanceof BasicInstruction)) {
+            return null;
+        }
+        Integer id = opcodeIds.get(statement.getInstruction().getName().toLowerCase());
+        int[] op = statement.getOperands();
+        if (id == null || op == null) {
+            return new DecodedInstruction(OTHER, 0, 0, 0, 0, statement);
+        }
+        int opcode = id.intValue();
+        switch (opcode) {
+            case NOP:
+                return new DecodedInstruction(opcode, 0, 0, 0, 0, statement);
+            case ADD:
+            case SUB:
+            case SLT:
+            case SLTU:
+            case AND:
+            case OR:
+            case XOR:
+            case SLL:
+            case SRL:
+            case SRA:
+                return new DecodedInstruction(opcode, op[0], op[1], op[2], 0, statement);
+            case ADDI:
+            case SLTI:
+            case SLTIU:
+            case ANDI:
+            case ORI:
+            case XORI:
+                // 12 bit immediate value is sign-extended
+                return new DecodedInstruction(opcode, op[0], op[1], 0, op[2] << 20 >> 20, statement);
+            case SLLI:
+            case SRLI:
+            case SRAI:
+                // only low-order 5 bits of 12 bit immediate value is needed
+                return new DecodedInstruction(opcode, op[0], op[1], 0, op[2] & 0x0000001F, statement);
+            case LUI:
+            case AUIPC:
+                return new DecodedInstruction(opcode, op[0], 0, 0, op[1] << 12, statement);
+            case JAL:
+                return new DecodedInstruction(opcode, op[0], 0, 0, op[1], statement);
+            case JALR:
+                return new DecodedInstruction(opcode, op[0], op[1], 0, op[2], statement);
+            case BEQ:
+            case BNE:
+            case BLT:
+            case BLTU:
+            case BGE:
+            case BGEU:
+                return new DecodedInstruction(opcode, 0, op[0], op[1], op[2], statement);
+            case LB:
+            case LBU:
+            case LH:
+            case LHU:
+                return new DecodedInstruction(opcode, op[0], op[1], 0, op[2] << 16 >> 16, statement);
+            case LW:
+                return new DecodedInstruction(opcode, op[0], op[1], 0, op[2], statement);
+            case SB:
+            case SH:
+                return new DecodedInstruction(opcode, 0, op[1], op[0], op[2] << 16 >> 16, statement);
+            case SW:
+                return new DecodedInstruction(opcode, 0, op[1], op[0], op[2], statement);
+            default:
+                return new DecodedInstruction(OTHER, 0, 0, 0, 0, statement);
+        }
+    }
+
+    /**
+     * Combine two instructions at consecutive addresses into one superinstruction, if
+     * they form one of the recognized pairs:
+     * <ul>
+     * <li>lui followed by addi or ori on the same register (the la and li expansions):
+     * the constant is computed here, once.</li>
+     * <li>auipc with a zero immediate followed by jalr (pc-relative jump).  In this
+     * simulator auipc moves the program counter by its immediate, so only a zero
+     * immediate falls through to the jalr.</li>
+     * <li>slt, sltu, slti or sltiu followed by beq or bne comparing its result with zero.</li>
+     * </ul>
+     * The superinstruction has the same effect as running the pair one after the other,
+     * including the program counter increment between them.
+     *
+     * @param a the instruction at some address
+     * @param b the instruction at the following address
+     * @return superinstruction, or null if the pair is not fusable
+     */
+    public static DecodedInstruction fuse(DecodedInstruction a, DecodedInstruction b) {
+        if (a == null || b == null || a.first != null || b.first != null) {
+            return null;
+        }
+        switch (a.opcode) {
+            case LUI:
+                if (b.rd == a.rd && b.rs1 == a.rd) {
+                    if (b.opcode == ADDI) {
+                        return new DecodedInstruction(LUI_ADDI, a.rd, 0, 0, a.imm + b.imm, a.statement, a, b);
+                    } else if (b.opcode == ORI) {
+                        return new DecodedInstruction(LUI_ORI, a.rd, 0, 0, a.imm | b.imm, a.statement, a, b);
+                    }
+                }
+                return null;
+            case AUIPC:
+                if (a.imm == 0 && b.opcode == JALR) {
+                    return new DecodedInstruction(AUIPC_JALR, a.rd, 0, 0, 0, a.statement, a, b);
+                }
+                return null;
+            case SLT:
+            case SLTU:
+            case SLTI:
+            case SLTIU:
+                // x0 would not hold the comparison result, so the branch would not test it
+                if (a.rd != 0 && (b.opcode == BEQ || b.opcode == BNE)
+                        && ((b.rs1 == a.rd && b.rs2 == 0) || (b.rs1 == 0 && b.rs2 == a.rd))) {
+                    return new DecodedInstruction(COMPARE_BRANCH, a.rd, 0, 0, 0, a.statement, a, b);
+                }
+                return null;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Determine whether this instruction may transfer control somewhere other than the
+     * next address, so that a basic block must end with it.  Anything not decoded into a
+     * dedicated opcode id (such as syscall) is assumed to.
+     *
+     * @return true if a basic block ends here
+     */
+    public boolean endsBlock() {
+        switch (opcode) {
+            case OTHER:
+            case JAL:
+            case JALR:
+            case BEQ:
+            case BNE:
+            case BLT:
+            case BLTU:
+            case BGE:
+            case BGEU:
+            case AUIPC_JALR:
+            case COMPARE_BRANCH:
+                return true;
+            case AUIPC:
+                return imm != 0;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Returns the number of instructions this record stands for: 2 for a superinstruction, 1 otherwise.
+     */
+    public int getInstructionCount() {
+        return (first == null) ? 1 : 2;
+    }
+
+    /**
+     * Returns the opcode id of this instruction, one of the constants defined in this class.
+     */
+    public int getOpcode() {
+        return opcode;
+    }
+
+    /**
+     * Returns the mnemonic for the given opcode id, or null for OTHER.
+     */
+    public static String getMnemonic(int opcode) {
+        return (opcode >= 0 && opcode < mnemonics.length) ? mnemonics[opcode] : null;
+    }
+
+    /**
+     * Returns the ProgramStatement this record was decoded from.
+     */
+    public ProgramStatement getStatement() {
+        return statement;
+    }
+
+    /**
+     * Simulate execution of this instruction.  The program counter has already been
+     * incremented past it, just as when its SimulationCode is invoked.  A superinstruction
+     * increments it past its second instruction itself.
+     *
+     * @throws ProcessingException on runtime exception or syscall termination.
+     */
+    public void execute() throws ProcessingException {
+        int pc;
+        try {
+            switch (opcode) {
+                case NOP:
+                    break;
+                case ADD:
+                    RegisterFile.updateRegister(rd, RegisterFile.getValue(rs1) + RegisterFile.getValue(rs2));
+                    break;
+                case SUB:
+                    RegisterFile.updateRegister(rd, RegisterFile.getValue(rs1) - RegisterFile.getValue(rs2));
+                    break;
+                case SLT:
+                    RegisterFile.updateRegister(rd, (RegisterFile.getValue(rs1) < RegisterFile.getValue(rs2)) ? 1 : 0);
+                    break;
+                case SLTU:
+                    RegisterFile.updateRegister(rd,
+                            (Binary.compareUnsigned(RegisterFile.getValue(rs1), RegisterFile.getValue(rs2)) < 0) ? 1 : 0);
+                    break;
+                case AND:
+                    RegisterFile.updateRegister(rd, RegisterFile.getValue(rs1) & RegisterFile.getValue(rs2));
+                    break;
+                case OR:
+                    RegisterFile.updateRegister(rd, RegisterFile.getValue(rs1) | RegisterFile.getValue(rs2));
+                    break;
+                case XOR:
+                    RegisterFile.updateRegister(rd, RegisterFile.getValue(rs1) ^ RegisterFile.getValue(rs2));
+                    break;
+                case SLL:
+                    RegisterFile.updateRegister(rd, RegisterFile.getValue(rs1) << (RegisterFile.getValue(rs2) & 0x0000001F));
+                    break;
+                case SRL:
+                    RegisterFile.updateRegister(rd, RegisterFile.getValue(rs1) >>> (RegisterFile.getValue(rs2) & 0x0000001F));
+                    break;
+                case SRA:
+                    RegisterFile.updateRegister(rd, RegisterFile.getValue(rs1) >> (RegisterFile.getValue(rs2) & 0x0000001F));
+                    break;
+                case ADDI:
+                    RegisterFile.updateRegister(rd, RegisterFile.getValue(rs1) + imm);
+                    break;
+                case SLTI:
+                    RegisterFile.updateRegister(rd, (RegisterFile.getValue(rs1) < imm) ? 1 : 0);
+                    break;
+                case SLTIU:
+                    RegisterFile.updateRegister(rd, (Binary.compareUnsigned(RegisterFile.getValue(rs1), imm) < 0) ? 1 : 0);
+                    break;
+                case ANDI:
+                    RegisterFile.updateRegister(rd, RegisterFile.getValue(rs1) & imm);
+                    break;
+                case ORI:
+                    RegisterFile.updateRegister(rd, RegisterFile.getValue(rs1) | imm);
+                    break;
+                case XORI:
+                    RegisterFile.updateRegister(rd, RegisterFile.getValue(rs1) ^ imm);
+                    break;
+                case SLLI:
+                    RegisterFile.updateRegister(rd, RegisterFile.getValue(rs1) << imm);
+                    break;
+                case SRLI:
+                    RegisterFile.updateRegister(rd, RegisterFile.getValue(rs1) >>> imm);
+                    break;
+                case SRAI:
+                    RegisterFile.updateRegister(rd, RegisterFile.getValue(rs1) >> imm);
+                    break;
+                case LUI:
+                    RegisterFile.updateRegister(rd, imm);
+                    break;
+                case AUIPC:
+                    // Same as InstructionSet: pc moves by the immediate and rd receives the new pc.
+                    RegisterFile.setProgramCounter(RegisterFile.getProgramCounter() + imm);
+                    RegisterFile.updateRegister(rd, RegisterFile.getProgramCounter());
+                    break;
+                case JAL:
+                    pc = RegisterFile.getProgramCounter();
+                    RegisterFile.updateRegister(rd, pc);
+                    RegisterFile.setProgramCounter(pc + imm - Instruction.INSTRUCTION_LENGTH);
+                    break;
+                case JALR:
+                    // rs1 is read after rd is written, as in InstructionSet.
+                    RegisterFile.updateRegister(rd, RegisterFile.getProgramCounter());
+                    RegisterFile.setProgramCounter((RegisterFile.getValue(rs1) + imm) & 0xfffffffe);
+                    break;
+                case BEQ:
+                    if (RegisterFile.getValue(rs1) == RegisterFile.getValue(rs2)) {
+                        branch();
+                    }
+                    break;
+                case BNE:
+                    if (RegisterFile.getValue(rs1) != RegisterFile.getValue(rs2)) {
+                        branch();
+                    }
+                    break;
+                case BLT:
+                    if (RegisterFile.getValue(rs1) < RegisterFile.getValue(rs2)) {
+                        branch();
+                    }
+                    break;
+                case BLTU:
+                    if (Binary.compareUnsigned(RegisterFile.getValue(rs1), RegisterFile.getValue(rs2)) < 0) {
+                        branch();
+                    }
+                    break;
+                case BGE:
+                    if (RegisterFile.getValue(rs1) >= RegisterFile.getValue(rs2)) {
+                        branch();
+                    }
+                    break;
+                case BGEU:
+                    if (Binary.compareUnsigned(RegisterFile.getValue(rs1), RegisterFile.getValue(rs2)) >= 0) {
+                        branch();
+                    }
+                    break;
+                case LB:
+                    RegisterFile.updateRegister(rd, Globals.memory.getByte(RegisterFile.getValue(rs1) + imm) << 24 >> 24);
+                    break;
+                case LBU:
+                    RegisterFile.updateRegister(rd, Globals.memory.getByte(RegisterFile.getValue(rs1) + imm) & 0x000000ff);
+                    break;
+                case LH:
+                    RegisterFile.updateRegister(rd, Globals.memory.getHalf(RegisterFile.getValue(rs1) + imm) << 16 >> 16);
+                    break;
+                case LHU:
+                    RegisterFile.updateRegister(rd, Globals.memory.getHalf(RegisterFile.getValue(rs1) + imm) & 0x0000ffff);
+                    break;
+                case LW:
+                    RegisterFile.updateRegister(rd, Globals.memory.getWord(RegisterFile.getValue(rs1) + imm));
+                    break;
+                case SB:
+                    Globals.memory.setByte(RegisterFile.getValue(rs1) + imm, RegisterFile.getValue(rs2) & 0x000000ff);
+                    break;
+                case SH:
+                    Globals.memory.setHalf(RegisterFile.getValue(rs1) + imm, RegisterFile.getValue(rs2) & 0x0000ffff);
+                    break;
+                case SW:
+                    Globals.memory.setWord(RegisterFile.getValue(rs1) + imm, RegisterFile.getValue(rs2));
+                    break;
+                case LUI_ADDI:
+                case LUI_ORI:
+                    RegisterFile.incrementPC();
+                    RegisterFile.updateRegister(rd, imm);
+                    break;
+                case AUIPC_JALR:
+                    first.execute();
+                    RegisterFile.incrementPC();
+                    second.execute();
+                    break;
+                case COMPARE_BRANCH:
+                    int result = first.compare();
+                    RegisterFile.updateRegister(rd, result);
+                    RegisterFile.incrementPC();
+                    if ((result != 0) == (second.opcode == BNE)) {
+                        second.branch();
+                    }
+                    break;
+                default:
+                    ((BasicInstruction) statement.getInstruction()).getSimulationCode().simulate(statement);
+            }
+        } catch (AddressErrorException e) {
+            throw new ProcessingException(statement, e);
+        }
+    }
+
+    // Result of slt, sltu, slti or sltiu.
+    private int compare() {
+        switch (opcode) {
+            case SLT:
+                return (RegisterFile.getValue(rs1) < RegisterFile.getValue(rs2)) ? 1 : 0;
+            case SLTU:
+                return (Binary.compareUnsigned(RegisterFile.getValue(rs1), RegisterFile.getValue(rs2)) < 0) ? 1 : 0;
+            case SLTI:
+                return (RegisterFile.getValue(rs1) < imm) ? 1 : 0;
+            default:
+                return (Binary.compareUnsigned(RegisterFile.getValue(rs1), imm) < 0) ? 1 : 0;
+        }
+    }
+
+    // Taken branch.  The displacement is relative to the branch itself, and the
+    // program counter has already been incremented past it.
+    private void branch() {
+        RegisterFile.setProgramCounter(RegisterFile.getProgramCounter() + imm - Instruction.INSTRUCTION_LENGTH);
+    }
+}
@@ -0,0 +1,159 @@
+package rars.simulator;
+
+import rars.*;
+import rars.mips.hardware.*;
+
+/*
+Copyright (c) 2018,  Yueyan Zhao
+
+Permission is hereby granted, free of charge, to any person obtaining
+a copy of this software and associated documentation files (the
+"Software"), to deal in the Software without restriction, including
+without limitation the rights to use, copy, modify, merge, publish,
+distribute, sublicense, and/or sell copies of the Software, and to
+permit persons to whom the Software is furnished to do so, subject
+to the following conditions:
+
+The above copyright notice and this permission notice shall be
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+(MIT license, http://www.opensource.org/licenses/mit-license.html)
+ */
+
+/**
+ * Cache of pre-decoded instructions for the (user) text segment.  Like the text
+ * segment tables in Memory, it is organized as a table of 1024-word blocks; a block
+ * is decoded in one go the first time an address inside it is fetched.  The cache
+ * remembers the Memory text segment version it was built against and must be
+ * discarded once that changes (see isStale()).  Basic blocks translated from the
+ * decoded instructions are cached here as well.
+ *
+ * @see DecodedInstruction
+ */
+
+public class DecodedTextSegment {
+    private static final int BLOCK_LENGTH_WORDS = 1024;
+    private static final int BLOCK_SHIFT = 10;
+
+    private final Memory memory;
+    private final int version;
+    private final int baseAddress, limitAddress;
+    private final DecodedInstruction[][] blockTable;
+    private final TranslatedBlock[][] translatedBlockTable; // indexed by address of block's first instruction
+    private int compiledBlockCount = 0;
+    private BlockCompiler.BlockLoader blockLoader; // created when the first block is compiled
+
+    /**
+     * Create an empty cache for the current contents of the given memory's text segment.
+     *
+     * @param memory the Memory whose text segment will be decoded
+     */
+    public DecodedTextSegment(Memory memory) {
+        this.memory = memory;
+        this.version = memory.getTextSegmentVersion();
+        this.baseAddress = Memory.textBaseAddress;
+        this.limitAddress = Memory.textLimitAddress;
+        this.blockTable = new DecodedInstruction[(((limitAddress - baseAddress) >>> 2) + BLOCK_LENGTH_WORDS - 1) >>> BLOCK_SHIFT][];
+        this.translatedBlockTable = new TranslatedBlock[blockTable.length][];
+    }
+
+    /**
+     * Determine whether the text segment has been modified (or memory reconfigured)
+     * since this cache was created.
+     *
+     * @return true if this cache can no longer be used
+     */
+    public boolean isStale() {
+        return version != memory.getTextSegmentVersion() || baseAddress != Memory.textBaseAddress;
+    }
+
+    /**
+     * Return the decoded instruction at the given address.  Observers are not notified.
+     *
+     * @param address text segment address
+     * @return decoded instruction, or null if the address is unaligned, outside the user text
+     * segment or holds no valid statement.  Callers fall back to Memory.getStatement() in that case.
+     */
+    public DecodedInstruction get(int address) {
+        if ((address & 3) != 0 || address < baseAddress || address >= limitAddress) {
+            return null;
+        }
+        int relative = (address - baseAddress) >>> 2;
+        DecodedInstruction[] block = blockTable[relative >>> BLOCK_SHIFT];
+        if (block == null) {
+            block = decodeBlock(relative >>> BLOCK_SHIFT);
+        }
+        return block[relative & (BLOCK_LENGTH_WORDS - 1)];
+    }
+
+    /**
+     * Return the basic block starting at the given address, translating it on first use.
+     * Observers are not notified.
+     *
+     * @param address text segment address
+     * @return the block, or null if no decodable instruction is at that address.
+     */
+    public TranslatedBlock getBlock(int address) {
+        if ((address & 3) != 0 || address < baseAddress || address >= limitAddress) {
+            return null;
+        }
+        int relative = (address - baseAddress) >>> 2;
+        TranslatedBlock[] blocks = translatedBlockTable[relative >>> BLOCK_SHIFT];
+        if (blocks == null) {
+            blocks = new TranslatedBlock[BLOCK_LENGTH_WORDS];
+            translatedBlockTable[relative >>> BLOCK_SHIFT] = blocks;
+        }
+        TranslatedBlock block = blocks[relative & (BLOCK_LENGTH_WORDS - 1)];
+        if (block == null) {
+            block = TranslatedBlock.translate(this, address);
+            blocks[relative & (BLOCK_LENGTH_WORDS - 1)] = block;
+        }
+        return block;
+    }
+
+    /**
+     * Returns the number of blocks of this cache compiled by the BlockCompiler.
+     */
+    int getCompiledBlockCount() {
+        return compiledBlockCount;
+    }
+
+    /**
+     * Count one more compiled block.
+     */
+    void countCompiledBlock() {
+        compiledBlockCount++;
+    }
+
+    /**
+     * Returns the class loader of the blocks compiled from this segment, which is dropped,
+     * and its classes unloaded, along with the segment.
+     */
+    BlockCompiler.BlockLoader getBlockLoader() {
+        if (blockLoader == null) {
+            blockLoader = new BlockCompiler.BlockLoader();
+        }
+        return blockLoader;
+    }
+
+    private DecodedInstruction[] decodeBlock(int blockNumber) {
+        DecodedInstruction[] block = new DecodedInstruction[BLOCK_LENGTH_WORDS];
+        int address = baseAddress + (blockNumber << (BLOCK_SHIFT + 2));
+        for (int i = 0; i < BLOCK_LENGTH_WORDS && address < limitAddress; i++, address += Memory.WORD_LENGTH_BYTES) {
+            try {
+                block[i] = DecodedInstruction.decode(memory.getStatementNoNotify(address));
+            } catch (AddressErrorException aee) {
+            } // will not occur, address is aligned and inside the text segment
+        }
+        blockTable[blockNumber] = block;
+        return block;
+    }
+}
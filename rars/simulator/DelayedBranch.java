@@ -115,9 +115,9 @@ public class DelayedBranch {
 
     /**
      * Clear the delayed branch. This must be done immediately after setting the
-     * program counter to the target address.  This method has package visibility.
+     * program counter to the target address, and is also done when a machine is reset.
      */
-    static void clear() {
+    public static void clear() {
         state = CLEARED;
         branchTargetAddress = 0;
     }
@@ -0,0 +1,246 @@
+package rars.simulator;
+
+import rars.*;
+import rars.mips.hardware.*;
+import rars.mips.instructions.*;
+
+import java.util.*;
+
+/*
+Copyright (c) 2018,  Yueyan Zhao
+
+Permission is hereby granted, free of charge, to any person obtaining 
+a copy of this software and associated documentation files (the 
+"Software"), to deal in the Software without restriction, including 
+without limitation the rights to use, copy, modify, merge, publish, 
+distribute, sublicense, and/or sell copies of the Software, and to 
+permit persons to whom the Software is furnished to do so, subject 
+to the following conditions:
+
+The above copyright notice and this permission notice shall be 
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, 
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF 
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. 
+IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR 
+ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF 
+CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION 
+WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+(MIT license, http://www.opensource.org/licenses/mit-license.html)
+ */
+
+/**
+ * Execution counts kept by the Simulator itself, without memory observers: how many
+ * times the instruction at each address was executed.  Counts are held in 1024-word
+ * pages of primitive longs, allocated the first time an address in the page executes,
+ * so that only code that actually runs takes up space.  Totals per instruction and per
+ * instruction format are derived from the per-address counts when requested, using the
+ * statements currently in memory (with self-modifying code these may not be the ones
+ * that were executed).
+ *
+ * @see Simulator#setExecutionProfile(ExecutionProfile)
+ */
+
+public class ExecutionProfile {
+    private static final int PAGE_SHIFT = 10;
+    private static final int PAGE_LENGTH_WORDS = 1 << PAGE_SHIFT;
+    private static final int DIRECTORY_SHIFT = 10;
+
+    // Word index (address >>> 2) splits into directory, page and word-in-page indices.
+    private long[][][] directory;
+    private long total;
+
+    /**
+     * Create a profile with all counts zero.
+     */
+    public ExecutionProfile() {
+        clear();
+    }
+
+    /**
+     * Reset all counts to zero.
+     */
+    public void clear() {
+        directory = new long[1 << (30 - PAGE_SHIFT - DIRECTORY_SHIFT)][][];
+        total = 0;
+    }
+
+    /**
+     * Count one execution of the instruction at the given address.
+     *
+     * @param address address of the instruction
+     */
+    public void increment(int address) {
+        page(address)[(address >>> 2) & (PAGE_LENGTH_WORDS - 1)]++;
+        total++;
+    }
+
+    /**
+     * Count one execution of each instruction from firstAddress to lastAddress inclusive,
+     * as happens when a basic block runs.
+     *
+     * @param firstAddress address of the first instruction
+     * @param lastAddress  address of the last instruction, not below firstAddress
+     */
+    public void incrementRange(int firstAddress, int lastAddress) {
+        long[] page = page(firstAddress);
+        for (int address = firstAddress; ; address += Instruction.INSTRUCTION_LENGTH) {
+            int word = (address >>> 2) & (PAGE_LENGTH_WORDS - 1);
+            if (word == 0 && address != firstAddress) {
+                page = page(address);
+            }
+            page[word]++;
+            if (address == lastAddress) {
+                break;
+            }
+        }
+        total += ((lastAddress - firstAddress) >>> 2) + 1;
+    }
+
+    /**
+     * Returns the number of times the instruction at the given address was executed.
+     *
+     * @param address address of the instruction
+     * @return execution count
+     */
+    public long getCount(int address) {
+        long[][] pages = directory[address >>> (2 + PAGE_SHIFT + DIRECTORY_SHIFT)];
+        long[] page = (pages == null) ? null : pages[(address >>> (2 + PAGE_SHIFT)) & ((1 << DIRECTORY_SHIFT) - 1)];
+        return (page == null) ? 0 : page[(address >>> 2) & (PAGE_LENGTH_WORDS - 1)];
+    }
+
+    /**
+     * Returns the number of instructions executed, i.e. the sum of all counts.
+     *
+     * @return total count
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * Returns the addresses of the most frequently executed instructions.
+     *
+     * @param limit maximum number of addresses to return
+     * @return addresses ordered by decreasing count, lower addresses first among equal
+     * counts.  Only addresses that were executed are included.
+     */
+    public int[] getHotSpots(int limit) {
+        int[] addresses = new int[Math.max(limit, 0)];
+        long[] counts = new long[addresses.length];
+        int found = 0;
+        int[] executed = getExecutedAddresses();
+        for (int i = 0; i < executed.length && limit > 0; i++) {
+            long count = getCount(executed[i]);
+            if (found == limit && count <= counts[found - 1]) {
+                continue;
+            }
+            int j = (found < limit) ? found++ : found - 1;
+            while (j > 0 && counts[j - 1] < count) {
+                counts[j] = counts[j - 1];
+                addresses[j] = addresses[j - 1];
+                j--;
+            }
+            counts[j] = count;
+            addresses[j] = executed[i];
+        }
+        return Arrays.copyOf(addresses, found);
+    }
+
+    /**
+     * Returns the addresses of all instructions that were executed.
+     *
+     * @return addresses in increasing (unsigned) order
+     */
+    public int[] getExecutedAddresses() {
+        int[] addresses = new int[64];
+        int found = 0;
+        for (int d = 0; d < directory.length; d++) {
+            if (directory[d] == null) {
+                continue;
+            }
+            for (int p = 0; p < directory[d].length; p++) {
+                long[] page = directory[d][p];
+                if (page == null) {
+                    continue;
+                }
+                for (int w = 0; w < PAGE_LENGTH_WORDS; w++) {
+                    if (page[w] != 0) {
+                        if (found == addresses.length) {
+                            addresses = Arrays.copyOf(addresses, found * 2);
+                        }
+                        addresses[found++] = ((((d << DIRECTORY_SHIFT) | p) << PAGE_SHIFT) | w) << 2;
+                    }
+                }
+            }
+        }
+        return Arrays.copyOf(addresses, found);
+    }
+
+    /**
+     * Returns the total executions of each basic instruction, e.g. how many "addi"
+     * were executed.  Addresses that no longer hold a basic instruction are left out.
+     *
+     * @return map from instruction name to count
+     */
+    public HashMap<String, Long> getInstructionCounts() {
+        HashMap<String, Long> totals = new HashMap<String, Long>();
+        int[] executed = getExecutedAddresses();
+        for (int i = 0; i < executed.length; i++) {
+            BasicInstruction instruction = getBasicInstruction(executed[i]);
+            if (instruction != null) {
+                Long sum = totals.get(instruction.getName());
+                totals.put(instruction.getName(), getCount(executed[i]) + ((sum == null) ? 0 : sum));
+            }
+        }
+        return totals;
+    }
+
+    /**
+     * Returns the total executions of the basic instructions of each format.
+     * Addresses that no longer hold a basic instruction are left out.
+     *
+     * @return map from instruction format to count
+     */
+    public HashMap<BasicInstructionFormat, Long> getFormatCounts() {
+        HashMap<BasicInstructionFormat, Long> totals = new HashMap<BasicInstructionFormat, Long>();
+        int[] executed = getExecutedAddresses();
+        for (int i = 0; i < executed.length; i++) {
+            BasicInstruction instruction = getBasicInstruction(executed[i]);
+            if (instruction != null) {
+                Long sum = totals.get(instruction.getInstructionFormat());
+                totals.put(instruction.getInstructionFormat(), getCount(executed[i]) + ((sum == null) ? 0 : sum));
+            }
+        }
+        return totals;
+    }
+
+    private BasicInstruction getBasicInstruction(int address) {
+        try {
+            ProgramStatement statement = Globals.memory.getStatementNoNotify(address);
+            if (statement != null && statement.getInstruction() instanceof BasicInstruction) {
+                return (BasicInstruction) statement.getInstruction();
+            }
+        } catch (AddressErrorException aee) {
+        } // the address was executed, so it is a valid text address
+        return null;
+    }
+
+    private long[] page(int address) {
+        int d = address >>> (2 + PAGE_SHIFT + DIRECTORY_SHIFT);
+        long[][] pages = directory[d];
+        if (pages == null) {
+            pages = new long[1 << DIRECTORY_SHIFT][];
+            directory[d] = pages;
+        }
+        int p = (address >>> (2 + PAGE_SHIFT)) & ((1 << DIRECTORY_SHIFT) - 1);
+        long[] page = pages[p];
+        if (page == null) {
+            page = new long[PAGE_LENGTH_WORDS];
+            pages[p] = page;
+        }
+        return page;
+    }
+}
@@ -0,0 +1,348 @@
+package rars.simulator;
+
+import rars.*;
+import rars.assembler.*;
+import rars.mips.hardware.*;
+import rars.mips.instructions.*;
+import rars.util.*;
+
+import java.io.*;
+import java.util.*;
+
+/*
+Copyright (c) 2018,  Yueyan Zhao
+
+Permission is hereby granted, free of charge, to any person obtaining 
+a copy of this software and associated documentation files (the 
+"Software"), to deal in the Software without restriction, including 
+without limitation the rights to use, copy, modify, merge, publish, 
+distribute, sublicense, and/or sell copies of the Software, and to 
+permit persons to whom the Software is furnished to do so, subject 
+to the following conditions:
+
+The above copyright notice and this permission notice shall be 
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, 
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF 
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. 
+IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR 
+ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF 
+CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION 
+WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+(MIT license, http://www.opensource.org/licenses/mit-license.html)
+ */
+
+/**
+ * Low-overhead profiler for simulated programs.  Every N instructions it records which
+ * function the program is in, together with the chain of callers.  The call stack is
+ * reconstructed from the linkage conventions: a jal or jalr that writes ra (or t0) is a
+ * call whose callee starts at the next instruction executed, and a jalr through ra (or t0)
+ * that discards the link is a return to the caller whose return address it reaches.
+ * Samples are accumulated in a call tree, from which collapsed stacks for flame graph
+ * tools and a table of self and total samples per function are produced.  Functions are
+ * named by the text label at or below their entry address.
+ * <p>
+ * The profiler is fed by the Simulator (see Simulator.setSamplingProfiler()) one basic
+ * block or instruction at a time.  Instructions are classified as call, return or other
+ * the first time they execute, so with self-modifying code the classification may be stale.
+ */
+
+public class SamplingProfiler {
+    private static final int PAGE_SHIFT = 10;
+    private static final int PAGE_LENGTH_WORDS = 1 << PAGE_SHIFT;
+    private static final int MAX_DEPTH = 4096; // deeper calls are attributed to the caller
+    // Kinds of instruction, as far as the call stack is concerned.  0 means not yet classified.
+    private static final byte OTHER = 1;
+    private static final byte CALL = 2;
+    private static final byte RETURN = 3;
+    private static final int OPCODE_JAL = 0x6F;
+    private static final int OPCODE_JALR = 0x67;
+    private static final int RA = 1;
+    private static final int ALTERNATE_LINK = 5; // t0
+
+    private final int interval;
+    private final HashMap<Integer, byte[]> kinds = new HashMap<Integer, byte[]>(); // pages of instruction kinds
+    private int lastPageNumber = -1;
+    private byte[] lastPage;
+    private CallNode root;
+    private CallNode[] stack = new CallNode[64];
+    private int[] returnAddresses = new int[64];
+    private int depth; // index of the current frame in stack
+    private int truncatedCalls; // calls not pushed beyond MAX_DEPTH and not yet returned from
+    private int pendingReturnAddress; // valid if pending == CALL
+    private byte pending; // CALL or RETURN just executed, resolved by the next instruction
+    private long untilSample;
+    private long samples;
+
+    /**
+     * Create a profiler that takes a sample every given number of instructions.
+     *
+     * @param interval number of instructions between samples, at least 1
+     */
+    public SamplingProfiler(int interval) {
+        this.interval = Math.max(interval, 1);
+        this.untilSample = this.interval;
+    }
+
+    /**
+     * Returns the number of instructions between samples.
+     *
+     * @return the sampling interval
+     */
+    public int getInterval() {
+        return interval;
+    }
+
+    /**
+     * Returns the number of samples taken so far.
+     *
+     * @return sample count
+     */
+    public long getSampleCount() {
+        return samples;
+    }
+
+    /**
+     * Account for the execution of the instructions from firstAddress to lastAddress
+     * inclusive, in order and without a transfer of control between them.
+     *
+     * @param firstAddress address of the first instruction executed
+     * @param lastAddress  address of the last instruction executed, not below firstAddress
+     */
+    public void executed(int firstAddress, int lastAddress) {
+        if (root == null) {
+            root = new CallNode(firstAddress);
+            stack[0] = root;
+        } else if (pending == CALL) {
+            call(firstAddress, pendingReturnAddress);
+        } else if (pending == RETURN) {
+            returnTo(firstAddress);
+        }
+        long count = ((lastAddress - firstAddress) >>> 2) + 1;
+        while (untilSample <= count) {
+            stack[depth].samples++;
+            samples++;
+            count -= untilSample;
+            untilSample = interval;
+        }
+        untilSample -= count;
+        pending = kind(lastAddress);
+        pendingReturnAddress = lastAddress + Instruction.INSTRUCTION_LENGTH;
+    }
+
+    /**
+     * Write the samples as collapsed stacks: one line per distinct call stack, the
+     * function names from the outermost caller inward separated by semicolons, then a
+     * space and the number of samples.  This is the input format of flame graph tools.
+     *
+     * @param out where to write
+     */
+    public void writeCollapsedStacks(PrintStream out) {
+        if (root != null) {
+            writeCollapsedStacks(out, root, functionName(root.entry));
+        }
+        out.flush();
+    }
+
+    /**
+     * Write a table of the functions sampled, with the number and percentage of samples
+     * taken in the function itself ("self") and in it or anything it called ("total").
+     * Ordered by decreasing self samples.
+     *
+     * @param out where to write
+     */
+    public void writeFunctionTable(PrintStream out) {
+        final HashMap<Integer, long[]> totals = new HashMap<Integer, long[]>(); // entry -> {self, total}
+        if (root != null) {
+            addFunctionTotals(root, new ArrayList<Integer>(), totals);
+        }
+        ArrayList<Integer> entries = new ArrayList<Integer>(totals.keySet());
+        Collections.sort(entries, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                long[] ta = totals.get(a);
+                long[] tb = totals.get(b);
+                if (ta[0] != tb[0]) {
+                    return (ta[0] > tb[0]) ? -1 : 1;
+                }
+                if (ta[1] != tb[1]) {
+                    return (ta[1] > tb[1]) ? -1 : 1;
+                }
+                return Binary.compareUnsigned(a, b);
+            }
+        });
+        out.println("Samples: " + samples + ", one every " + interval + " instructions");
+        out.println(String.format("%12s %6s %12s %6s  %-24s %s", "self", "%", "total", "%", "function", "source"));
+        for (Integer entry : entries) {
+            long[] t = totals.get(entry);
+            out.println(String.format("%12d %6.2f %12d %6.2f  %-24s %s", t[0], percent(t[0]), t[1], percent(t[1]),
+                    functionName(entry), sourceLocation(entry)));
+        }
+        out.flush();
+    }
+
+    private double percent(long count) {
+        return (samples == 0) ? 0 : 100.0 * count / samples;
+    }
+
+    private void call(int entry, int returnAddress) {
+        if (depth + 1 >= MAX_DEPTH) {
+            truncatedCalls++;
+            return;
+        }
+        CallNode caller = stack[depth];
+        CallNode callee = caller.child(entry);
+        depth++;
+        if (depth == stack.length) {
+            stack = Arrays.copyOf(stack, depth * 2);
+            returnAddresses = Arrays.copyOf(returnAddresses, depth * 2);
+        }
+        stack[depth] = callee;
+        returnAddresses[depth] = returnAddress;
+    }
+
+    // Pop the innermost frame returning to the given address, and any frames it called.
+    // A return that matches no frame (e.g. a computed jump through ra) leaves the stack alone.
+    private void returnTo(int address) {
+        for (int frame = depth; frame > 0; frame--) {
+            if (returnAddresses[frame] == address) {
+                Arrays.fill(stack, frame, depth + 1, null);
+                depth = frame - 1;
+                return;
+            }
+        }
+        if (truncatedCalls > 0) {
+            truncatedCalls--;
+        }
+    }
+
+    private byte kind(int address) {
+        byte[] page = lastPage;
+        if (address >>> (2 + PAGE_SHIFT) != lastPageNumber) {
+            page = kinds.get(address >>> (2 + PAGE_SHIFT));
+            if (page == null) {
+                page = new byte[PAGE_LENGTH_WORDS];
+                kinds.put(address >>> (2 + PAGE_SHIFT), page);
+            }
+            lastPageNumber = address >>> (2 + PAGE_SHIFT);
+            lastPage = page;
+        }
+        int word = (address >>> 2) & (PAGE_LENGTH_WORDS - 1);
+        if (page[word] == 0) {
+            page[word] = classify(address);
+        }
+        return page[word];
+    }
+
+    private static byte classify(int address) {
+        ProgramStatement statement = null;
+        try {
+            statement = Globals.memory.getStatementNoNotify(address);
+        } catch (AddressErrorException aee) {
+        } // will not occur, the instruction was just executed
+        if (statement == null) {
+            return OTHER;
+        }
+        int binary = statement.getBinaryStatement();
+        int opcode = binary & 0x7F;
+        int rd = (binary >>> 7) & 0x1F;
+        int rs1 = (binary >>> 15) & 0x1F;
+        if ((opcode == OPCODE_JAL || opcode == OPCODE_JALR) && (rd == RA || rd == ALTERNATE_LINK)) {
+            return CALL;
+        }
+        if (opcode == OPCODE_JALR && rd == 0 && (rs1 == RA || rs1 == ALTERNATE_LINK)) {
+            return RETURN;
+        }
+        return OTHER;
+    }
+
+    private void writeCollapsedStacks(PrintStream out, CallNode node, String path) {
+        if (node.samples > 0) {
+            out.println(path + " " + node.samples);
+        }
+        for (int i = 0; i < node.childCount; i++) {
+            writeCollapsedStacks(out, node.children[i], path + ";" + functionName(node.children[i].entry));
+        }
+    }
+
+    // Add the samples of node and its descendants to the totals of the functions on the path.
+    // A function appearing more than once on a path (recursion) is credited once.
+    private void addFunctionTotals(CallNode node, ArrayList<Integer> path, HashMap<Integer, long[]> totals) {
+        path.add(node.entry);
+        long[] own = totals.get(node.entry);
+        if (own == null) {
+            own = new long[2];
+            totals.put(node.entry, own);
+        }
+        own[0] += node.samples;
+        if (node.samples > 0) {
+            HashSet<Integer> credited = new HashSet<Integer>();
+            for (Integer entry : path) {
+                if (credited.add(entry)) {
+                    totals.get(entry)[1] += node.samples;
+                }
+            }
+        }
+        for (int i = 0; i < node.childCount; i++) {
+            addFunctionTotals(node.children[i], path, totals);
+        }
+        path.remove(path.size() - 1);
+    }
+
+    private static String functionName(int entry) {
+        Symbol symbol = null;
+        ProgramStatement statement = statementAt(entry);
+        if (statement != null && statement.getSourceMIPSprogram() != null) {
+            symbol = statement.getSourceMIPSprogram().getLocalSymbolTable().getTextSymbolAtOrBelowLocalOrGlobal(entry);
+        } else {
+            symbol = Globals.symbolTable.getTextSymbolAtOrBelow(entry);
+        }
+        if (symbol == null) {
+            return Binary.intToHexString(entry);
+        }
+        return (symbol.getAddress() == entry) ? symbol.getName() : symbol.getName() + "+" + (entry - symbol.getAddress());
+    }
+
+    private static String sourceLocation(int entry) {
+        ProgramStatement statement = statementAt(entry);
+        if (statement == null || statement.getSourceMIPSprogram() == null) {
+            return Binary.intToHexString(entry);
+        }
+        return new File(statement.getSourceFile()).getName() + ":" + statement.getSourceLine();
+    }
+
+    private static ProgramStatement statementAt(int address) {
+        try {
+            return Globals.memory.getStatementNoNotify(address);
+        } catch (AddressErrorException aee) {
+            return null;
+        }
+    }
+
+    // A function as reached through a particular chain of calls.
+    private static final class CallNode {
+        private final int entry;
+        private CallNode[] children = new CallNode[0];
+        private int childCount;
+        private long samples;
+
+        private CallNode(int entry) {
+            this.entry = entry;
+        }
+
+        private CallNode child(int entry) {
+            for (int i = 0; i < childCount; i++) {
+                if (children[i].entry == entry) {
+                    return children[i];
+                }
+            }
+            if (childCount == children.length) {
+                children = Arrays.copyOf(children, Math.max(4, childCount * 2));
+            }
+            CallNode child = new CallNode(entry);
+            children[childCount++] = child;
+            return child;
+        }
+    }
+}
@@ -6,6 +6,7 @@ import rars.util.*;
 import rars.mips.hardware.*;
 import rars.mips.instructions.*;
 
+import java.io.*;
 import java.util.*;
 import javax.swing.*;
 	
@@ -62,7 +63,13 @@ public class Simulator extends Observable {
     public static volatile int externalInterruptingDevice = NO_DEVICE;
     private static Simulator simulator = null;  // Singleton object
     private static Runnable interactiveGUIUpdater = null;
-    private SimThread simulatorThread;
+    private volatile SimThread simulatorThread;
+    private DecodedTextSegment decodedTextSegment;
+    private long instructionCount; // instructions executed by the last command-line simulate()
+    private ExecutionProfile executionProfile; // per-address execution counts, null if not kept
+    private SamplingProfiler samplingProfiler; // null if not sampling
+    private TraceRecorder traceRecorder; // null if not tracing
+    private CheckpointHistory checkpointHistory; // null if not taking checkpoints
     private ArrayList<StopListener> stopListeners = new ArrayList<StopListener>(1);
 
     private Simulator() {
@@ -115,17 +122,25 @@ public class Simulator extends Observable {
      **/
 
     public boolean simulate(MIPSprogram p, int pc, int maxSteps, int[] breakPoints, AbstractAction actor) throws ProcessingException {
-        simulatorThread = new SimThread(p, pc, maxSteps, breakPoints, actor);
-        simulatorThread.start();
+        SimThread thread = new SimThread(p, pc, maxSteps, breakPoints, actor);
+        simulatorThread = thread;
+        thread.start();
 
         // Condition should only be true if run from command-line instead of GUI.
         // If so, just stick around until execution thread is finished.
+        // Work through the local reference: stopExecution() may clear the field meanwhile.
         if (actor == null) {
-            Object dun = simulatorThread.get(); // this should emulate join()
-            ProcessingException pe = simulatorThread.pe;
-            boolean done = simulatorThread.done;
+            Object dun = thread.get(); // this should emulate join()
+            ProcessingException pe = thread.pe;
+            boolean done = thread.done;
+            instructionCount = thread.executed;
+            if (thread.history != null) {
+                thread.history.setPosition(thread.firstPosition + thread.executed);
+            }
             if (done) SystemIO.resetFiles(); // close any files opened in MIPS progra
-            this.simulatorThread = null;
+            if (simulatorThread == thread) {
+                this.simulatorThread = null;
+            }
             if (pe != null) {
                 throw pe;
             }
@@ -134,6 +149,212 @@ public class Simulator extends Observable {
         return true;
     }
 
+    /**
+     * Returns the number of instructions executed, including any that ended the
+     * run by exit or exception, by the most recent call to simulate() that had no
+     * GUI actor (that is, one run from the command line).
+     *
+     * @return instruction count
+     */
+    public long getInstructionCount() {
+        return instructionCount;
+    }
+
+    /**
+     * Forget the count returned by getInstructionCount(), so that a program which
+     * fails to assemble is not credited with the previous program's instructions.
+     */
+    public void resetInstructionCount() {
+        instructionCount = 0;
+    }
+
+    /**
+     * Have subsequent simulations count executions of each instruction in the given
+     * profile, or stop counting.  Counting is done in the simulation loop itself, so
+     * unlike memory observers it does not force every fetch through Memory.
+     *
+     * @param profile the profile to add counts to, or null to not keep counts
+     */
+    public void setExecutionProfile(ExecutionProfile profile) {
+        executionProfile = profile;
+    }
+
+    /**
+     * Returns the profile set by setExecutionProfile().
+     *
+     * @return the profile counts are added to, null if none
+     */
+    public ExecutionProfile getExecutionProfile() {
+        return executionProfile;
+    }
+
+    /**
+     * Have subsequent simulations feed the given sampling profiler, or stop sampling.
+     *
+     * @param profiler the profiler to take samples, or null to not sample
+     */
+    public void setSamplingProfiler(SamplingProfiler profiler) {
+        samplingProfiler = profiler;
+    }
+
+    /**
+     * Returns the profiler set by setSamplingProfiler().
+     *
+     * @return the profiler taking samples, null if none
+     */
+    public SamplingProfiler getSamplingProfiler() {
+        return samplingProfiler;
+    }
+
+    /**
+     * Have subsequent simulations write a record of each instruction executed to the given
+     * recorder, or stop recording.  While recording, instructions are executed one at a
+     * time rather than as whole basic blocks.  The caller closes the recorder.
+     *
+     * @param recorder the trace to write to, or null to not record
+     */
+    public void setTraceRecorder(TraceRecorder recorder) {
+        traceRecorder = recorder;
+    }
+
+    /**
+     * Returns the recorder set by setTraceRecorder().
+     *
+     * @return the trace being written, null if none
+     */
+    public TraceRecorder getTraceRecorder() {
+        return traceRecorder;
+    }
+
+    /**
+     * Have subsequent simulations take checkpoints in the given history, or stop taking
+     * them.  Set a new history just before the program starts, and stop it (see
+     * CheckpointHistory.stop()) once done with it.
+     *
+     * @param history the history to add checkpoints to, or null to not take checkpoints
+     */
+    public void setCheckpointHistory(CheckpointHistory history) {
+        checkpointHistory = history;
+    }
+
+    /**
+     * Returns the history set by setCheckpointHistory().
+     *
+     * @return the history checkpoints are added to, null if none
+     */
+    public CheckpointHistory getCheckpointHistory() {
+        return checkpointHistory;
+    }
+
+    /**
+     * Bring the machine to its state after the given number of instructions since the
+     * program started.  An earlier state is reached by restoring the latest checkpoint
+     * before it and executing from there; console output already written by the
+     * instructions executed again is discarded.  Uses the history set by
+     * setCheckpointHistory().  Like simulate() without a GUI actor, returns when done,
+     * but getInstructionCount() still returns the count for the original run.
+     *
+     * @param p      the program being simulated
+     * @param target number of instructions, not beyond the point where the program terminated
+     * @return true if the program terminated before reaching that point
+     * @throws ProcessingException   if a run-time error occurs on the way
+     * @throws IOException           if the syscall log cannot be rewound
+     * @throws IllegalStateException if no checkpoint history is set
+     */
+    public boolean goToInstruction(MIPSprogram p, long target) throws ProcessingException, IOException {
+        checkCheckpointHistory();
+        long count = instructionCount;
+        try {
+            if (target < checkpointHistory.getPosition()) {
+                checkpointHistory.restore(target);
+            }
+            return runTo(p, target, null);
+        } finally {
+            instructionCount = count;
+        }
+    }
+
+    /**
+     * Go back to the last time execution reached one of the given addresses, leaving
+     * the machine as it was just before executing the instruction there: the state a
+     * forward run stopping at that breakpoint would show.  Segments between checkpoints
+     * are searched from the latest back, each by restoring its checkpoint and executing
+     * to its end.  Uses the history set by setCheckpointHistory().  As with goToInstruction(),
+     * getInstructionCount() is unchanged.
+     *
+     * @param p           the program being simulated
+     * @param breakPoints breakpoint addresses
+     * @return true if such a point was found, false if there was none, in which case the
+     * machine is put back to the start of the program
+     * @throws ProcessingException   if a run-time error occurs on the way
+     * @throws IOException           if the syscall log cannot be rewound
+     * @throws IllegalStateException if no checkpoint history is set
+     */
+    public boolean reverseContinue(MIPSprogram p, int[] breakPoints) throws ProcessingException, IOException {
+        checkCheckpointHistory();
+        int[] sorted = breakPoints.clone();
+        Arrays.sort(sorted);
+        long count = instructionCount;
+        try {
+            return reverseContinueSorted(p, sorted);
+        } finally {
+            instructionCount = count;
+        }
+    }
+
+    private boolean reverseContinueSorted(MIPSprogram p, int[] sorted) throws ProcessingException, IOException {
+        long end = checkpointHistory.getPosition();
+        while (end > 0) {
+            long start = checkpointHistory.restore(end - 1);
+            long found = -1;
+            if (Arrays.binarySearch(sorted, RegisterFile.getProgramCounter()) >= 0) {
+                found = start;
+            }
+            while (checkpointHistory.getPosition() < end && !runTo(p, end, sorted)) {
+                if (checkpointHistory.getPosition() < end) {
+                    found = checkpointHistory.getPosition(); // stopped at a breakpoint
+                }
+            }
+            if (found >= 0) {
+                goToInstruction(p, found);
+                return true;
+            }
+            end = start;
+        }
+        checkpointHistory.restore(0);
+        return false;
+    }
+
+    private void checkCheckpointHistory() {
+        if (checkpointHistory == null) {
+            throw new IllegalStateException("no checkpoint history; see setCheckpointHistory()");
+        }
+    }
+
+    // Execute until the machine has executed target instructions since the program started,
+    // execution reaches one of the breakpoints (sorted, or null), or the program terminates.
+    // Output is discarded up to the furthest point reached before.  Returns true if it terminated.
+    private boolean runTo(MIPSprogram p, long target, int[] breakPoints) throws ProcessingException {
+        CheckpointHistory history = checkpointHistory;
+        while (history.getPosition() < target) {
+            boolean repeat = history.getPosition() < history.getFurthestPosition();
+            long end = (repeat) ? Math.min(target, history.getFurthestPosition()) : target;
+            SystemIO.setOutputSuppressed(repeat);
+            try {
+                if (simulate(p, RegisterFile.getProgramCounter(),
+                        (int) Math.min(end - history.getPosition(), Integer.MAX_VALUE), breakPoints, null)) {
+                    return true;
+                }
+            } finally {
+                SystemIO.setOutputSuppressed(false);
+            }
+            if (history.getPosition() < end) {
+                return false; // stopped at a breakpoint
+            }
+        }
+        return false;
+    }
+
     /**
      * Set the volatile stop boolean variable checked by the execution
      * thread at the end of each MIPS instruction execution.  If variable
@@ -143,8 +364,9 @@ public class Simulator extends Observable {
      */
     public void stopExecution(AbstractAction actor) {
 
-        if (simulatorThread != null) {
-            simulatorThread.setStop(actor);
+        SimThread thread = simulatorThread;
+        if (thread != null) {
+            thread.setStop(actor);
             for (StopListener l : stopListeners) {
                 l.stopped(this);
             }
@@ -152,6 +374,39 @@ public class Simulator extends Observable {
         }
     }
 
+    /**
+     * Stop a command-line simulation from another thread, for instance when a time
+     * limit runs out.  Like stopExecution(null), but it also wakes the execution thread
+     * if it is waiting in a sleep syscall.  simulate() returns false as it does for a
+     * PAUSE or STOP; does nothing if no simulation is running.
+     */
+    public void interruptExecution() {
+        SimThread thread = simulatorThread;
+        if (thread != null) {
+            thread.setStop(null);
+            thread.wake();
+        }
+    }
+
+    /**
+     * Returns the pre-decoded form of the text segment for the simulation thread to
+     * execute from, rebuilding it if the text segment has changed since last time.
+     * Returns null if statements must be fetched and dispatched one at a time: when
+     * pre-decoded execution is disabled, or self-modifying code or delayed branching is on.
+     */
+    private DecodedTextSegment getDecodedTextSegment() {
+        Settings settings = Globals.getSettings();
+        if (!settings.getBooleanSetting(Settings.PRE_DECODED_EXECUTION)
+                || settings.getBooleanSetting(Settings.SELF_MODIFYING_CODE_ENABLED)
+                || settings.getDelayedBranchingEnabled()) {
+            return null;
+        }
+        if (decodedTextSegment == null || decodedTextSegment.isStale()) {
+            decodedTextSegment = new DecodedTextSegment(Globals.memory);
+        }
+        return decodedTextSegment;
+    }
+
     public void addStopListener(StopListener l) {
         stopListeners.add(l);
     }
@@ -205,8 +460,18 @@ public class Simulator extends Observable {
         private ProcessingException pe;
         private volatile boolean stop = false;
         private volatile AbstractAction stopper;
+        private volatile Thread worker; // thread running construct(), null until it starts
         private AbstractAction starter;
         private int constructReturnReason;
+        private DecodedTextSegment decodedText;
+        private DecodedInstruction decoded; // record for the statement last fetched, null if none
+        private boolean compileHotBlocks;
+        private long executed; // instructions executed so far, including one that terminates
+        private ExecutionProfile profile; // null if not counting per address
+        private SamplingProfiler profiler; // null if not sampling
+        private TraceRecorder tracer; // null if not recording a trace
+        private CheckpointHistory history; // null if not taking checkpoints
+        private long firstPosition; // instructions executed since the program started, when this thread started
 
 
         /**
@@ -242,6 +507,17 @@ public class Simulator extends Observable {
             stopper = actor;
         }
 
+        /**
+         * Interrupts the thread running construct(), if it has started, so that a
+         * syscall waiting in sleep returns and the stop variable gets tested.
+         */
+        void wake() {
+            Thread t = worker;
+            if (t != null) {
+                t.interrupt();
+            }
+        }
+
 
         /**
          * This is comparable to the Runnable "run" method (it is called by
@@ -256,6 +532,10 @@ public class Simulator extends Observable {
             // before the simulation gets underway.  Without them, this happens only intermittently,
             // with a consequence that some simulations are interruptable using PAUSE/STOP and others
             // are not (because one or the other or both is not yet enabled).
+            worker = Thread.currentThread();
+            if (stop) {
+                worker.interrupt(); // stopped before this thread started; wake() missed it
+            }
             Thread.currentThread().setPriority(Thread.NORM_PRIORITY - 1);
             Thread.yield();  // let the main thread run a bit to finish updating the GUI
 
@@ -267,10 +547,17 @@ public class Simulator extends Observable {
 
             Simulator.getInstance().notifyObserversOfExecutionStart(maxSteps, pc);
 
+            decodedText = Simulator.getInstance().getDecodedTextSegment();
+            compileHotBlocks = Globals.getSettings().getBooleanSetting(Settings.COMPILE_HOT_BLOCKS);
+            profile = Simulator.getInstance().executionProfile;
+            profiler = Simulator.getInstance().samplingProfiler;
+            tracer = Simulator.getInstance().traceRecorder;
+            history = Simulator.getInstance().checkpointHistory;
+            firstPosition = (history != null) ? history.getPosition() : 0;
             RegisterFile.initializeProgramCounter(pc);
             ProgramStatement statement = null;
             try {
-                statement = Globals.memory.getStatement(RegisterFile.getProgramCounter());
+                statement = fetch(RegisterFile.getProgramCounter());
             } catch (AddressErrorException e) {
                 ErrorList el = new ErrorList();
                 el.add(new ErrorMessage((MIPSprogram) null, 0, 0, "invalid program counter value: " + Binary.intToHexString(RegisterFile.getProgramCounter())));
@@ -321,33 +608,95 @@ public class Simulator extends Observable {
             int pc = 0;  // added: 7/26/06 (explanation above)
 
             while (statement != null) {
+                if (history != null && history.isDue(firstPosition + executed)
+                        && !DelayedBranch.isTriggered() && !DelayedBranch.isRegistered()) {
+                    history.take(firstPosition + executed);
+                }
                 pc = RegisterFile.getProgramCounter(); // added: 7/26/06 (explanation above)
-                RegisterFile.incrementPC();
+                // Run a whole basic block at once if nothing needs to look at each step.
+                TranslatedBlock block = null;
+                if (decoded != null && breakPoints == null && maxSteps != 1 && !isThrottled()
+                        && Simulator.externalInterruptingDevice == NO_DEVICE
+                        && !Globals.getSettings().getBackSteppingEnabled()) {
+                    block = decodedText.getBlock(pc);
+                    if (block != null && maxSteps > 0 && steps + block.getInstructionCount() > maxSteps) {
+                        block = null;
+                    }
+                }
+                if (block == null) {
+                    RegisterFile.incrementPC();
+                }
                 // Perform the MIPS instruction in synchronized block.  If external threads agree
                 // to access MIPS memory and registers only through synchronized blocks on same
                 // lock variable, then full (albeit heavy-handed) protection of MIPS memory and
                 // registers is assured.  Not as critical for reading from those resources.
+                int count = 1; // instructions carried out this step, up to any that raised an exception
+                boolean counted = false;
                 synchronized (Globals.memoryAndRegistersLock) {
                     try {
-                        if (Simulator.externalInterruptingDevice != NO_DEVICE) {
+                        // A block only starts with no interrupt pending; one arriving meanwhile is taken next step.
+                        if (block == null && Simulator.externalInterruptingDevice != NO_DEVICE) {
                             int deviceInterruptCode = externalInterruptingDevice;
                             Simulator.externalInterruptingDevice = NO_DEVICE;
                             throw new ProcessingException(statement, "External Interrupt", deviceInterruptCode);
                         }
-                        BasicInstruction instruction = (BasicInstruction) statement.getInstruction();
-                        if (instruction == null) {
-                            throw new ProcessingException(statement,
-                                    "undefined instruction (" + Binary.intToHexString(statement.getBinaryStatement()) + ")",
-                                    Exceptions.RESERVED_INSTRUCTION_EXCEPTION);
+                        if (tracer != null && block == null) {
+                            if (decoded != null) {
+                                tracer.beforeExecute(pc, decoded);
+                            } else {
+                                tracer.beforeExecute(pc, statement.getBinaryStatement());
+                            }
+                        }
+                        if (block != null) {
+                            if (tracer != null) {
+                                block.executeTraced(tracer); // per instruction, so not fused or compiled
+                            } else {
+                                block.execute(compileHotBlocks);
+                            }
+                            pc = block.getLastAddress();
+                        } else if (decoded != null) {
+                            // Pre-decoded: same semantics, without the statement dispatch.
+                            decoded.execute();
+                        } else {
+                            BasicInstruction instruction = (BasicInstruction) statement.getInstruction();
+                            if (instruction == null) {
+                                throw new ProcessingException(statement,
+                                        "undefined instruction (" + Binary.intToHexString(statement.getBinaryStatement()) + ")",
+                                        Exceptions.RESERVED_INSTRUCTION_EXCEPTION);
+                            }
+                            // THIS IS WHERE THE INSTRUCTION EXECUTION IS ACTUALLY SIMULATED!
+                            instruction.getSimulationCode().simulate(statement);
+                        }
+
+                        if (block != null) {
+                            count = block.getInstructionCount();
+                        }
+                        executed += count;
+                        counted = true;
+                        if (profile != null || profiler != null) {
+                            countExecuted((block != null) ? block.getAddress() : pc, pc);
+                        }
+                        if (tracer != null) {
+                            tracer.afterExecute(false);
                         }
-                        // THIS IS WHERE THE INSTRUCTION EXECUTION IS ACTUALLY SIMULATED!
-                        instruction.getSimulationCode().simulate(statement);
 
                         // IF statement added 7/26/06 (explanation above)
                         if (Globals.getSettings().getBackSteppingEnabled()) {
                             Globals.program.getBackStepper().addDoNothing(pc);
                         }
                     } catch (ProcessingException pe) {
+                        if (block != null) {
+                            // the block stopped at the instruction just before the program counter
+                            pc = RegisterFile.getProgramCounter() - Instruction.INSTRUCTION_LENGTH;
+                            count = ((pc - block.getAddress()) >> 2) + 1;
+                        }
+                        executed += count;
+                        if (profile != null || profiler != null) {
+                            countExecuted((block != null) ? block.getAddress() : pc, pc);
+                        }
+                        if (tracer != null) {
+                            tracer.afterExecute(pe.errors() != null);
+                        }
                         if (pe.errors() == null) {
                             this.constructReturnReason = NORMAL_TERMINATION;
                             this.done = true;
@@ -376,6 +725,20 @@ public class Simulator extends Observable {
                                 return new Boolean(done);
                             }
                         }
+                    } catch (RuntimeException re) {
+                        // Not a MIPS exception (e.g. a syscall failing on missing input), and it ends
+                        // the run; still count what ran, up to and including the failing instruction.
+                        if (!counted) {
+                            if (block != null) {
+                                pc = RegisterFile.getProgramCounter() - Instruction.INSTRUCTION_LENGTH;
+                                count = ((pc - block.getAddress()) >> 2) + 1;
+                            }
+                            executed += count;
+                            if (profile != null || profiler != null) {
+                                countExecuted((block != null) ? block.getAddress() : pc, pc);
+                            }
+                        }
+                        throw re;
                     }
                 }// end synchronized block
 
@@ -405,7 +768,7 @@ public class Simulator extends Observable {
                 }
                 // Check number of MIPS instructions executed.  Return if at limit (-1 is no limit).
                 if (maxSteps > 0) {
-                    steps++;
+                    steps += count;
                     if (steps >= maxSteps) {
                         this.constructReturnReason = MAX_STEPS;
                         this.done = false;
@@ -436,7 +799,7 @@ public class Simulator extends Observable {
                 // Get next instruction in preparation for next iteration.
 
                 try {
-                    statement = Globals.memory.getStatement(RegisterFile.getProgramCounter());
+                    statement = fetch(RegisterFile.getProgramCounter());
                 } catch (AddressErrorException e) {
                     ErrorList el = new ErrorList();
                     el.add(new ErrorMessage((MIPSprogram) null, 0, 0, "invalid program counter value: " + Binary.intToHexString(RegisterFile.getProgramCounter())));
@@ -470,6 +833,49 @@ public class Simulator extends Observable {
             return new Boolean(done); // true;  // execution completed
         }
 
+        /**
+         * Report the execution of the instructions from firstAddress to lastAddress
+         * inclusive to the execution profile and sampling profiler, if any.
+         */
+        private void countExecuted(int firstAddress, int lastAddress) {
+            if (profile != null) {
+                if (firstAddress == lastAddress) {
+                    profile.increment(firstAddress);
+                } else {
+                    profile.incrementRange(firstAddress, lastAddress);
+                }
+            }
+            if (profiler != null) {
+                profiler.executed(firstAddress, lastAddress);
+            }
+        }
+
+        /**
+         * Determine whether the run speed slider is holding the simulation back, in which
+         * case the GUI is updated and the thread sleeps after every instruction.
+         */
+        private boolean isThrottled() {
+            return (Globals.getGui() != null || Globals.runSpeedPanelExists)
+                    && RunSpeedPanel.getInstance().getRunSpeed() < RunSpeedPanel.UNLIMITED_SPEED;
+        }
+
+        /**
+         * Fetch the statement at the given address.  If it can be run pre-decoded, its
+         * record is left in "decoded" and the text segment is not touched; otherwise
+         * "decoded" is null and the statement comes from Memory as usual.  Memory
+         * observers must see every instruction fetch, so while there are any the
+         * pre-decoded records are bypassed.
+         *
+         * @param address address of the statement, normally the program counter
+         * @return the statement, or null if there is none at that address
+         * @throws AddressErrorException if the address is not a valid text address
+         */
+        private ProgramStatement fetch(int address) throws AddressErrorException {
+            decoded = (decodedText != null && !Globals.memory.isObserved())
+                    ? decodedText.get(address)
+                    : null;
+            return (decoded != null) ? decoded.getStatement() : Globals.memory.getStatement(address);
+        }
 
         /**
          * This method is invoked by the SwingWorker when the "construct" method returns.
@@ -486,6 +892,9 @@ public class Simulator extends Observable {
             if (Globals.getGui() == null) {
                 return;
             }
+            if (history != null) {
+                history.setPosition(firstPosition + executed);
+            }
             String starterName = (String) starter.getValue(AbstractAction.NAME);
             if (starterName.equals("Step")) {
                 ((RunStepAction) starter).stepped(done, constructReturnReason, pe);
@@ -0,0 +1,329 @@
+package rars.simulator;
+
+import rars.util.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.zip.*;
+
+/*
+Copyright (c) 2018,  Yueyan Zhao
+
+Permission is hereby granted, free of charge, to any person obtaining 
+a copy of this software and associated documentation files (the 
+"Software"), to deal in the Software without restriction, including 
+without limitation the rights to use, copy, modify, merge, publish, 
+distribute, sublicense, and/or sell copies of the Software, and to 
+permit persons to whom the Software is furnished to do so, subject 
+to the following conditions:
+
+The above copyright notice and this permission notice shall be 
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, 
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF 
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. 
+IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR 
+ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF 
+CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION 
+WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+(MIT license, http://www.opensource.org/licenses/mit-license.html)
+ */
+
+/**
+ * Reads a trace written by TraceRecorder.  Records are addressed by their index in the
+ * trace, counting from 0.  The chunks of an uncompressed trace are memory-mapped as they
+ * are reached; those of a compressed trace are inflated into a buffer.  Reading records
+ * in order touches each chunk once.  A chunk that runs past the end of the file ends the
+ * trace (the recording was cut short, see isTruncated()); one whose record count does
+ * not fit its stored length or the header's chunk size is rejected as corrupt.
+ *
+ * @see TraceRecorder
+ */
+
+public class TraceReader implements Closeable {
+    private final FileChannel channel;
+    private final int compression;
+    private final long[] chunkPositions; // file position of each chunk's records
+    private final int[] chunkStoredLengths;
+    private final long[] chunkFirstRecords; // index of each chunk's first record, plus total at end
+    private final boolean truncated;
+    private int currentChunk = -1;
+    private ByteBuffer current;
+    private byte[] inflated;
+
+    /**
+     * Open a trace file and read its chunk index.
+     *
+     * @param file the trace file
+     * @throws IOException if the file cannot be read, is not a trace or has a corrupt chunk
+     */
+    public TraceReader(File file) throws IOException {
+        channel = new FileInputStream(file).getChannel();
+        try {
+            ByteBuffer header = readAt(0, TraceRecorder.HEADER_LENGTH);
+            byte[] magic = new byte[TraceRecorder.MAGIC.length];
+            header.get(magic);
+            if (!Arrays.equals(magic, TraceRecorder.MAGIC) || header.getInt() != TraceRecorder.RECORD_LENGTH) {
+                throw new IOException(file + " is not a trace file");
+            }
+            int chunkRecords = header.getInt(); // records per chunk, only a maximum
+            if (chunkRecords <= 0 || chunkRecords > Integer.MAX_VALUE / TraceRecorder.RECORD_LENGTH) {
+                throw new IOException(file + " has an invalid chunk size " + chunkRecords);
+            }
+            compression = header.getInt();
+            if (compression != TraceRecorder.COMPRESSION_NONE && compression != TraceRecorder.COMPRESSION_DEFLATE) {
+                throw new IOException(file + " uses unknown compression " + compression);
+            }
+            ArrayList<long[]> chunks = new ArrayList<long[]>();
+            long position = TraceRecorder.HEADER_LENGTH;
+            long size = channel.size();
+            while (position + 8 <= size) {
+                ByteBuffer chunkHeader = readAt(position, 8);
+                int records = chunkHeader.getInt();
+                int storedLength = chunkHeader.getInt();
+                if (records == 0) {
+                    break; // the zeros after the end of a recording that was not closed
+                }
+                if (records < 0 || records > chunkRecords || storedLength < 0
+                        || (compression == TraceRecorder.COMPRESSION_NONE
+                        && storedLength != records * TraceRecorder.RECORD_LENGTH)) {
+                    throw new IOException(file + " has a corrupt chunk at byte " + position);
+                }
+                if (position + 8 + storedLength > size) {
+                    break; // truncated, e.g. the recording was killed; keep the complete chunks
+                }
+                chunks.add(new long[]{position + 8, storedLength, records});
+                position += 8 + storedLength;
+            }
+            truncated = position != size;
+            chunkPositions = new long[chunks.size()];
+            chunkStoredLengths = new int[chunks.size()];
+            chunkFirstRecords = new long[chunks.size() + 1];
+            for (int i = 0; i < chunks.size(); i++) {
+                chunkPositions[i] = chunks.get(i)[0];
+                chunkStoredLengths[i] = (int) chunks.get(i)[1];
+                chunkFirstRecords[i + 1] = chunkFirstRecords[i] + chunks.get(i)[2];
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the number of records in the trace.
+     *
+     * @return record count
+     */
+    public long getRecordCount() {
+        return chunkFirstRecords[chunkFirstRecords.length - 1];
+    }
+
+    /**
+     * Returns whether the file ends part way through a chunk, whose records are
+     * then not counted.
+     *
+     * @return true if the trace is truncated
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * Returns whether the records are stored deflated.
+     *
+     * @return true if the trace is compressed
+     */
+    public boolean isCompressed() {
+        return compression == TraceRecorder.COMPRESSION_DEFLATE;
+    }
+
+    /**
+     * Read the record with the given index.
+     *
+     * @param index  index of the record, from 0
+     * @param record filled in with the record's contents
+     * @return false if there is no record with that index
+     * @throws IOException if the file cannot be read or a chunk is corrupt
+     */
+    public boolean read(long index, Record record) throws IOException {
+        if (index < 0 || index >= getRecordCount()) {
+            return false;
+        }
+        if (currentChunk < 0 || index < chunkFirstRecords[currentChunk] || index >= chunkFirstRecords[currentChunk + 1]) {
+            int chunk = Arrays.binarySearch(chunkFirstRecords, index);
+            chunk = (chunk >= 0) ? chunk : -chunk - 2;
+            while (chunkFirstRecords[chunk + 1] == chunkFirstRecords[chunk]) {
+                chunk++; // skip empty chunks
+            }
+            loadChunk(chunk);
+        }
+        int offset = (int) (index - chunkFirstRecords[currentChunk]) * TraceRecorder.RECORD_LENGTH;
+        record.pc = current.getInt(offset);
+        record.instruction = current.getInt(offset + 4);
+        record.flags = current.get(offset + 8) & 0xFF;
+        record.register = current.get(offset + 9) & 0xFF;
+        record.width = current.get(offset + 10) & 0xFF;
+        record.registerValue = current.getInt(offset + 12);
+        record.address = current.getInt(offset + 16);
+        record.value = current.getInt(offset + 20);
+        record.index = index;
+        return true;
+    }
+
+    /**
+     * Close the trace file.
+     *
+     * @throws IOException if closing fails
+     */
+    public void close() throws IOException {
+        current = null;
+        channel.close();
+    }
+
+    private void loadChunk(int chunk) throws IOException {
+        int recordsLength = (int) (chunkFirstRecords[chunk + 1] - chunkFirstRecords[chunk]) * TraceRecorder.RECORD_LENGTH;
+        if (compression == TraceRecorder.COMPRESSION_NONE) {
+            current = channel.map(FileChannel.MapMode.READ_ONLY, chunkPositions[chunk], chunkStoredLengths[chunk]);
+        } else {
+            ByteBuffer stored = readAt(chunkPositions[chunk], chunkStoredLengths[chunk]);
+            if (inflated == null || inflated.length < recordsLength) {
+                inflated = new byte[recordsLength];
+            }
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(stored.array(), 0, stored.limit());
+                int length = 0;
+                while (length < recordsLength && !inflater.finished()) {
+                    int n = inflater.inflate(inflated, length, recordsLength - length);
+                    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    length += n;
+                }
+                if (length != recordsLength) {
+                    throw new IOException("corrupt trace chunk " + chunk);
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("corrupt trace chunk " + chunk, e);
+            } finally {
+                inflater.end();
+            }
+            current = ByteBuffer.wrap(inflated, 0, recordsLength);
+        }
+        if (current.limit() < recordsLength) {
+            throw new IOException("corrupt trace chunk " + chunk);
+        }
+        current.order(ByteOrder.LITTLE_ENDIAN);
+        currentChunk = chunk;
+    }
+
+    private ByteBuffer readAt(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * One executed instruction, as read from a trace.  See TraceRecorder for the meaning
+     * of the fields.  Reused from one read to the next.
+     */
+    public static class Record {
+        private long index;
+        private int pc, instruction, flags, register, width, registerValue, address, value;
+
+        /**
+         * @return index of the record in the trace
+         */
+        public long getIndex() {
+            return index;
+        }
+
+        /**
+         * @return address of the instruction
+         */
+        public int getPC() {
+            return pc;
+        }
+
+        /**
+         * @return the instruction word
+         */
+        public int getInstruction() {
+            return instruction;
+        }
+
+        /**
+         * @return combination of the TraceRecorder FLAG_ constants
+         */
+        public int getFlags() {
+            return flags;
+        }
+
+        /**
+         * @return number of the register written, if FLAG_REGISTER is set
+         */
+        public int getRegister() {
+            return register;
+        }
+
+        /**
+         * @return width in bytes of the memory access, if FLAG_LOAD or FLAG_STORE is set
+         */
+        public int getWidth() {
+            return width;
+        }
+
+        /**
+         * @return value written to the register
+         */
+        public int getRegisterValue() {
+            return registerValue;
+        }
+
+        /**
+         * @return address of the memory access
+         */
+        public int getAddress() {
+            return address;
+        }
+
+        /**
+         * @return value loaded or stored
+         */
+        public int getValue() {
+            return value;
+        }
+
+        /**
+         * Produces one line of text describing the record, e.g.
+         * <tt>17 0x00400010 0x00832283 x5=0x0000002a load 4 0x10010008=0x0000002a</tt>
+         *
+         * @return the record as text
+         */
+        public String toString() {
+            StringBuilder text = new StringBuilder(80);
+            text.append(index).append(' ').append(Binary.intToHexString(pc)).append(' ').append(Binary.intToHexString(instruction));
+            if ((flags & TraceRecorder.FLAG_REGISTER) != 0) {
+                text.append(" x").append(register).append('=').append(Binary.intToHexString(registerValue));
+            }
+            if ((flags & (TraceRecorder.FLAG_LOAD | TraceRecorder.FLAG_STORE)) != 0) {
+                text.append(((flags & TraceRecorder.FLAG_LOAD) != 0) ? " load " : " store ").append(width).append(' ')
+                        .append(Binary.intToHexString(address)).append('=').append(Binary.intToHexString(value));
+            }
+            if ((flags & TraceRecorder.FLAG_TRAP) != 0) {
+                text.append(" trap");
+            }
+            return text.toString();
+        }
+    }
+}
@@ -0,0 +1,415 @@
+package rars.simulator;
+
+import rars.mips.hardware.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.zip.*;
+
+/*
+Copyright (c) 2018,  Yueyan Zhao
+
+Permission is hereby granted, free of charge, to any person obtaining 
+a copy of this software and associated documentation files (the 
+"Software"), to deal in the Software without restriction, including 
+without limitation the rights to use, copy, modify, merge, publish, 
+distribute, sublicense, and/or sell copies of the Software, and to 
+permit persons to whom the Software is furnished to do so, subject 
+to the following conditions:
+
+The above copyright notice and this permission notice shall be 
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, 
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF 
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. 
+IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR 
+ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF 
+CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION 
+WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+(MIT license, http://www.opensource.org/licenses/mit-license.html)
+ */
+
+/**
+ * Writes a binary trace of every instruction the Simulator executes: the program counter,
+ * the instruction word, the integer register written and its new value, and the address,
+ * width and value of any memory load or store.  Each instruction becomes one fixed-width
+ * little-endian record of RECORD_LENGTH bytes:
+ * <pre>
+ *  0  int   program counter
+ *  4  int   instruction word
+ *  8  byte  flags (FLAG_REGISTER, FLAG_LOAD, FLAG_STORE, FLAG_TRAP)
+ *  9  byte  register written, if FLAG_REGISTER
+ * 10  byte  memory access width in bytes, if FLAG_LOAD or FLAG_STORE
+ * 11  byte  unused, 0
+ * 12  int   value written to the register
+ * 16  int   memory address
+ * 20  int   memory value (loaded value as extended into the register, or value stored)
+ * </pre>
+ * The file starts with a header (MAGIC, then the ints RECORD_LENGTH, CHUNK_RECORDS and
+ * the compression, COMPRESSION_NONE or COMPRESSION_DEFLATE) followed by chunks of up to
+ * CHUNK_RECORDS records.  A chunk is its record count and stored length, both ints,
+ * then its records, deflated if the trace is compressed.  The file is mapped into memory
+ * up to MAP_LENGTH bytes at a time, and records are filled in directly in the mapping,
+ * or gathered and deflated a whole chunk at a time if compressed, so recording costs
+ * little more than filling in the record.
+ * The file is cut to its real length on close; if the recording is killed first, it ends
+ * in zeros, which read as an empty chunk.  See TraceReader for reading a trace back.
+ * <p>
+ * Register and memory effects are worked out from the pre-decoded instruction when the
+ * simulator has one, otherwise from the instruction word: the memory address before the
+ * instruction executes, the values after.  A load into x0 records a memory value of 0,
+ * and for a system call the lowest numbered register it changed, if any, is recorded as
+ * the register written.
+ *
+ * @see Simulator#setTraceRecorder(TraceRecorder)
+ */
+
+public class TraceRecorder implements Closeable {
+    public static final byte[] MAGIC = {'R', 'A', 'R', 'S', 'T', 'R', 'C', '1'};
+    public static final int HEADER_LENGTH = MAGIC.length + 12;
+    public static final int RECORD_LENGTH = 24;
+    public static final int CHUNK_RECORDS = 1 << 16;
+    public static final int MAP_LENGTH = 1 << 25; // bytes of the file mapped at once
+    public static final int COMPRESSION_NONE = 0;
+    public static final int COMPRESSION_DEFLATE = 1;
+    public static final int FLAG_REGISTER = 1;
+    public static final int FLAG_LOAD = 2;
+    public static final int FLAG_STORE = 4;
+    public static final int FLAG_TRAP = 8; // the instruction raised an exception; effects may be incomplete
+
+    private static final int OPCODE_LOAD = 0x03;
+    private static final int OPCODE_STORE = 0x23;
+    private static final int OPCODE_OP_IMM = 0x13;
+    private static final int OPCODE_OP = 0x33;
+    private static final int OPCODE_LUI = 0x37;
+    private static final int OPCODE_AUIPC = 0x34; // auipc has its own encoding in this simulator
+    private static final int OPCODE_JAL = 0x6F;
+    private static final int OPCODE_JALR = 0x67;
+    private static final int OPCODE_SYSCALL = 0x0C; // syscall keeps its MIPS encoding
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private MappedByteBuffer mapped; // the part of the file being written, null before the first
+    private long mappedStart; // file position of the start of mapped
+    private final int compression;
+    private ByteBuffer chunk; // records of the chunk being filled; part of mapped if not compressed
+    private final Deflater deflater;
+    private byte[] deflated;
+    private IOException writeError; // first error writing the file, reported by close()
+    private long records;
+    private int[] registersBefore = new int[32];
+    // the instruction between beforeExecute() and afterExecute()
+    private boolean executing;
+    private int pc, instruction, flags, width, address;
+    private int destination; // register the instruction writes, 0 for none, -1 to compare all (syscall)
+    private int valueRegister; // register holding the value a store writes
+
+    /**
+     * Create the trace file, replacing any existing file of that name.
+     *
+     * @param file     the file to write
+     * @param compress whether to deflate each chunk of records
+     * @throws IOException if the file cannot be created
+     */
+    public TraceRecorder(File file, boolean compress) throws IOException {
+        this.file = new RandomAccessFile(file, "rw");
+        this.file.setLength(0);
+        channel = this.file.getChannel();
+        compression = compress ? COMPRESSION_DEFLATE : COMPRESSION_NONE;
+        deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(MAGIC).putInt(RECORD_LENGTH).putInt(CHUNK_RECORDS).putInt(compression);
+        header.flip();
+        try {
+            writeFully(header);
+        } catch (IOException e) {
+            this.file.close();
+            throw e;
+        }
+        if (compress) {
+            chunk = ByteBuffer.allocate(CHUNK_RECORDS * RECORD_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+        } else {
+            startChunk();
+        }
+    }
+
+    /**
+     * Returns the number of records written or buffered so far.
+     *
+     * @return record count
+     */
+    public long getRecordCount() {
+        return records;
+    }
+
+    /**
+     * Note an instruction about to be executed.  Must be followed by afterExecute() once it has.
+     *
+     * @param pc          address of the instruction
+     * @param instruction the instruction word
+     */
+    public void beforeExecute(int pc, int instruction) {
+        start(pc, instruction);
+        int opcode = instruction & 0x7F;
+        int rd = (instruction >>> 7) & 0x1F;
+        int rs1 = (instruction >>> 15) & 0x1F;
+        if (opcode == OPCODE_LOAD) {
+            flags = FLAG_LOAD;
+            address = RegisterFile.getValue(rs1) + (instruction >> 20);
+            width = 1 << ((instruction >>> 12) & 3);
+            destination = rd;
+        } else if (opcode == OPCODE_STORE) {
+            flags = FLAG_STORE;
+            // Stores have the value register in the rs1 field and the base register in rs2.
+            int base = (instruction >>> 20) & 0x1F;
+            address = RegisterFile.getValue(base) + (((instruction >> 25) << 5) | ((instruction >>> 7) & 0x1F));
+            width = 1 << ((instruction >>> 12) & 3);
+            valueRegister = rs1;
+        } else if (opcode == OPCODE_SYSCALL) {
+            snapshotRegisters();
+        } else if (opcode == OPCODE_OP_IMM || opcode == OPCODE_OP || opcode == OPCODE_LUI || opcode == OPCODE_AUIPC
+                || opcode == OPCODE_JAL || opcode == OPCODE_JALR) {
+            destination = rd;
+        }
+    }
+
+    /**
+     * Note a pre-decoded instruction about to be executed.  Same as beforeExecute(int, int)
+     * for its instruction word, but takes the registers and immediate as decoded.  Must be
+     * followed by afterExecute() once it has executed.
+     *
+     * @param pc          address of the instruction
+     * @param instruction the instruction, not a superinstruction
+     */
+    public void beforeExecute(int pc, DecodedInstruction instruction) {
+        if (instruction.opcode == DecodedInstruction.OTHER) {
+            beforeExecute(pc, instruction.statement.getBinaryStatement());
+            return;
+        }
+        start(pc, instruction.statement.getBinaryStatement());
+        switch (instruction.opcode) {
+            case DecodedInstruction.LB:
+            case DecodedInstruction.LBU:
+            case DecodedInstruction.LH:
+            case DecodedInstruction.LHU:
+            case DecodedInstruction.LW:
+                flags = FLAG_LOAD;
+                address = RegisterFile.getValue(instruction.rs1) + instruction.imm;
+                width = (instruction.opcode == DecodedInstruction.LW) ? 4
+                        : (instruction.opcode == DecodedInstruction.LH || instruction.opcode == DecodedInstruction.LHU) ? 2 : 1;
+                destination = instruction.rd;
+                break;
+            case DecodedInstruction.SB:
+            case DecodedInstruction.SH:
+            case DecodedInstruction.SW:
+                flags = FLAG_STORE;
+                address = RegisterFile.getValue(instruction.rs1) + instruction.imm;
+                width = (instruction.opcode == DecodedInstruction.SW) ? 4 : (instruction.opcode == DecodedInstruction.SH) ? 2 : 1;
+                valueRegister = instruction.rs2;
+                break;
+            case DecodedInstruction.NOP:
+            case DecodedInstruction.BEQ:
+            case DecodedInstruction.BNE:
+            case DecodedInstruction.BLT:
+            case DecodedInstruction.BLTU:
+            case DecodedInstruction.BGE:
+            case DecodedInstruction.BGEU:
+                break;
+            default:
+                destination = instruction.rd;
+        }
+    }
+
+    private void start(int pc, int instruction) {
+        this.executing = true;
+        this.pc = pc;
+        this.instruction = instruction;
+        this.flags = 0;
+        this.width = 0;
+        this.address = 0;
+        this.destination = 0;
+        this.valueRegister = 0;
+    }
+
+    private void snapshotRegisters() {
+        destination = -1;
+        for (int i = 1; i < registersBefore.length; i++) {
+            registersBefore[i] = RegisterFile.getValue(i);
+        }
+    }
+
+    /**
+     * Record the instruction passed to the last beforeExecute(), now that it has executed.
+     * Does nothing if there was none.
+     *
+     * @param trapped true if the instruction raised an exception
+     */
+    public void afterExecute(boolean trapped) {
+        if (!executing) {
+            return;
+        }
+        executing = false;
+        int register = 0;
+        int registerValue = 0;
+        int value = 0;
+        if (destination < 0) {
+            for (int i = 1; i < registersBefore.length; i++) {
+                if (RegisterFile.getValue(i) != registersBefore[i]) {
+                    flags |= FLAG_REGISTER;
+                    register = i;
+                    registerValue = RegisterFile.getValue(i);
+                    break;
+                }
+            }
+        } else if (destination != 0) {
+            flags |= FLAG_REGISTER;
+            register = destination;
+            registerValue = RegisterFile.getValue(destination);
+        }
+        if ((flags & FLAG_LOAD) != 0) {
+            value = registerValue;
+        } else if ((flags & FLAG_STORE) != 0) {
+            value = RegisterFile.getValue(valueRegister);
+            if (width < 4) {
+                value &= (1 << (width * 8)) - 1;
+            }
+        }
+        if (trapped) {
+            flags |= FLAG_TRAP;
+        }
+        put(pc, instruction, flags, register, width, registerValue, address, value);
+    }
+
+    /**
+     * Append a record read from another trace, e.g. to extract part of it.
+     *
+     * @param record the record to write
+     */
+    public void append(TraceReader.Record record) {
+        put(record.getPC(), record.getInstruction(), record.getFlags(), record.getRegister(), record.getWidth(),
+                record.getRegisterValue(), record.getAddress(), record.getValue());
+    }
+
+    private void put(int pc, int instruction, int flags, int register, int width, int registerValue, int address, int value) {
+        chunk.putInt(pc).putInt(instruction).put((byte) flags).put((byte) register).put((byte) width).put((byte) 0)
+                .putInt(registerValue).putInt(address).putInt(value);
+        records++;
+        if (!chunk.hasRemaining()) {
+            writeChunk();
+            startChunk();
+        }
+    }
+
+    /**
+     * Write any buffered records and close the file.
+     *
+     * @throws IOException if writing the trace failed at any point
+     */
+    public void close() throws IOException {
+        if (channel.isOpen()) {
+            writeChunk();
+            long length = (mapped == null) ? 0 : mappedStart + mapped.position();
+            mapped = null;
+            try {
+                file.setLength(length);
+            } catch (IOException e) {
+                // Some systems refuse while the mapping lingers; the zeros then read as the end.
+            }
+            file.close();
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+        if (writeError != null) {
+            throw writeError;
+        }
+    }
+
+    // Begin a chunk.  Uncompressed, its records go straight into the mapping, after
+    // room for the chunk header, which is filled in by writeChunk().
+    private void startChunk() {
+        if (deflater != null || writeError != null) {
+            chunk.clear();
+            return;
+        }
+        try {
+            int length = CHUNK_RECORDS * RECORD_LENGTH;
+            reserve(8 + length);
+            ByteBuffer records = mapped.duplicate();
+            records.limit(mapped.position() + 8 + length);
+            records.position(mapped.position() + 8);
+            chunk = records.slice().order(ByteOrder.LITTLE_ENDIAN);
+        } catch (IOException e) {
+            writeError = e;
+            chunk = ByteBuffer.allocate(CHUNK_RECORDS * RECORD_LENGTH); // the rest is discarded
+        }
+    }
+
+    private void writeChunk() {
+        if (chunk.position() == 0 || writeError != null) {
+            chunk.clear();
+            return;
+        }
+        if (deflater == null) {
+            // Already in place: fill in the header and move past the records.
+            int length = chunk.position();
+            mapped.putInt(length / RECORD_LENGTH).putInt(length);
+            mapped.position(mapped.position() + length);
+            return;
+        }
+        try {
+            chunk.flip();
+            if (deflated == null) {
+                deflated = new byte[chunk.capacity() + chunk.capacity() / 100 + 64];
+            }
+            deflater.reset();
+            deflater.setInput(chunk.array(), 0, chunk.limit());
+            deflater.finish();
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == deflated.length) {
+                    deflated = Arrays.copyOf(deflated, length * 2);
+                }
+                length += deflater.deflate(deflated, length, deflated.length - length);
+            }
+            ByteBuffer stored = ByteBuffer.wrap(deflated, 0, length);
+            ByteBuffer chunkHeader = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+            chunkHeader.putInt(chunk.limit() / RECORD_LENGTH).putInt(stored.remaining());
+            chunkHeader.flip();
+            writeFully(chunkHeader);
+            writeFully(stored);
+        } catch (IOException e) {
+            writeError = e;
+        }
+        chunk.clear();
+    }
+
+    // Make sure the mapping has room for the given number of bytes after what has been
+    // written, by mapping the next MAP_LENGTH bytes of the file from there if not.
+    private void reserve(int length) throws IOException {
+        if (mapped == null || mapped.remaining() < length) {
+            mappedStart = (mapped == null) ? 0 : mappedStart + mapped.position();
+            mapped = channel.map(FileChannel.MapMode.READ_WRITE, mappedStart, MAP_LENGTH);
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    // Copy the buffer into the file after what has been written.
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            reserve(1);
+            if (buffer.remaining() <= mapped.remaining()) {
+                mapped.put(buffer);
+            } else {
+                ByteBuffer part = buffer.duplicate();
+                part.limit(part.position() + mapped.remaining());
+                buffer.position(part.limit());
+                mapped.put(part);
+            }
+        }
+    }
+}
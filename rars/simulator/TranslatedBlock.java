@@ -0,0 +1,182 @@
+package rars.simulator;
+
+import rars.*;
+import rars.mips.hardware.*;
+import rars.mips.instructions.*;
+
+import java.util.*;
+
+/*
+Copyright (c) 2018,  Yueyan Zhao
+
+Permission is hereby granted, free of charge, to any person obtaining 
+a copy of this software and associated documentation files (the 
+"Software"), to deal in the Software without restriction, including 
+without limitation the rights to use, copy, modify, merge, publish, 
+distribute, sublicense, and/or sell copies of the Software, and to 
+permit persons to whom the Software is furnished to do so, subject 
+to the following conditions:
+
+The above copyright notice and this permission notice shall be 
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, 
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF 
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. 
+IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR 
+ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF 
+CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION 
+WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+(MIT license, http://www.opensource.org/licenses/mit-license.html)
+ */
+
+/**
+ * A basic block of the text segment: a straight run of pre-decoded instructions
+ * ending at the first branch, jump or syscall.  Adjacent instruction pairs are
+ * fused into superinstructions where possible (see DecodedInstruction.fuse()).
+ * The simulator runs a whole block as one unit, checking for stop, breakpoints and
+ * the step limit only once per block.  Blocks that run often are compiled to JVM
+ * classes by the BlockCompiler.
+ *
+ * @see DecodedTextSegment#getBlock(int)
+ */
+
+public final class TranslatedBlock {
+    /**
+     * Maximum number of instructions in a block, so that a stop request is noticed promptly
+     * even in long runs of straight-line code.
+     */
+    public static final int MAX_LENGTH = 64;
+
+    private final DecodedTextSegment text;
+    private final int address;
+    private final DecodedInstruction[] instructions; // as decoded, not fused
+    private final DecodedInstruction[] code;
+    private int executionCount;
+    private BlockCompiler.Code compiledCode;
+
+    private TranslatedBlock(DecodedTextSegment text, int address, DecodedInstruction[] instructions,
+                            DecodedInstruction[] code) {
+        this.text = text;
+        this.address = address;
+        this.instructions = instructions;
+        this.code = code;
+    }
+
+    /**
+     * Build the block starting at the given address.
+     *
+     * @param text    decoded text segment to take the instructions from
+     * @param address address of the first instruction of the block
+     * @return the block, or null if there is no decodable instruction at that address
+     */
+    static TranslatedBlock translate(DecodedTextSegment text, int address) {
+        ArrayList<DecodedInstruction> instructions = new ArrayList<DecodedInstruction>();
+        int end = address;
+        DecodedInstruction instruction = text.get(end);
+        while (instruction != null && instructions.size() < MAX_LENGTH) {
+            instructions.add(instruction);
+            end += Instruction.INSTRUCTION_LENGTH;
+            if (instruction.endsBlock()) {
+                break;
+            }
+            instruction = text.get(end);
+        }
+        if (instructions.isEmpty()) {
+            return null;
+        }
+        ArrayList<DecodedInstruction> code = new ArrayList<DecodedInstruction>();
+        for (int i = 0; i < instructions.size(); i++) {
+            DecodedInstruction fused = (i + 1 < instructions.size())
+                    ? DecodedInstruction.fuse(instructions.get(i), instructions.get(i + 1))
+                    : null;
+            if (fused != null) {
+                code.add(fused);
+                i++;
+            } else {
+                code.add(instructions.get(i));
+            }
+        }
+        return new TranslatedBlock(text, address, instructions.toArray(new DecodedInstruction[instructions.size()]),
+                code.toArray(new DecodedInstruction[code.size()]));
+    }
+
+    /**
+     * Returns the address of the first instruction in this block.
+     */
+    public int getAddress() {
+        return address;
+    }
+
+    /**
+     * Returns the number of instructions in this block, counting each half of a superinstruction.
+     */
+    public int getInstructionCount() {
+        return instructions.length;
+    }
+
+    /**
+     * Returns the address of the last instruction in this block.
+     */
+    public int getLastAddress() {
+        return address + (instructions.length - 1) * Instruction.INSTRUCTION_LENGTH;
+    }
+
+    /**
+     * Returns true if this block has been compiled by the BlockCompiler.
+     */
+    public boolean isCompiled() {
+        return compiledCode != null;
+    }
+
+    /**
+     * Run the block.  The program counter must hold the block's address; it is incremented
+     * before each instruction, as the simulator does for a single step.  If an instruction
+     * throws, the remaining ones are not run and the program counter is left just past the
+     * instruction that threw.
+     *
+     * @param compileWhenHot if true, the block is compiled once it has run
+     *                       BlockCompiler.COMPILE_THRESHOLD times, and runs compiled from then on
+     * @throws ProcessingException on runtime exception or syscall termination.
+     */
+    public void execute(boolean compileWhenHot) throws ProcessingException {
+        if (compileWhenHot) {
+            if (compiledCode == null && executionCount >= 0 && (++executionCount >= BlockCompiler.COMPILE_THRESHOLD
+                    || BlockCompiler.isDifferentialChecking())) {
+                compiledCode = BlockCompiler.compile(text, this, instructions);
+                executionCount = -1; // compiled, or not compilable; do not try again
+            }
+            if (compiledCode != null) {
+                if (BlockCompiler.isDifferentialChecking()) {
+                    BlockCompiler.executeChecked(this, instructions, compiledCode);
+                } else {
+                    compiledCode.execute(instructions);
+                }
+                return;
+            }
+        }
+        for (int i = 0; i < code.length; i++) {
+            RegisterFile.incrementPC();
+            code[i].execute();
+        }
+    }
+
+    /**
+     * Run the block as execute(false) does, but one instruction at a time, without
+     * superinstructions, recording each instruction in the given trace.  If an instruction
+     * throws, it is left for the caller to record by calling afterExecute().
+     *
+     * @param tracer the trace being recorded
+     * @throws ProcessingException on runtime exception or syscall termination.
+     */
+    public void executeTraced(TraceRecorder tracer) throws ProcessingException {
+        int pc = address;
+        for (int i = 0; i < instructions.length; i++, pc += Instruction.INSTRUCTION_LENGTH) {
+            tracer.beforeExecute(pc, instructions[i]);
+            RegisterFile.incrementPC();
+            instructions[i].execute();
+            tracer.afterExecute(false);
+        }
+    }
+}
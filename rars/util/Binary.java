@@ -590,6 +590,31 @@ public class Binary {
         return value << ((3 - bite) << 3) >>> 24;
     }
 
+    /**
+     * Compares two values as signed integers, like Integer.compare (which needs Java 7).
+     *
+     * @param first  the first value
+     * @param second the second value
+     * @return negative, zero or positive as first is less than, equal to or greater than second
+     **/
+
+    public static int compare(int first, int second) {
+        return (first < second) ? -1 : ((first == second) ? 0 : 1);
+    }
+
+    /**
+     * Compares two values as unsigned 32-bit integers, like Integer.compareUnsigned (which
+     * needs Java 8).
+     *
+     * @param first  the first value
+     * @param second the second value
+     * @return negative, zero or positive as first is less than, equal to or greater than second
+     **/
+
+    public static int compareUnsigned(int first, int second) {
+        return compare(first + Integer.MIN_VALUE, second + Integer.MIN_VALUE);
+    }
+
     // KENV 1/4/05
 
     /**
@@ -0,0 +1,462 @@
+package rars.util;
+
+import java.io.*;
+
+/*
+Copyright (c) 2018,  Yueyan Zhao
+
+Permission is hereby granted, free of charge, to any person obtaining 
+a copy of this software and associated documentation files (the 
+"Software"), to deal in the Software without restriction, including 
+without limitation the rights to use, copy, modify, merge, publish, 
+distribute, sublicense, and/or sell copies of the Software, and to 
+permit persons to whom the Software is furnished to do so, subject 
+to the following conditions:
+
+The above copyright notice and this permission notice shall be 
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, 
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF 
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. 
+IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR 
+ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF 
+CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION 
+WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+(MIT license, http://www.opensource.org/licenses/mit-license.html)
+ */
+
+/**
+ * Record and replay of the syscall results that make a run non-deterministic: lines of
+ * console input, the success of opening files for reading, bytes read from files
+ * (standard input included), the system time and the seeds of unseeded random number
+ * streams.  While recording, each result is appended to a log file as it is produced.
+ * While replaying, the results are taken from the log in the same order instead, so a
+ * run reads no input at all and behaves exactly as the recorded one did, however many
+ * times it is repeated.
+ * <p>
+ * The log is MAGIC followed by one entry per result: a tag byte (INPUT, FILE_OPEN,
+ * FILE_READ, TIME or RANDOM_SEED) and its data.  INPUT is a string, FILE_OPEN a byte
+ * that is 1 if the open succeeded, FILE_READ the fd and the value returned, both ints,
+ * then the bytes read if any or the error message if the read failed, TIME and
+ * RANDOM_SEED a long.  A string is an int length, -1 for none, and its UTF-8 bytes.
+ * <p>
+ * Should a replayed run ask for a different result than the recorded one did next, or
+ * for more results than were recorded, the program has diverged from the recording and
+ * a ReplayException is thrown.
+ * <p>
+ * A log can be rewound to an earlier result, for a program whose state has been put back
+ * to a checkpoint.  Rewinding a recording replays what was recorded from that point on,
+ * then carries on recording once the program asks for more.
+ *
+ * @see SystemIO
+ */
+
+public class SyscallLog {
+    public static final byte[] MAGIC = {'R', 'A', 'R', 'S', 'S', 'Y', 'S', '1'};
+    public static final int INPUT = 1;
+    public static final int FILE_OPEN = 2;
+    public static final int FILE_READ = 3;
+    public static final int TIME = 4;
+    public static final int RANDOM_SEED = 5;
+
+    private static final String[] TAG_NAMES = {"unknown entry 0", "console input", "file open", "file read", "time", "random seed"};
+
+    private static DataOutputStream recording = null;
+    private static DataInputStream replaying = null;
+    private static long entries = 0; // recorded, or replayed so far
+    private static File logFile = null;
+    private static long recordingResumesAt = -1; // entry at which a rewound recording stops replaying, -1 if none
+
+    /**
+     * Start recording syscall results to the given file, replacing its contents.
+     *
+     * @param file the log file
+     * @throws IOException if the file cannot be created
+     */
+    public static void startRecording(File file) throws IOException {
+        stop();
+        recording = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        recording.write(MAGIC);
+        entries = 0;
+        logFile = file;
+    }
+
+    /**
+     * Start replaying syscall results from the given log file.
+     *
+     * @param file a log file written while recording
+     * @throws IOException if the file cannot be read or is not a syscall log
+     */
+    public static void startReplay(File file) throws IOException {
+        stop();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        byte[] magic = new byte[MAGIC.length];
+        try {
+            in.readFully(magic);
+        } catch (EOFException e) {
+        }
+        if (!java.util.Arrays.equals(magic, MAGIC)) {
+            in.close();
+            throw new IOException("not a syscall log");
+        }
+        replaying = in;
+        entries = 0;
+        logFile = file;
+    }
+
+    /**
+     * Stop recording or replaying.  A recording is flushed and closed.
+     *
+     * @throws IOException if the end of a recording could not be written
+     */
+    public static void stop() throws IOException {
+        DataOutputStream out = recording;
+        DataInputStream in = replaying;
+        recording = null;
+        replaying = null;
+        logFile = null;
+        recordingResumesAt = -1;
+        if (in != null) {
+            in.close();
+        }
+        if (out != null) {
+            out.close();
+        }
+    }
+
+    /**
+     * @return true if syscall results are being recorded
+     */
+    public static boolean isRecording() {
+        return recording != null;
+    }
+
+    /**
+     * @return true if syscall results are being replayed; the real sources must not then be used
+     */
+    public static boolean isReplaying() {
+        if (replaying != null && entries == recordingResumesAt) {
+            resumeRecording();
+        }
+        return replaying != null;
+    }
+
+    /**
+     * @return number of results recorded, or replayed so far
+     */
+    public static long getEntryCount() {
+        return entries;
+    }
+
+    /**
+     * Determine whether a replayed run used fewer results than were recorded.
+     *
+     * @return number of results left unused, 0 if not replaying
+     */
+    public static long getUnusedEntryCount() {
+        if (replaying == null || recordingResumesAt >= 0) {
+            return 0;
+        }
+        long unused = 0;
+        try {
+            while (true) {
+                int tag = replaying.read();
+                if (tag < 0) {
+                    break;
+                }
+                skipEntry(tag);
+                unused++;
+            }
+        } catch (IOException e) {
+        }
+        return unused;
+    }
+
+    /**
+     * Record a line of console input.  Does nothing unless recording.
+     *
+     * @param input the line read, null at end of input
+     */
+    public static void recordInput(String input) {
+        if (recording != null) {
+            try {
+                recording.writeByte(INPUT);
+                writeString(input);
+                entries++;
+            } catch (IOException e) {
+                failRecording(e);
+            }
+        }
+    }
+
+    /**
+     * @return the next line of console input from the log, null if the recorded run reached end of input
+     */
+    public static String replayInput() {
+        expect(INPUT);
+        try {
+            return readString();
+        } catch (IOException e) {
+            throw truncated();
+        }
+    }
+
+    /**
+     * Record whether opening a file for reading succeeded.  Does nothing unless recording.
+     *
+     * @param succeeded true if the file was opened
+     */
+    public static void recordFileOpen(boolean succeeded) {
+        if (recording != null) {
+            try {
+                recording.writeByte(FILE_OPEN);
+                recording.writeBoolean(succeeded);
+                entries++;
+            } catch (IOException e) {
+                failRecording(e);
+            }
+        }
+    }
+
+    /**
+     * @return whether the recorded run succeeded in opening the file for reading
+     */
+    public static boolean replayFileOpen() {
+        expect(FILE_OPEN);
+        try {
+            return replaying.readBoolean();
+        } catch (IOException e) {
+            throw truncated();
+        }
+    }
+
+    /**
+     * Record the outcome of a read from a file.  Does nothing unless recording.
+     *
+     * @param fd       file descriptor read from
+     * @param buffer   the bytes read are at its start
+     * @param retValue number of bytes read, 0 on EOF or -1 on error
+     * @param error    error message, used if retValue is negative
+     */
+    public static void recordFileRead(int fd, byte[] buffer, int retValue, String error) {
+        if (recording != null) {
+            try {
+                recording.writeByte(FILE_READ);
+                recording.writeInt(fd);
+                recording.writeInt(retValue);
+                if (retValue > 0) {
+                    recording.write(buffer, 0, retValue);
+                } else if (retValue < 0) {
+                    writeString(error);
+                }
+                entries++;
+            } catch (IOException e) {
+                failRecording(e);
+            }
+        }
+    }
+
+    /**
+     * Replay a read from a file: the recorded bytes are copied to the start of the buffer.
+     *
+     * @param fd     file descriptor read from, which must be the recorded one
+     * @param buffer receives the bytes read
+     * @param error  if the recorded read failed, its error message is stored in error[0]
+     * @return number of bytes read, 0 on EOF or -1 on error, as recorded
+     */
+    public static int replayFileRead(int fd, byte[] buffer, String[] error) {
+        expect(FILE_READ);
+        try {
+            int recordedFd = replaying.readInt();
+            int retValue = replaying.readInt();
+            if (recordedFd != fd || retValue > buffer.length) {
+                throw new ReplayException("program diverged from recording at syscall result " + (entries - 1)
+                        + ": read of fd " + fd + " into " + buffer.length + " bytes, recorded read of fd "
+                        + recordedFd + " returned " + retValue);
+            }
+            if (retValue > 0) {
+                replaying.readFully(buffer, 0, retValue);
+            } else if (retValue < 0) {
+                error[0] = readString();
+            }
+            return retValue;
+        } catch (IOException e) {
+            throw truncated();
+        }
+    }
+
+    /**
+     * Pass the system time through the log: recorded if recording, replaced by the
+     * recorded time if replaying.
+     *
+     * @param now current time in milliseconds
+     * @return the time the program is to see
+     */
+    public static long logTime(long now) {
+        return logLong(TIME, now);
+    }
+
+    /**
+     * Pass the seed for an unseeded random number stream through the log: recorded if
+     * recording, replaced by the recorded seed if replaying.
+     *
+     * @param seed a freshly generated seed
+     * @return the seed to use
+     */
+    public static long logRandomSeed(long seed) {
+        return logLong(RANDOM_SEED, seed);
+    }
+
+    private static long logLong(int tag, long value) {
+        if (isReplaying()) {
+            expect(tag);
+            try {
+                return replaying.readLong();
+            } catch (IOException e) {
+                throw truncated();
+            }
+        }
+        if (recording != null) {
+            try {
+                recording.writeByte(tag);
+                recording.writeLong(value);
+                entries++;
+            } catch (IOException e) {
+                failRecording(e);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Go back to an earlier point of the log, so that the next result is the one that
+     * was then next.  Does nothing unless recording or replaying.
+     *
+     * @param entry number of results before that point, as returned by getEntryCount() then
+     * @throws IOException if the log cannot be read back
+     */
+    public static void rewind(long entry) throws IOException {
+        if (logFile == null || entry > Math.max(entries, recordingResumesAt)) {
+            return;
+        }
+        if (recording != null) {
+            recordingResumesAt = entries;
+            recording.close();
+            recording = null;
+        } else {
+            replaying.close();
+        }
+        replaying = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)));
+        replaying.readFully(new byte[MAGIC.length]);
+        for (entries = 0; entries < entry; entries++) {
+            skipEntry(replaying.read());
+        }
+    }
+
+    // A rewound recording has replayed all it recorded: append new results to it again.
+    private static void resumeRecording() {
+        try {
+            replaying.close();
+            replaying = null;
+            recordingResumesAt = -1;
+            recording = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(logFile, true)));
+        } catch (IOException e) {
+            failRecording(e);
+        }
+    }
+
+    // Read the tag of the next entry and check it is the one the program now asks for.
+    private static void expect(int tag) {
+        int recordedTag;
+        try {
+            recordedTag = replaying.read();
+        } catch (IOException e) {
+            throw truncated();
+        }
+        if (recordedTag != tag) {
+            throw new ReplayException("program diverged from recording at syscall result " + entries
+                    + ": asked for " + tagName(tag) + ", recorded " + tagName(recordedTag));
+        }
+        entries++;
+    }
+
+    private static void skipEntry(int tag) throws IOException {
+        switch (tag) {
+            case INPUT:
+                readString();
+                break;
+            case FILE_OPEN:
+                replaying.readBoolean();
+                break;
+            case FILE_READ:
+                replaying.readInt();
+                int retValue = replaying.readInt();
+                if (retValue > 0) {
+                    replaying.readFully(new byte[retValue]);
+                } else if (retValue < 0) {
+                    readString();
+                }
+                break;
+            case TIME:
+            case RANDOM_SEED:
+                replaying.readLong();
+                break;
+            default:
+                throw new IOException("unknown entry");
+        }
+    }
+
+    private static void writeString(String s) throws IOException {
+        if (s == null) {
+            recording.writeInt(-1);
+        } else {
+            byte[] bytes = s.getBytes("UTF-8");
+            recording.writeInt(bytes.length);
+            recording.write(bytes);
+        }
+    }
+
+    private static String readString() throws IOException {
+        int length = replaying.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        replaying.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static String tagName(int tag) {
+        if (tag < 0) {
+            return "end of log";
+        }
+        return (tag < TAG_NAMES.length) ? TAG_NAMES[tag] : "unknown entry " + tag;
+    }
+
+    private static ReplayException truncated() {
+        return new ReplayException("syscall log ends in the middle of result " + entries);
+    }
+
+    // A recording that cannot be written is useless; give up on it rather than fail the run.
+    private static void failRecording(IOException e) {
+        System.err.println("Syscall recording stopped: " + e.getMessage());
+        try {
+            stop();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Thrown when a replayed program asks for a syscall result the recorded program did
+     * not, or the log is damaged.  Replay cannot continue.
+     */
+    public static class ReplayException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public ReplayException(String message) {
+            super(message);
+        }
+    }
+}
@@ -3,6 +3,7 @@ package rars.util;
 import rars.*;
 
 import java.io.*;
+import java.nio.charset.Charset;
 	
 	/*
 Copyright (c) 2003-2013,  Pete Sanderson and Kenneth Vollmar
@@ -37,7 +38,8 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
  * routines.  These methods will detect whether the simulator is being
  * run from the command line or through the GUI, then do I/O to
  * System.in and System.out in the former situation, and interact with
- * the GUI in the latter.
+ * the GUI in the latter.  All input, console and file, passes through
+ * SyscallLog so that a run can be recorded and later replayed.
  *
  * @author Pete Sanderson and Ken Vollmar
  * @version August 2003-2005
@@ -69,6 +71,10 @@ public class SystemIO {
     // Will use one buffered reader for all keyboard/redirected/piped input.
     // Added by DPS 28 Feb 2008.  See getInputReader() below.
     private static BufferedReader inputReader = null;
+    // Character set of console input and program source files.  See setCharset().
+    private static Charset charset = Charset.defaultCharset();
+    // Set while instructions that already ran are run again, so their output is not repeated.
+    private static boolean outputSuppressed = false;
 
     /**
      * Implements syscall to read an integer value.
@@ -80,7 +86,9 @@ public class SystemIO {
 
     public static int readInteger(int serviceNumber) {
         String input = "0";
-        if (Globals.getGui() == null) {
+        if (SyscallLog.isReplaying()) {
+            input = SyscallLog.replayInput();
+        } else if (Globals.getGui() == null) {
             try {
                 input = getInputReader().readLine();
             } catch (IOException e) {
@@ -93,6 +101,7 @@ public class SystemIO {
                 input = Globals.getGui().getMessagesPane().getInputString(-1);
             }
         }
+        SyscallLog.recordInput(input);
 
         // Client is responsible for catching NumberFormatException
         return new Integer(input.trim()).intValue();
@@ -109,7 +118,9 @@ public class SystemIO {
      */
     public static float readFloat(int serviceNumber) {
         String input = "0";
-        if (Globals.getGui() == null) {
+        if (SyscallLog.isReplaying()) {
+            input = SyscallLog.replayInput();
+        } else if (Globals.getGui() == null) {
             try {
                 input = getInputReader().readLine();
             } catch (IOException e) {
@@ -122,6 +133,7 @@ public class SystemIO {
                 input = Globals.getGui().getMessagesPane().getInputString(-1);
             }
         }
+        SyscallLog.recordInput(input);
         return new Float(input.trim()).floatValue();
 
     }
@@ -137,7 +149,9 @@ public class SystemIO {
      */
     public static double readDouble(int serviceNumber) {
         String input = "0";
-        if (Globals.getGui() == null) {
+        if (SyscallLog.isReplaying()) {
+            input = SyscallLog.replayInput();
+        } else if (Globals.getGui() == null) {
             try {
                 input = getInputReader().readLine();
             } catch (IOException e) {
@@ -150,6 +164,7 @@ public class SystemIO {
                 input = Globals.getGui().getMessagesPane().getInputString(-1);
             }
         }
+        SyscallLog.recordInput(input);
         return new Double(input.trim()).doubleValue();
 
     }
@@ -159,6 +174,9 @@ public class SystemIO {
      * Implements syscall having 4 in $v0, to print a string.
      */
     public static void printString(String string) {
+        if (outputSuppressed) {
+            return;
+        }
         if (Globals.getGui() == null) {
             System.out.print(string);
         } else {
@@ -177,7 +195,9 @@ public class SystemIO {
      */
     public static String readString(int serviceNumber, int maxLength) {
         String input = "";
-        if (Globals.getGui() == null) {
+        if (SyscallLog.isReplaying()) {
+            input = SyscallLog.replayInput();
+        } else if (Globals.getGui() == null) {
             try {
                 input = getInputReader().readLine();
             } catch (IOException e) {
@@ -194,6 +214,7 @@ public class SystemIO {
                 }
             }
         }
+        SyscallLog.recordInput(input);
 
         if (input.length() > maxLength) {
             // Modified DPS 13-July-2011.  Originally: return input.substring(0, maxLength);
@@ -213,7 +234,9 @@ public class SystemIO {
     public static int readChar(int serviceNumber) {
         String input = "0";
         int returnValue = 0;
-        if (Globals.getGui() == null) {
+        if (SyscallLog.isReplaying()) {
+            input = SyscallLog.replayInput();
+        } else if (Globals.getGui() == null) {
             try {
                 input = getInputReader().readLine();
             } catch (IOException e) {
@@ -226,6 +249,7 @@ public class SystemIO {
                 input = Globals.getGui().getMessagesPane().getInputString(1);
             }
         }
+        SyscallLog.recordInput(input);
         // The whole try-catch is not really necessary in this case since I'm
         // just propagating the runtime exception (the default behavior), but
         // I want to make it explicit.  The client needs to catch it.
@@ -251,6 +275,9 @@ public class SystemIO {
      */
 
     public static int writeToFile(int fd, byte[] myBuffer, int lengthRequested) {
+        if ((fd == STDOUT || fd == STDERR) && outputSuppressed) {
+            return lengthRequested;
+        }
         /////////////// DPS 8-Jan-2013  ////////////////////////////////////////////////////
         /// Write to STDOUT or STDERR file descriptor while using IDE - write to Messages pane.
         if ((fd == STDOUT || fd == STDERR) && Globals.getGui() != null) {
@@ -310,6 +337,21 @@ public class SystemIO {
      * @return number of bytes read, 0 on EOF, or -1 on error
      */
     public static int readFromFile(int fd, byte[] myBuffer, int lengthRequested) {
+        if (SyscallLog.isReplaying()) {
+            String[] error = {null};
+            int retValue = SyscallLog.replayFileRead(fd, myBuffer, error);
+            if (retValue < 0) {
+                fileErrorString = error[0];
+            }
+            return retValue;
+        }
+        int retValue = readFromFileNow(fd, myBuffer, lengthRequested);
+        SyscallLog.recordFileRead(fd, myBuffer, retValue, fileErrorString);
+        return retValue;
+    }
+
+    // Do the read for readFromFile(), from the Messages pane or the file's stream.
+    private static int readFromFileNow(int fd, byte[] myBuffer, int lengthRequested) {
         int retValue = -1;
         /////////////// DPS 8-Jan-2013  //////////////////////////////////////////////////
         /// Read from STDIN file descriptor while using IDE - get input from Messages pane.
@@ -385,6 +427,15 @@ public class SystemIO {
 
         if (flags == O_RDONLY) // Open for reading only
         {
+            if (SyscallLog.isReplaying()) {
+                // Reads are replayed from the log, so the file itself need not exist now
+                if (!SyscallLog.replayFileOpen()) {
+                    fileErrorString = new String(
+                            "File " + filename + " not found, open for input.");
+                    retValue = -1;
+                }
+                return retValue;
+            }
             try {
                 // Set up input stream from disk file
                 inputStream = new FileInputStream(filename);
@@ -394,6 +445,7 @@ public class SystemIO {
                         "File " + filename + " not found, open for input.");
                 retValue = -1;
             }
+            SyscallLog.recordFileOpen(retValue >= 0);
         } else if ((flags & O_WRONLY) != 0) // Open for writing only
         {
             // Set up output stream to disk file
@@ -426,6 +478,45 @@ public class SystemIO {
         FileIOData.resetFiles();
     }
 
+    /**
+     * Forget the reader wrapped around System.in for command-mode input, along with
+     * any input it had read ahead.  The next read wraps System.in afresh.
+     */
+    public static void resetInput() {
+        inputReader = null;
+    }
+
+    /**
+     * Set the character set that console input is decoded with and program source files
+     * are read in.  It is the platform default unless changed; batch and server runs use UTF-8.
+     *
+     * @param newCharset the character set
+     */
+    public static void setCharset(Charset newCharset) {
+        charset = newCharset;
+        inputReader = null;
+    }
+
+    /**
+     * Returns the character set of console input and program source files.
+     *
+     * @return the character set
+     */
+    public static Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * Discard, or stop discarding, everything the program writes to the console (standard
+     * output and standard error).  Used while re-executing instructions whose output was
+     * already written, as when going back to an earlier instruction from a checkpoint.
+     *
+     * @param suppressed true to discard console output
+     */
+    public static void setOutputSuppressed(boolean suppressed) {
+        outputSuppressed = suppressed;
+    }
+
     /**
      * Retrieve file operation or error message
      *
@@ -443,7 +534,7 @@ public class SystemIO {
 
     private static BufferedReader getInputReader() {
         if (inputReader == null) {
-            inputReader = new BufferedReader(new InputStreamReader(System.in));
+            inputReader = new BufferedReader(new InputStreamReader(System.in, charset));
         }
         return inputReader;
     }